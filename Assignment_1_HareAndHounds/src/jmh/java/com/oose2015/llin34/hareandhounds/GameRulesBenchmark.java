@@ -0,0 +1,209 @@
+/**
+ * Cost of the rules engine in Game, measured with JMH.
+ * Run with "mvn test -Pjmh"; pass JMH options with -Djmh.args, e.g.
+ * -Djmh.args="GameRulesBenchmark.playout -f 1".
+ * @author: Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GameRulesBenchmark {
+
+    // Games moved on per invocation of movePiece, so that setting them up
+    // is not timed and the timer is read rarely.
+    private static final int MOVES = 256;
+
+    private static final int HOUND_ID = 1;
+    private static final int HARE_ID = 2;
+
+    // Full games, {fromX, fromY, toX, toY} alternating hound and hare moves.
+    private static final int[][] HOUND_WIN = {
+            {0, 1, 1, 1}, {4, 1, 3, 1}, {1, 0, 2, 0}, {3, 1, 4, 1}, {1, 1, 2, 1}, {4, 1, 3, 1},
+            {1, 2, 2, 2}, {3, 1, 4, 1}, {2, 0, 3, 0}, {4, 1, 3, 1}, {2, 2, 3, 2}, {3, 1, 4, 1},
+            {2, 1, 3, 1}
+    };
+    private static final int[][] HARE_ESCAPE = {
+            {0, 1, 1, 1}, {4, 1, 3, 1}, {1, 0, 2, 0}, {3, 1, 2, 1},
+            {2, 0, 3, 0}, {2, 1, 2, 0}, {1, 2, 2, 2}, {2, 0, 1, 0}
+    };
+    private static final int[][] HARE_BY_STALLING = {
+            {1, 0, 1, 1}, {4, 1, 3, 1}, {1, 1, 1, 0}, {3, 1, 4, 1},
+            {1, 0, 1, 1}, {4, 1, 3, 1}, {1, 1, 1, 0}, {3, 1, 4, 1}
+    };
+
+    // Every one-step move from (1,1) and (2,1), on and off the diagonals,
+    // plus a few that are too long.
+    private static final Move[] STEPS = {
+            move(1, 1, 0, 1), move(1, 1, 2, 2), move(1, 1, 1, 0), move(1, 1, 2, 0),
+            move(2, 1, 3, 1), move(2, 1, 2, 2), move(2, 1, 3, 2), move(2, 1, 1, 0),
+            move(0, 1, 2, 1), move(1, 0, 3, 2), move(1, 2, 1, 0), move(3, 1, 1, 1)
+    };
+
+    /**
+     * Fresh games, joined and waiting for the hound's first move.
+     */
+    @State(Scope.Thread)
+    public static class FreshGames {
+        Game[] games = new Game[MOVES];
+        Move opening = new Move(0, HOUND_ID, 0, 1, 1, 1);
+
+        @Setup(Level.Invocation)
+        public void setup() {
+            for (int i = 0; i < games.length; i++) {
+                games[i] = newGame();
+            }
+        }
+    }
+
+    /**
+     * A game a few moves in, with the hare in the middle of the board.
+     */
+    @State(Scope.Thread)
+    public static class MidGame {
+        Game game;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            game = newGame();
+            play(game, new int[][]{{0, 1, 1, 1}, {4, 1, 3, 1}, {1, 0, 2, 0}, {3, 1, 2, 1}});
+        }
+    }
+
+    /**
+     * Seeded random playouts, so that every run plays the same games.
+     */
+    @State(Scope.Thread)
+    public static class Playouts {
+        @Param({"42"})
+        long seed;
+
+        SplittableRandom random;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            random = new SplittableRandom(seed);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MOVES)
+    public void movePiece(FreshGames fresh, Blackhole blackhole) {
+        for (Game game : fresh.games) {
+            blackhole.consume(game.movePiece(fresh.opening));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(12)
+    public void checkMoveOneStep(MidGame mid, Blackhole blackhole) {
+        for (Move step : STEPS) {
+            blackhole.consume(mid.game.checkMoveOneStep(step));
+        }
+    }
+
+    /**
+     * Recording the same position again, as happens when pieces move back
+     * and forth; the map does not grow.
+     */
+    @Benchmark
+    public void updateStalling(MidGame mid) {
+        mid.game.updateStalling();
+    }
+
+    @Benchmark
+    public int checkWin(MidGame mid) {
+        mid.game.checkWin("HOUND");
+        return mid.game.getStateInt();
+    }
+
+    @Benchmark
+    public Game playoutHoundWin() {
+        return play(newGame(), HOUND_WIN);
+    }
+
+    @Benchmark
+    public Game playoutHareEscape() {
+        return play(newGame(), HARE_ESCAPE);
+    }
+
+    @Benchmark
+    public Game playoutHareByStalling() {
+        return play(newGame(), HARE_BY_STALLING);
+    }
+
+    /**
+     * A game of random legal moves, played until one side wins or nobody
+     * can move. Includes the random choices and the rejected tries.
+     */
+    @Benchmark
+    public Game playoutRandom(Playouts playouts) {
+        Game game = newGame();
+        SplittableRandom random = playouts.random;
+        for (int turn = 0; turn < 200 && game.getStateInt() <= 1; turn++) {
+            boolean moved = false;
+            int playerId = game.getStateInt() == 0 ? HOUND_ID : HARE_ID;
+            for (int tries = 0; tries < 64 && !moved; tries++) {
+                Piece piece = game.getBoard().get(playerId == HOUND_ID ? 1 + random.nextInt(3) : 0);
+                int toX = piece.getX() + random.nextInt(3) - 1;
+                int toY = piece.getY() + random.nextInt(3) - 1;
+                if (onBoard(toX, toY)) {
+                    moved = game.movePiece(new Move(0, playerId, piece.getX(), piece.getY(), toX, toY));
+                }
+            }
+            if (!moved) {
+                break;
+            }
+        }
+        return game;
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    private static Game newGame() {
+        Game game = new Game(0, "HOUND", HOUND_ID);
+        game.joinGame(HARE_ID);
+        return game;
+    }
+
+    private static Game play(Game game, int[][] moves) {
+        for (int i = 0; i < moves.length; i++) {
+            int[] m = moves[i];
+            game.movePiece(new Move(0, i % 2 == 0 ? HOUND_ID : HARE_ID, m[0], m[1], m[2], m[3]));
+        }
+        return game;
+    }
+
+    private static Move move(int fromX, int fromY, int toX, int toY) {
+        return new Move(0, HOUND_ID, fromX, fromY, toX, toY);
+    }
+
+    // The corners of the 5x3 grid are not part of the board.
+    private static boolean onBoard(int x, int y) {
+        return x >= 0 && x <= 4 && y >= 0 && y <= 2 && !((x == 0 || x == 4) && y != 1);
+    }
+}
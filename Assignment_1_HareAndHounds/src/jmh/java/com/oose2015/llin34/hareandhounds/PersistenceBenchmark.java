@@ -0,0 +1,285 @@
+/**
+ * Cost of the database and JSON paths of GameService, measured with JMH
+ * against a SQLite database in a temporary directory and against the
+ * in-memory repository. Parameterized by the number of games already
+ * stored and the size of their stalling maps.
+ * Run with "mvn test -Pjmh -Djmh.args=PersistenceBenchmark".
+ * @author: Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sql2o.Connection;
+import org.sql2o.Query;
+import org.sql2o.Sql2o;
+import org.sqlite.SQLiteDataSource;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceBenchmark {
+
+    static {
+        // Keep the service's info logging out of the results.
+        System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+    }
+
+    // Games are stored this many at a time while setting up.
+    private static final int BATCH = 1000;
+
+    // A game that the hare wins by stalling: {fromX, fromY, toX, toY},
+    // alternating hound and hare moves.
+    private static final int[][] STALLING_GAME = {
+            {1, 0, 1, 1}, {4, 1, 3, 1}, {1, 1, 1, 0}, {3, 1, 4, 1},
+            {1, 0, 1, 1}, {4, 1, 3, 1}, {1, 1, 1, 0}, {3, 1, 4, 1}
+    };
+
+    /**
+     * A repository holding storedGames games that wait for a second player,
+     * each with a stalling map of stallingEntries positions, and a service
+     * that has them in memory.
+     */
+    @State(Scope.Thread)
+    public static class Database {
+        @Param({"sqlite", "memory"})
+        String repository;
+
+        @Param({"100", "10000"})
+        int storedGames;
+
+        @Param({"1", "64"})
+        int stallingEntries;
+
+        Path dir;
+        SQLiteDataSource dataSource;
+        // Null for sqlite.
+        MemoryGameRepository memory;
+        GameService service;
+
+        // A stored game, for updateGameDB.
+        Game game;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            dir = Files.createTempDirectory("hareandhounds-jmh");
+            dataSource = new SQLiteDataSource();
+            dataSource.setUrl("jdbc:sqlite:" + dir.resolve("hareandhounds.db"));
+            memory = repository.equals("memory") ? new MemoryGameRepository() : null;
+            service = open();
+
+            for (int stored = 0; stored < storedGames; stored += BATCH) {
+                service.createNewGames(Collections.nCopies(Math.min(BATCH, storedGames - stored), "HOUND"));
+            }
+            game = service.getGames().iterator().next();
+
+            // The memory repository stores the games themselves.
+            if (memory != null) {
+                for (Game stored : service.getGames()) {
+                    growStalling(stored, stallingEntries);
+                }
+                return;
+            }
+
+            // Store the grown stalling maps in one transaction.
+            Gson gson = new Gson();
+            try (Connection conn = new Sql2o(dataSource).beginTransaction(
+                    java.sql.Connection.TRANSACTION_SERIALIZABLE)) {
+                Query update = conn.createQuery("UPDATE game SET game_json = :game_json WHERE game_id = :game_id");
+                for (Game stored : service.getGames()) {
+                    growStalling(stored, stallingEntries);
+                    update.addParameter("game_json", gson.toJson(stored))
+                          .addParameter("game_id", stored.getGameId())
+                          .addToBatch();
+                }
+                update.executeBatch();
+                conn.commit();
+            }
+        }
+
+        /**
+         * Start a service on the repository, which loads every unfinished game.
+         */
+        GameService open() throws GameService.GameServiceException {
+            GameRepository games = memory != null ? memory
+                    : new SqliteGameRepository(dataSource, new PersistenceTimings(0));
+            // No slow-query log; a large load would flood it.
+            return new GameService(games, null, new PersistenceTimings(0));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            File[] files = dir.toFile().listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.toFile().delete();
+        }
+    }
+
+    /**
+     * A new game waiting for its second player.
+     */
+    @State(Scope.Thread)
+    public static class WaitingGame {
+        GameService service;
+        int gameId;
+
+        @Setup(Level.Invocation)
+        public void setup(Database database) throws Exception {
+            service = database.service;
+            gameId = service.createNewGame("HOUND").gameId;
+        }
+    }
+
+    /**
+     * A game being played and the next move in it. A new game is started
+     * whenever the previous one ends.
+     */
+    @State(Scope.Thread)
+    public static class PlayingGame {
+        GameService service;
+        GameInfo hound;
+        GameInfo hare;
+        int played = STALLING_GAME.length;
+        Move move;
+
+        @Setup(Level.Invocation)
+        public void setup(Database database) throws Exception {
+            service = database.service;
+            if (played == STALLING_GAME.length) {
+                hound = service.createNewGame("HOUND");
+                hare = service.joinGame(hound.gameId);
+                played = 0;
+            }
+            int[] m = STALLING_GAME[played];
+            int playerId = played % 2 == 0 ? hound.playerId : hare.playerId;
+            move = new Move(hound.gameId, playerId, m[0], m[1], m[2], m[3]);
+            played++;
+        }
+    }
+
+    /**
+     * A game with a stalling map of stallingEntries positions.
+     */
+    @State(Scope.Thread)
+    public static class Serialization {
+        @Param({"1", "64", "1024"})
+        int stallingEntries;
+
+        Game game;
+        String json;
+        JsonTransformer transformer = new JsonTransformer();
+        Gson gson = new Gson();
+
+        @Setup(Level.Trial)
+        public void setup() {
+            game = new Game(0, "HOUND", 1);
+            game.joinGame(2);
+            growStalling(game, stallingEntries);
+            json = gson.toJson(game);
+        }
+    }
+
+    @Benchmark
+    public GameInfo createNewGame(Database database) throws Exception {
+        return database.service.createNewGame("HOUND");
+    }
+
+    @Benchmark
+    public GameInfo joinGame(WaitingGame waiting) throws Exception {
+        return waiting.service.joinGame(waiting.gameId);
+    }
+
+    @Benchmark
+    public String playGame(PlayingGame playing) throws Exception {
+        return playing.service.playGame(playing.move);
+    }
+
+    @Benchmark
+    public void updateGameDB(Database database) throws Exception {
+        database.service.updateGameDB(database.game);
+    }
+
+    /**
+     * Start a service on the repository, which loads every unfinished game.
+     */
+    @Benchmark
+    public GameService loadGames(Database database) throws Exception {
+        return database.open();
+    }
+
+    @Benchmark
+    public String render(Serialization serialization) {
+        return serialization.transformer.render(serialization.game);
+    }
+
+    @Benchmark
+    public String toJson(Serialization serialization) {
+        return serialization.gson.toJson(serialization.game);
+    }
+
+    @Benchmark
+    public Game fromJson(Serialization serialization) {
+        return serialization.gson.fromJson(serialization.json, Game.class);
+    }
+
+    @Benchmark
+    public Game roundTrip(Serialization serialization) {
+        return serialization.gson.fromJson(serialization.gson.toJson(serialization.game), Game.class);
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * Add positions to the stalling map of a game until it has the given
+     * number of them, by recording the game with its pieces placed on other
+     * squares. The pieces are put back afterwards.
+     */
+    private static void growStalling(Game game, int entries) {
+        List<Piece> pieces = game.getBoard();
+        // Hounds on three squares of the grid, the hare on any square.
+        for (int a = 0; a < 15 && game.getStallingSize() < entries; a++) {
+            for (int b = a + 1; b < 15 && game.getStallingSize() < entries; b++) {
+                for (int c = b + 1; c < 15 && game.getStallingSize() < entries; c++) {
+                    for (int hare = 0; hare < 15 && game.getStallingSize() < entries; hare++) {
+                        game.placePiece(0, hare / 3, hare % 3);
+                        game.placePiece(1, a / 3, a % 3);
+                        game.placePiece(2, b / 3, b % 3);
+                        game.placePiece(3, c / 3, c % 3);
+                        game.updateStalling();
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < pieces.size(); i++) {
+            game.placePiece(i, pieces.get(i).getX(), pieces.get(i).getY());
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * @author Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for the game routes.
+ *
+ * Each class of route (reads, moves, creates) has its own bound on the
+ * number of requests in flight. A request that finds its class full is
+ * turned away at once instead of queueing behind requests waiting on SQLite,
+ * so the requests that are admitted keep a steady latency. Moves can also
+ * be rate limited per player with a token bucket. Every turned away request
+ * is counted.
+ */
+public class AdmissionControl {
+
+    /**
+     * The classes of routes that are limited separately.
+     */
+    public enum RouteClass { READ, MOVE, CREATE }
+
+    // Forget idle players once this many are tracked, at most once per
+    // sweep interval, so that a full map does not cost every move a scan.
+    private static final int MAX_TRACKED_PLAYERS = 100000;
+    private static final long SWEEP_INTERVAL_NANOS = 1000000000L;
+
+    private final int[] limits;
+
+    private final Semaphore[] inFlight = new Semaphore[RouteClass.values().length];
+
+    private final AtomicLong[] shed = new AtomicLong[RouteClass.values().length];
+
+    private final AtomicLong rateLimited = new AtomicLong();
+
+    private final Map<Integer, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    // System.nanoTime() after which the next sweep of idle players may run.
+    private final AtomicLong nextSweep = new AtomicLong(System.nanoTime());
+
+    private final double movesPerSecond;
+
+    private final int moveBurst;
+
+
+    /**
+     * Construct the admission control from the configuration. A limit of
+     * zero or less leaves that class (or the per-player rate) unlimited.
+     * @param config
+     */
+    public AdmissionControl(ServerConfig config) {
+        this.limits = new int[]{config.maxInFlightReads, config.maxInFlightMoves, config.maxInFlightCreates};
+        for (int i = 0; i < limits.length; i++) {
+            inFlight[i] = limits[i] > 0 ? new Semaphore(limits[i]) : null;
+            shed[i] = new AtomicLong();
+        }
+        this.movesPerSecond = config.playerMovesPerSecond;
+        this.moveBurst = Math.max(1, config.playerMoveBurst);
+    }
+
+    /**
+     * Try to admit a request of the given class. Every admitted request must
+     * be followed by exit().
+     * @param routeClass
+     * @return true if admitted; false if the class is saturated.
+     */
+    public boolean tryEnter(RouteClass routeClass) {
+        Semaphore semaphore = inFlight[routeClass.ordinal()];
+        if (semaphore == null || semaphore.tryAcquire()) {
+            return true;
+        }
+        shed[routeClass.ordinal()].incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Release the slot taken by tryEnter().
+     * @param routeClass
+     */
+    public void exit(RouteClass routeClass) {
+        Semaphore semaphore = inFlight[routeClass.ordinal()];
+        if (semaphore != null) {
+            semaphore.release();
+        }
+    }
+
+    /**
+     * Take a token from the player's bucket.
+     * @param playerId
+     * @return true if the player may move; false if over the rate limit.
+     */
+    public boolean tryMove(int playerId) {
+        if (movesPerSecond <= 0) {
+            return true;
+        }
+        if (buckets.size() > MAX_TRACKED_PLAYERS) {
+            long now = System.nanoTime();
+            long next = nextSweep.get();
+            // Only the thread that moves the deadline on does the sweep.
+            if (now - next >= 0 && nextSweep.compareAndSet(next, now + SWEEP_INTERVAL_NANOS)) {
+                forgetIdlePlayers();
+            }
+        }
+        TokenBucket bucket = buckets.computeIfAbsent(playerId, id -> new TokenBucket(movesPerSecond, moveBurst));
+        if (bucket.tryAcquire()) {
+            return true;
+        }
+        rateLimited.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Number of requests of a class turned away because it was saturated.
+     * @param routeClass
+     * @return shed request count
+     */
+    public long getShed(RouteClass routeClass) { return shed[routeClass.ordinal()].get(); }
+
+    /**
+     * Number of moves turned away by the per-player rate limit.
+     * @return rate-limited request count
+     */
+    public long getRateLimited() { return rateLimited.get(); }
+
+    /**
+     * Number of requests of a class currently being served.
+     * @param routeClass
+     * @return in-flight request count; -1 if the class is unlimited.
+     */
+    public int getInFlight(RouteClass routeClass) {
+        Semaphore semaphore = inFlight[routeClass.ordinal()];
+        return semaphore == null ? -1 : limits[routeClass.ordinal()] - semaphore.availablePermits();
+    }
+
+    /**
+     * Number of requests of a class that may be served at once.
+     * @param routeClass
+     * @return the limit; -1 if the class is unlimited.
+     */
+    public int getLimit(RouteClass routeClass) {
+        return inFlight[routeClass.ordinal()] == null ? -1 : limits[routeClass.ordinal()];
+    }
+
+    /**
+     * Whether the limits leave a request thread for every admitted request,
+     * so that a saturated class is shed rather than queued for a thread.
+     * @param threads request threads available to the routes
+     * @return true if every class is limited and the limits add up to fewer
+     *         than threads
+     */
+    public boolean fitsThreads(int threads) {
+        int total = 0;
+        for (RouteClass routeClass : RouteClass.values()) {
+            int limit = getLimit(routeClass);
+            if (limit < 0) {
+                return false;
+            }
+            total += limit;
+        }
+        return total < threads;
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    // Drop buckets that have refilled completely; they hold no state.
+    private void forgetIdlePlayers() {
+        Iterator<TokenBucket> it = buckets.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isFull()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * A token bucket refilled continuously at a fixed rate.
+     */
+    private static class TokenBucket {
+        private final double ratePerNano;
+        private final int capacity;
+        private double tokens;
+        private long lastRefill;
+
+        TokenBucket(double ratePerSecond, int capacity) {
+            this.ratePerNano = ratePerSecond / 1e9;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastRefill = System.nanoTime();
+        }
+
+        synchronized boolean tryAcquire() {
+            refill();
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized boolean isFull() {
+            refill();
+            return tokens >= capacity;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * ratePerNano);
+            lastRefill = now;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/**
+ * @author Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A blocking Java client for BinaryServer, for bots that want to play
+ * without the cost of HTTP and JSON. One client holds one connection and is
+ * not thread-safe; use one client per bot thread.
+ */
+public class BinaryClient implements Closeable {
+
+    private final SocketChannel channel;
+
+    private final ByteBuffer out = ByteBuffer.allocate(BinaryProtocol.HEADER_SIZE + BinaryProtocol.MAX_BODY_SIZE);
+
+    private final ByteBuffer in = ByteBuffer.allocate(BinaryProtocol.HEADER_SIZE + BinaryProtocol.MAX_BODY_SIZE);
+
+
+    /**
+     * Connect to a binary endpoint.
+     * @param host
+     * @param port
+     * @throws IOException
+     */
+    public BinaryClient(String host, int port) throws IOException {
+        this.channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+    }
+
+    /**
+     * Create a new game.
+     * @param pieceType "HOUND" or "HARE"
+     * @return the GameInfo of the created game
+     */
+    public GameInfo create(String pieceType) throws IOException {
+        BinaryProtocol.beginFrame(out, BinaryProtocol.CREATE);
+        out.put(BinaryProtocol.pieceTypeCode(pieceType));
+        return readGameInfo(send());
+    }
+
+    /**
+     * Join a game.
+     * @param gameId
+     * @return the GameInfo of the joined game; null if the game does not
+     *         exist or already has two players.
+     */
+    public GameInfo join(int gameId) throws IOException {
+        BinaryProtocol.beginFrame(out, BinaryProtocol.JOIN);
+        out.putInt(gameId);
+        byte type = send();
+        if (type == BinaryProtocol.ERROR) {
+            byte error = in.get();
+            if (error == BinaryProtocol.ERROR_NOT_FOUND || error == BinaryProtocol.ERROR_GONE) {
+                return null;
+            }
+            throw new IOException("Server error " + error);
+        }
+        return readGameInfo(type);
+    }
+
+    /**
+     * Make a move.
+     * @param move
+     * @return the same result strings as GameService.playGame, e.g. "MOVE_OK".
+     */
+    public String move(Move move) throws IOException {
+        BinaryProtocol.beginFrame(out, BinaryProtocol.MOVE);
+        out.putInt(move.getGameId());
+        out.putInt(move.getPlayerId());
+        out.put((byte) move.getFromX());
+        out.put((byte) move.getFromY());
+        out.put((byte) move.getToX());
+        out.put((byte) move.getToY());
+        expect(send(), BinaryProtocol.RESULT);
+        return BinaryProtocol.moveResultName(in.get());
+    }
+
+    /**
+     * Fetch the state and board of a game.
+     * @param gameId
+     * @return the snapshot; null if the game does not exist.
+     */
+    public Snapshot snapshot(int gameId) throws IOException {
+        BinaryProtocol.beginFrame(out, BinaryProtocol.SNAPSHOT);
+        out.putInt(gameId);
+        byte type = send();
+        if (type == BinaryProtocol.ERROR && in.get() == BinaryProtocol.ERROR_NOT_FOUND) {
+            return null;
+        }
+        expect(type, BinaryProtocol.BOARD);
+
+        Snapshot snapshot = new Snapshot();
+        snapshot.gameId = in.getInt();
+        snapshot.state = in.get();
+        snapshot.pieces = new ArrayList<>(4);
+        for (int i = 0; i < 4; i++) {
+            snapshot.pieces.add(new Piece(i == 0 ? "HARE" : "HOUND", in.get(), in.get()));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Start spectating a game. After this call the connection only receives
+     * frames; read them with nextFrame().
+     * @param gameId
+     * @return the current state of the game; null if the game does not exist.
+     */
+    public Snapshot spectate(int gameId) throws IOException {
+        BinaryProtocol.beginFrame(out, BinaryProtocol.SPECTATE);
+        out.putInt(gameId);
+        byte type = send();
+        if (type == BinaryProtocol.ERROR && in.get() == BinaryProtocol.ERROR_NOT_FOUND) {
+            return null;
+        }
+        return readFrame(type);
+    }
+
+    /**
+     * Wait for the next frame of a spectated game. Frames that the server
+     * could not send in time are skipped, so versions may jump.
+     * @return the new state of the game
+     */
+    public Snapshot nextFrame() throws IOException {
+        return readFrame(receive());
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * Send the frame in the out buffer and read the reply frame into the in
+     * buffer.
+     * @return the type of the reply, with the in buffer positioned at its payload
+     */
+    private byte send() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+        return receive();
+    }
+
+    /**
+     * Read the next frame into the in buffer.
+     * @return the type of the frame, with the in buffer positioned at its payload
+     */
+    private byte receive() throws IOException {
+        in.clear();
+        in.limit(BinaryProtocol.HEADER_SIZE);
+        fill();
+        int length = in.getShort(0) & 0xFFFF;
+        if (length < 1 || length > BinaryProtocol.MAX_BODY_SIZE) {
+            throw new IOException("Bad frame length " + length);
+        }
+        in.limit(BinaryProtocol.HEADER_SIZE + length);
+        fill();
+        in.position(BinaryProtocol.HEADER_SIZE);
+        return in.get();
+    }
+
+    private void fill() throws IOException {
+        while (in.hasRemaining()) {
+            if (channel.read(in) < 0) {
+                throw new IOException("Connection closed by server");
+            }
+        }
+    }
+
+    private Snapshot readFrame(byte type) throws IOException {
+        expect(type, BinaryProtocol.FRAME);
+        Snapshot snapshot = new Snapshot();
+        snapshot.gameId = in.getInt();
+        snapshot.version = in.getInt();
+        snapshot.state = in.get();
+        snapshot.pieces = new ArrayList<>(4);
+        for (int i = 0; i < 4; i++) {
+            snapshot.pieces.add(new Piece(i == 0 ? "HARE" : "HOUND", in.get(), in.get()));
+        }
+        return snapshot;
+    }
+
+    private GameInfo readGameInfo(byte type) throws IOException {
+        expect(type, BinaryProtocol.GAME_INFO);
+        int gameId = in.getInt();
+        int playerId = in.getInt();
+        String pieceType = BinaryProtocol.pieceTypeName(in.get());
+        int state = in.get();
+        return new GameInfo(gameId, playerId, pieceType, Game.stateName(state));
+    }
+
+    private void expect(byte type, byte expected) throws IOException {
+        if (type == BinaryProtocol.ERROR) {
+            throw new IOException("Server error " + in.get());
+        }
+        if (type != expected) {
+            throw new IOException("Unexpected reply type " + type);
+        }
+    }
+
+    /**
+     * The state and board of a game. The version is only set on spectator
+     * frames.
+     */
+    public static class Snapshot {
+        public int gameId;
+        public int version;
+        public int state;
+        public List<Piece> pieces;
+
+        public String getState() { return Game.stateName(state); }
+    }
+}
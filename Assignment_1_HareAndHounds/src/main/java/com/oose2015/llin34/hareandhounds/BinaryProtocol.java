@@ -0,0 +1,174 @@
+/**
+ * @author Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The compact binary protocol spoken by BinaryServer and BinaryClient.
+ *
+ * Every frame is a 2-byte big-endian length followed by that many bytes: a
+ * 1-byte message type and a fixed-size payload for that type.
+ *
+ *   CREATE    0x01  pieceType:u8                                  (0 HOUND, 1 HARE)
+ *   JOIN      0x02  gameId:i32
+ *   MOVE      0x03  gameId:i32 playerId:i32 fromX:u8 fromY:u8 toX:u8 toY:u8
+ *   SNAPSHOT  0x04  gameId:i32
+ *   SPECTATE  0x05  gameId:i32
+ *
+ *   GAME_INFO 0x81  gameId:i32 playerId:i32 pieceType:u8 state:u8  (reply to CREATE and JOIN)
+ *   RESULT    0x83  result:u8                                     (reply to MOVE)
+ *   BOARD     0x84  gameId:i32 state:u8 (x:u8 y:u8) x 4           (reply to SNAPSHOT, hare first)
+ *   FRAME     0x85  gameId:i32 version:i32 state:u8 (x:u8 y:u8) x 4
+ *                   (reply to SPECTATE, then pushed on every change of the game)
+ *   ERROR     0xFF  error:u8
+ *
+ * States are the integer game states of Game. A connection that spectates
+ * receives FRAME messages at any time, so it should not be used to play.
+ */
+public class BinaryProtocol {
+
+    // Request types.
+    public static final byte CREATE = 0x01;
+    public static final byte JOIN = 0x02;
+    public static final byte MOVE = 0x03;
+    public static final byte SNAPSHOT = 0x04;
+    public static final byte SPECTATE = 0x05;
+
+    // Reply types.
+    public static final byte GAME_INFO = (byte) 0x81;
+    public static final byte RESULT = (byte) 0x83;
+    public static final byte BOARD = (byte) 0x84;
+    public static final byte FRAME = (byte) 0x85;
+    public static final byte ERROR = (byte) 0xFF;
+
+    // Error codes.
+    public static final byte ERROR_NOT_FOUND = 1;
+    public static final byte ERROR_GONE = 2;
+    public static final byte ERROR_MALFORMED = 3;
+    public static final byte ERROR_SERVER = 4;
+
+    // Move results, in the order of MOVE_RESULTS.
+    private static final String[] MOVE_RESULTS =
+            {"MOVE_OK", "INVALID_GAME_ID", "INVALID_PLAYER_ID", "INCORRECT_TURN", "ILLEGAL_MOVE"};
+
+    // Size of the length prefix.
+    public static final int HEADER_SIZE = 2;
+
+    // The largest frame body (type + payload) of any message.
+    public static final int MAX_BODY_SIZE = 1 + 17;
+
+    private BinaryProtocol() { }
+
+    /**
+     * The body size (type + payload) of a message type.
+     * @param type
+     * @return body size; -1 for an unknown type.
+     */
+    public static int bodySize(byte type) {
+        switch (type) {
+            case CREATE: return 1 + 1;
+            case JOIN: return 1 + 4;
+            case MOVE: return 1 + 12;
+            case SNAPSHOT: return 1 + 4;
+            case SPECTATE: return 1 + 4;
+            case GAME_INFO: return 1 + 10;
+            case RESULT: return 1 + 1;
+            case BOARD: return 1 + 13;
+            case FRAME: return 1 + 17;
+            case ERROR: return 1 + 1;
+            default: return -1;
+        }
+    }
+
+    /**
+     * Start a frame of the given type in the buffer.
+     * @param buffer
+     * @param type
+     */
+    public static void beginFrame(ByteBuffer buffer, byte type) {
+        buffer.putShort((short) bodySize(type));
+        buffer.put(type);
+    }
+
+    public static byte pieceTypeCode(String pieceType) {
+        return (byte) ("HARE".equals(pieceType) ? 1 : 0);
+    }
+
+    /**
+     * The piece type of a code.
+     * @param code
+     * @return "HOUND" or "HARE"; null if the code is neither
+     */
+    public static String pieceTypeName(int code) {
+        switch (code) {
+            case 0: return "HOUND";
+            case 1: return "HARE";
+            default: return null;
+        }
+    }
+
+    /**
+     * The code of a move result.
+     * @param result
+     * @return the code; -1 if the result has none
+     */
+    public static byte moveResultCode(String result) {
+        for (int i = 0; i < MOVE_RESULTS.length; i++) {
+            if (MOVE_RESULTS[i].equals(result)) {
+                return (byte) i;
+            }
+        }
+        return -1;
+    }
+
+    public static String moveResultName(int code) {
+        return code >= 0 && code < MOVE_RESULTS.length ? MOVE_RESULTS[code] : null;
+    }
+
+    /**
+     * Write a BOARD frame for the given game.
+     * @param buffer
+     * @param gameId
+     * @param state
+     * @param pieces hare first, then the three hounds
+     */
+    public static void putBoard(ByteBuffer buffer, int gameId, int state, List<Piece> pieces) {
+        beginFrame(buffer, BOARD);
+        buffer.putInt(gameId);
+        buffer.put((byte) state);
+        for (int i = 0; i < 4; i++) {
+            Piece piece = pieces.get(i);
+            buffer.put((byte) piece.getX());
+            buffer.put((byte) piece.getY());
+        }
+    }
+
+    /**
+     * Write a FRAME message for the given game.
+     * @param buffer
+     * @param gameId
+     * @param version
+     * @param state
+     * @param pieces hare first, then the three hounds
+     */
+    public static void putFrame(ByteBuffer buffer, int gameId, int version, int state, List<Piece> pieces) {
+        beginFrame(buffer, FRAME);
+        buffer.putInt(gameId);
+        buffer.putInt(version);
+        buffer.put((byte) state);
+        for (int i = 0; i < 4; i++) {
+            Piece piece = pieces.get(i);
+            buffer.put((byte) piece.getX());
+            buffer.put((byte) piece.getY());
+        }
+    }
+
+    public static void putError(ByteBuffer buffer, byte error) {
+        beginFrame(buffer, ERROR);
+        buffer.put(error);
+    }
+}
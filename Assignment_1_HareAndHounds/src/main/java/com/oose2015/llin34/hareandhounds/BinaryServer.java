@@ -0,0 +1,501 @@
+/**
+ * @author Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A TCP endpoint for bot clients that speaks BinaryProtocol instead of
+ * HTTP + JSON. It shares the GameService with GameController, so both
+ * endpoints see the same games.
+ *
+ * One selector thread accepts connections, reads frames and writes replies.
+ * Frames are handled on a small worker pool, one connection at a time, so
+ * replies to pipelined requests come back in request order and a slow
+ * database write never stalls the selector. A connection holds at most
+ * MAX_QUEUED_REQUESTS requests; while it is full its socket is not read,
+ * so a client that pipelines faster than it is served is held back by TCP.
+ *
+ * A connection may also spectate games. It then holds at most one unsent
+ * frame per game: a newer frame replaces one that has not been written yet,
+ * and a connection that has not been able to write for slowSubscriberMillis
+ * is closed.
+ */
+public class BinaryServer {
+
+    // Requests a connection may have waiting for a worker.
+    static final int MAX_QUEUED_REQUESTS = 64;
+
+    private final GameService gameService;
+
+    private final Selector selector;
+
+    private final ServerSocketChannel serverChannel;
+
+    private final ExecutorService workers;
+
+    private final long slowSubscriberNanos;
+
+    // Connections with replies waiting to be registered for OP_WRITE.
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    private final Thread selectorThread;
+
+    private volatile boolean running = true;
+
+    private final Logger logger = LoggerFactory.getLogger(BinaryServer.class);
+
+
+    /**
+     * Bind the endpoint and start serving.
+     * @param gameService
+     * @param host
+     * @param port
+     * @param workerThreads
+     * @param slowSubscriberMillis how long a spectating connection may be unable to write
+     * @throws IOException if the port can not be bound.
+     */
+    public BinaryServer(GameService gameService, String host, int port, int workerThreads, int slowSubscriberMillis)
+            throws IOException {
+        this.gameService = gameService;
+        this.slowSubscriberNanos = TimeUnit.MILLISECONDS.toNanos(slowSubscriberMillis);
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(host, port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workerThreads), runnable -> {
+            Thread thread = new Thread(runnable, "binary-worker-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.selectorThread = new Thread(this::run, "binary-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        logger.info("Binary endpoint listening on {}:{}", host, getPort());
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Stop serving and close every connection.
+     */
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdownNow();
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Selector loop
+    //-----------------------------------------------------------------------------//
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+
+                Connection connection;
+                while ((connection = pendingWrites.poll()) != null) {
+                    if (connection.slow) {
+                        closeQuietly(connection.key);
+                    } else if (connection.key.isValid()) {
+                        connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+                        try {
+                            connection.resumeReading();
+                        } catch (IOException ex) {
+                            closeQuietly(connection.key);
+                        }
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            ((Connection) key.attachment()).read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            ((Connection) key.attachment()).write();
+                        }
+                    } catch (IOException ex) {
+                        closeQuietly(key);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            logger.error("Binary endpoint selector failed", ex);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                logger.warn("Failed to close selector", ex);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    private void closeQuietly(SelectionKey key) {
+        if (key.attachment() != null) {
+            ((Connection) key.attachment()).unsubscribeAll();
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // Already closed.
+        }
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Request handling
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * Handle one request frame and write the reply into the buffer.
+     * @param connection
+     * @param type
+     * @param request frame body, positioned after the type byte
+     * @param reply left empty if the reply is sent as a spectator frame
+     */
+    private void handle(Connection connection, byte type, ByteBuffer request, ByteBuffer reply) {
+        try {
+            switch (type) {
+                case BinaryProtocol.CREATE: {
+                    String pieceType = BinaryProtocol.pieceTypeName(request.get());
+                    if (pieceType == null) {
+                        BinaryProtocol.putError(reply, BinaryProtocol.ERROR_MALFORMED);
+                        break;
+                    }
+                    putGameInfo(reply, gameService.createNewGame(pieceType));
+                    break;
+                }
+                case BinaryProtocol.JOIN: {
+                    GameInfo info = gameService.joinGame(request.getInt());
+                    if (info.state.equals("404")) {
+                        BinaryProtocol.putError(reply, BinaryProtocol.ERROR_NOT_FOUND);
+                    } else if (info.state.equals("410")) {
+                        BinaryProtocol.putError(reply, BinaryProtocol.ERROR_GONE);
+                    } else {
+                        putGameInfo(reply, info);
+                    }
+                    break;
+                }
+                case BinaryProtocol.MOVE: {
+                    int gameId = request.getInt();
+                    int playerId = request.getInt();
+                    int fromX = request.get(), fromY = request.get(), toX = request.get(), toY = request.get();
+                    if (!onBoard(fromX, fromY) || !onBoard(toX, toY)) {
+                        BinaryProtocol.putError(reply, BinaryProtocol.ERROR_MALFORMED);
+                        break;
+                    }
+                    String result = gameService.playGame(new Move(gameId, playerId, fromX, fromY, toX, toY));
+                    byte code = BinaryProtocol.moveResultCode(result);
+                    if (code < 0) {
+                        // A result the protocol has no code for is our mistake, not the client's.
+                        logger.error("Move result {} has no binary code", result);
+                        BinaryProtocol.putError(reply, BinaryProtocol.ERROR_SERVER);
+                        break;
+                    }
+                    BinaryProtocol.beginFrame(reply, BinaryProtocol.RESULT);
+                    reply.put(code);
+                    break;
+                }
+                case BinaryProtocol.SNAPSHOT: {
+                    int gameId = request.getInt();
+                    Game game = gameService.findGame(gameId);
+                    if (game == null) {
+                        BinaryProtocol.putError(reply, BinaryProtocol.ERROR_NOT_FOUND);
+                    } else {
+                        synchronized (game) {
+                            BinaryProtocol.putBoard(reply, gameId, game.getStateInt(), game.getBoard());
+                        }
+                    }
+                    break;
+                }
+                case BinaryProtocol.SPECTATE: {
+                    int gameId = request.getInt();
+                    Game game = gameService.findGame(gameId);
+                    if (game == null) {
+                        BinaryProtocol.putError(reply, BinaryProtocol.ERROR_NOT_FOUND);
+                    } else {
+                        connection.watching.add(gameId);
+                        connection.offer(gameService.getSpectators().subscribe(game, connection));
+                    }
+                    break;
+                }
+                default:
+                    BinaryProtocol.putError(reply, BinaryProtocol.ERROR_MALFORMED);
+            }
+        } catch (GameService.GameServiceException ex) {
+            reply.clear();
+            BinaryProtocol.putError(reply, BinaryProtocol.ERROR_SERVER);
+        }
+    }
+
+    private void putGameInfo(ByteBuffer reply, GameInfo info) throws GameService.GameServiceException {
+        Game game = gameService.searchGame(info.gameId);
+        BinaryProtocol.beginFrame(reply, BinaryProtocol.GAME_INFO);
+        reply.putInt(info.gameId);
+        reply.putInt(info.playerId);
+        reply.put(BinaryProtocol.pieceTypeCode(info.pieceType));
+        reply.put((byte) (game == null ? 0 : game.getStateInt()));
+    }
+
+    private static boolean onBoard(int x, int y) {
+        return x >= 0 && x <= 4 && y >= 0 && y <= 2;
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * A client connection. Reads and writes happen on the selector thread;
+     * complete request frames are handled on a worker, one batch at a time.
+     */
+    private class Connection implements SpectatorHub.Subscriber {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ByteBuffer in = ByteBuffer.allocate(4096);
+        private final Queue<ByteBuffer> requests = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queuedRequests = new AtomicInteger();
+        private final Queue<ByteBuffer> replies = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        // Spectated games and, per game, the newest frame not written yet.
+        private final Set<Integer> watching = ConcurrentHashMap.newKeySet();
+        private final Map<Integer, SpectatorHub.Frame> frames = new ConcurrentHashMap<>();
+
+        // Written by the selector thread only.
+        private final Map<Integer, Integer> sentVersions = new HashMap<>();
+        private ByteBuffer current;
+        private boolean readingPaused;
+
+        // When the socket last refused part of a write; 0 while writes keep up.
+        private volatile long stalledSince;
+        private volatile boolean slow;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                throw new IOException("Connection closed");
+            }
+            takeRequests();
+        }
+
+        /**
+         * Read the socket again once the worker has made room in the request
+         * queue. Called on the selector thread after every batch.
+         */
+        void resumeReading() throws IOException {
+            if (readingPaused && queuedRequests.get() < MAX_QUEUED_REQUESTS) {
+                readingPaused = false;
+                takeRequests();
+                if (!readingPaused) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+            }
+        }
+
+        // Queue the complete frames read so far. When the queue is full the
+        // rest stays in the input buffer and the socket is no longer read.
+        private void takeRequests() throws IOException {
+            in.flip();
+            while (queuedRequests.get() < MAX_QUEUED_REQUESTS && in.remaining() >= BinaryProtocol.HEADER_SIZE) {
+                int length = in.getShort(in.position()) & 0xFFFF;
+                if (length < 1 || length > BinaryProtocol.MAX_BODY_SIZE) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                if (in.remaining() < BinaryProtocol.HEADER_SIZE + length) {
+                    break;
+                }
+                in.position(in.position() + BinaryProtocol.HEADER_SIZE);
+                ByteBuffer frame = ByteBuffer.allocate(length);
+                in.get(frame.array());
+                queuedRequests.incrementAndGet();
+                requests.add(frame);
+            }
+            in.compact();
+            if (queuedRequests.get() >= MAX_QUEUED_REQUESTS) {
+                readingPaused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            schedule();
+        }
+
+        // Hand queued requests to a worker unless one is already on them.
+        void schedule() {
+            if (!requests.isEmpty() && scheduled.compareAndSet(false, true)) {
+                workers.execute(this::process);
+            }
+        }
+
+        void process() {
+            ByteBuffer request;
+            while ((request = requests.poll()) != null) {
+                queuedRequests.decrementAndGet();
+                byte type = request.get();
+                ByteBuffer reply = ByteBuffer.allocate(BinaryProtocol.HEADER_SIZE + BinaryProtocol.MAX_BODY_SIZE);
+                if (BinaryProtocol.bodySize(type) != request.limit()) {
+                    BinaryProtocol.putError(reply, BinaryProtocol.ERROR_MALFORMED);
+                } else {
+                    handle(this, type, request, reply);
+                }
+                if (reply.position() > 0) {
+                    reply.flip();
+                    replies.add(reply);
+                }
+            }
+            pendingWrites.add(this);
+            selector.wakeup();
+            scheduled.set(false);
+            schedule();
+        }
+
+        /**
+         * Write replies, then spectator frames. A message that was started is
+         * always finished before the next one.
+         */
+        void write() throws IOException {
+            while (current != null || (current = nextMessage()) != null) {
+                channel.write(current);
+                if (current.hasRemaining()) {
+                    if (stalledSince == 0) {
+                        stalledSince = System.nanoTime();
+                    }
+                    return;
+                }
+                current = null;
+                stalledSince = 0;
+            }
+            int reading = readingPaused ? 0 : SelectionKey.OP_READ;
+            key.interestOps(reading);
+            // A worker or a move may have queued a message after the loop above.
+            if (!replies.isEmpty() || !frames.isEmpty()) {
+                key.interestOps(reading | SelectionKey.OP_WRITE);
+            }
+        }
+
+        private ByteBuffer nextMessage() {
+            ByteBuffer reply = replies.poll();
+            if (reply != null) {
+                return reply;
+            }
+            for (Map.Entry<Integer, SpectatorHub.Frame> entry : frames.entrySet()) {
+                SpectatorHub.Frame frame = entry.getValue();
+                // A newer frame may have replaced this one since; it is taken next time round.
+                if (!frames.remove(entry.getKey(), frame)) {
+                    continue;
+                }
+                Integer sent = sentVersions.get(frame.gameId);
+                if (sent != null && sent >= frame.version) {
+                    continue;
+                }
+                sentVersions.put(frame.gameId, frame.version);
+                return frame.binary();
+            }
+            return null;
+        }
+
+        /**
+         * Queue a frame of a spectated game, replacing an older one of the
+         * same game that has not been written yet.
+         */
+        @Override
+        public void offer(SpectatorHub.Frame frame) {
+            if (slow) {
+                return;
+            }
+            long since = stalledSince;
+            if (since != 0 && System.nanoTime() - since > slowSubscriberNanos) {
+                slow = true;
+                gameService.getSpectators().recordSlowSubscriber();
+                pendingWrites.add(this);
+                selector.wakeup();
+                return;
+            }
+
+            while (true) {
+                SpectatorHub.Frame previous = frames.putIfAbsent(frame.gameId, frame);
+                if (previous == null) {
+                    pendingWrites.add(this);
+                    selector.wakeup();
+                    return;
+                }
+                if (previous.version >= frame.version) {
+                    return;
+                }
+                if (frames.replace(frame.gameId, previous, frame)) {
+                    gameService.getSpectators().recordDropped();
+                    return;
+                }
+            }
+        }
+
+        void unsubscribeAll() {
+            for (int gameId : watching) {
+                gameService.getSpectators().unsubscribe(gameId, this);
+            }
+            watching.clear();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.oose2015.llin34.hareandhounds;
+
+/**
+ * Created by Li-Yi Lin.
+ */
+
+import java.util.List;
+
+/**
+ * A class that stores the changes of a board since a version the client
+ * already has, for returning to the front end. When the server no longer
+ * remembers that version, snapshot is true and pieces holds every piece.
+ */
+public class BoardDelta {
+    public int version;
+    public String state;
+    public boolean snapshot;
+    public List<IndexedPiece> pieces;
+
+
+    /**
+     * Construct a BoardDelta.
+     * @param version the version of the game the delta brings the client to
+     * @param state
+     * @param snapshot whether pieces is the whole board
+     * @param pieces the pieces that moved, at their new positions
+     */
+    public BoardDelta(int version, String state, boolean snapshot, List<IndexedPiece> pieces){
+        this.version = version;
+        this.state = state;
+        this.snapshot = snapshot;
+        this.pieces = pieces;
+    }
+
+    /**
+     * A piece and its place in the board list, so that clients can tell the
+     * hounds apart.
+     */
+    public static class IndexedPiece {
+        public int index;
+        public String pieceType;
+        public int x;
+        public int y;
+
+        public IndexedPiece(int index, Piece piece) {
+            this.index = index;
+            this.pieceType = piece.getPieceType();
+            this.x = piece.getX();
+            this.y = piece.getY();
+        }
+    }
+}
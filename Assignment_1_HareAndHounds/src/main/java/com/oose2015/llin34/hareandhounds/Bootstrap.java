@@ -12,44 +12,181 @@ package com.oose2015.llin34.hareandhounds;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sqlite.SQLiteDataSource;
+import spark.Spark;
 
 import javax.sql.DataSource;
+import java.io.IOException;
 
 import static spark.Spark.*;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Bootstrap {
+    // Default address; override with -Dhareandhounds.host and -Dhareandhounds.port.
     public static final String IP_ADDRESS = "localhost";
     public static final int PORT = 8080;
 
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10000;
+
+    // The model and controller of the running server.
+    static GameService gameService;
+    static GameController controller;
+
+    // The binary endpoint of the running server; null if it is disabled.
+    static BinaryServer binaryServer;
+
+    // Background workers of the running server; null if they are disabled.
+    private static GameArchiver archiver;
+    private static HashedTimerWheel timers;
+
+    // The JVM runs stop() on exit; the hook is added by the first main() only.
+    private static final AtomicBoolean shutdownHookAdded = new AtomicBoolean();
+
     private static final Logger logger = LoggerFactory.getLogger(Bootstrap.class);
 
     public static void main(String[] args) throws Exception {
-        //Check if the database file exists in the current directory. Abort if not
-        DataSource dataSource = configureDataSource();
-        if (dataSource == null) {
-            System.out.printf("Could not find hareandhounds.db in the current directory (%s). Terminating\n",
-                    Paths.get(".").toAbsolutePath().normalize());
-            System.exit(1);
+        ServerConfig config = ServerConfig.fromSystemProperties();
+
+        //Check if the database file exists in the current directory. Abort if not.
+        //A server that keeps its games in memory needs none.
+        DataSource dataSource = null;
+        if (!config.repository.equals("memory")) {
+            dataSource = configureDataSource();
+            if (dataSource == null) {
+                System.out.printf("Could not find hareandhounds.db in the current directory (%s). Terminating\n",
+                        Paths.get(".").toAbsolutePath().normalize());
+                System.exit(1);
+            }
         }
 
         //Specify the IP address and Port at which the server should be run
-        ipAddress(IP_ADDRESS);
-        port(PORT);
+        ipAddress(config.host);
+        port(config.port);
+
+        //Size the request thread pool
+        threadPool(config.maxThreads, config.minThreads, config.threadIdleTimeoutMillis);
 
-        //Specify the sub-directory from which to serve static resources (like html and css)
-        staticFileLocation("/public");
+        //Serve static resources (like html and css) from memory, falling back
+        //to Spark's classpath file handler if they can not be loaded
+        try {
+            new StaticAssetController("/public", config.staticMaxAgeSeconds);
+        } catch (IOException ex) {
+            logger.error("Failed to load static assets into memory; serving them from the classpath", ex);
+            staticFileLocation("/public");
+        }
 
         //Create the model instance and then configure and start the web service
         try {
-            GameService model = new GameService(dataSource);
-            new GameController(model);
+            PersistenceExecutor persistence = null;
+            if (config.asyncPersistence) {
+                persistence = new PersistenceExecutor(config.persistenceThreads,
+                        config.persistenceQueueCapacity, config.virtualThreads);
+            }
+            PersistenceTimings timings = new PersistenceTimings(config.slowQueryMillis);
+            GameService model = new GameService(configureRepository(config, dataSource, timings), persistence,
+                    timings);
+            gameService = model;
+            controller = new GameController(model, config);
+
+            //Move finished games to the archive in the background
+            archiver = config.archiveIntervalSeconds > 0
+                    ? new GameArchiver(model, config.archiveAfterSeconds, config.archiveIntervalSeconds,
+                                       config.archiveBatchSize)
+                    : null;
+            if (archiver != null) {
+                controller.getMetrics().counter("games_archived_total", null, "Finished games moved to the archive.",
+                        archiver::getArchived);
+            }
+
+            //Expire abandoned games and forfeit players who stop moving
+            if (config.joinTimeoutSeconds > 0 || config.moveTimeoutSeconds > 0) {
+                timers = new HashedTimerWheel(config.timerTickMillis, config.timerWheelSize, "game-timers");
+                model.enableTimeouts(timers, config.joinTimeoutSeconds * 1000L, config.moveTimeoutSeconds * 1000L);
+            }
+
+            //Start the binary endpoint for bot clients if it is enabled
+            if (config.binaryPort >= 0) {
+                binaryServer = new BinaryServer(model, config.host, config.binaryPort, config.binaryWorkers,
+                        config.slowSubscriberMillis);
+            }
+
+            //Flush queued game writes before the JVM exits
+            if (shutdownHookAdded.compareAndSet(false, true)) {
+                Runtime.getRuntime().addShutdownHook(new Thread(Bootstrap::stop));
+            }
+
+            //Apply the connector settings once Spark has started Jetty
+            awaitInitialization();
+            EmbeddedJetty.tuneConnector(config);
+
+            //Warn if the route limits can not be reached before Jetty runs out of threads
+            int reserved = EmbeddedJetty.reservedThreads();
+            int threads = config.maxThreads - reserved;
+            if (reserved >= 0 && !controller.getAdmissionControl().fitsThreads(threads)) {
+                logger.warn("The in-flight limits ({} reads, {} moves, {} creates) do not fit in the {} request " +
+                            "threads left of maxThreads; requests will queue for a thread instead of being shed",
+                        config.maxInFlightReads, config.maxInFlightMoves, config.maxInFlightCreates, threads);
+            }
         } catch (GameService.GameServiceException ex) {
             logger.error("Failed to create a GameService instance. Aborting");
+        } catch (IOException ex) {
+            logger.error("Failed to start the binary endpoint", ex);
+        }
+    }
+
+    /**
+     * Stop the server started by main(): the web service, the binary
+     * endpoint and the background workers, then wait for queued game writes
+     * and close the repository. Does nothing if the server is not running.
+     */
+    public static synchronized void stop() {
+        Spark.stop();
+        if (binaryServer != null) {
+            binaryServer.close();
+            binaryServer = null;
+        }
+        if (archiver != null) {
+            archiver.close();
+            archiver = null;
+        }
+        if (timers != null) {
+            timers.close();
+            timers = null;
+        }
+        if (gameService != null) {
+            try {
+                gameService.close(SHUTDOWN_TIMEOUT_MILLIS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            gameService = null;
+        }
+        controller = null;
+    }
+
+    /**
+     * Create the repository the configuration asks for.
+     * @param config
+     * @param dataSource the database for "sqlite"; null for "memory"
+     * @param timings where database operations are recorded
+     * @return the repository
+     * @throws GameService.GameServiceException
+     */
+    private static GameRepository configureRepository(ServerConfig config, DataSource dataSource,
+                                                      PersistenceTimings timings)
+            throws GameService.GameServiceException {
+        if (dataSource != null) {
+            return new SqliteGameRepository(dataSource, timings);
+        }
+        if (config.snapshotFile.isEmpty()) {
+            logger.info("Keeping games in memory only; they are lost at shutdown");
+            return new MemoryGameRepository();
         }
+        logger.info("Keeping games in memory, saved to {} at shutdown", config.snapshotFile);
+        return new MemoryGameRepository(Paths.get(config.snapshotFile));
     }
 
     /**
@@ -0,0 +1,87 @@
+/**
+ * @author Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reading of the Accept-Encoding request header and gzipping of response
+ * bodies, shared by the API and the static assets.
+ */
+public final class ContentEncoding {
+
+    private ContentEncoding() {}
+
+    /**
+     * Whether a client accepts gzipped responses. The codings are matched
+     * with their q-values, so "gzip;q=0" turns gzip down; "*" stands for
+     * gzip when gzip is not listed by name.
+     * @param acceptEncoding the Accept-Encoding header; null if there is none
+     * @return true if gzip has a q-value above zero
+     */
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        double gzip = -1;
+        double any = -1;
+        for (String coding : acceptEncoding.split(",")) {
+            int semicolon = coding.indexOf(';');
+            String name = (semicolon < 0 ? coding : coding.substring(0, semicolon)).trim();
+            if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip")) {
+                gzip = Math.max(gzip, qValue(coding, semicolon));
+            } else if (name.equals("*")) {
+                any = qValue(coding, semicolon);
+            }
+        }
+        return gzip >= 0 ? gzip > 0 : any > 0;
+    }
+
+    /**
+     * Gzip a whole response body. The stream is finished, so the result
+     * ends with the gzip trailer and any client can decode it.
+     * @param content
+     * @return the gzipped bytes
+     */
+    public static byte[] gzip(byte[] content) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(content);
+        } catch (IOException ex) {
+            // A ByteArrayOutputStream does not fail.
+            throw new IllegalStateException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * The q-value of one coding of the header.
+     * @param coding e.g. "gzip;q=0.5"
+     * @param semicolon index of the first ';' in coding; -1 if there is none
+     * @return the q-value; 1 if none is given, 0 if it can not be read
+     */
+    private static double qValue(String coding, int semicolon) {
+        if (semicolon < 0) {
+            return 1;
+        }
+        for (String parameter : coding.substring(semicolon + 1).split(";")) {
+            int equals = parameter.indexOf('=');
+            if (equals >= 0 && parameter.substring(0, equals).trim().equalsIgnoreCase("q")) {
+                try {
+                    return Double.parseDouble(parameter.substring(equals + 1).trim());
+                } catch (NumberFormatException ex) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+}
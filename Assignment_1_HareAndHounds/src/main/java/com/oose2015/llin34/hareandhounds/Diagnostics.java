@@ -0,0 +1,77 @@
+/**
+ * @author Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A snapshot of the server's memory and pools for the admin diagnostics
+ * endpoint: how many games are in memory in each state, how much heap they
+ * are estimated to hold, which games have the largest stalling maps, and
+ * how busy the thread and database pools are.
+ */
+public class Diagnostics {
+    // Games in memory by state name, every state listed.
+    public Map<String, Integer> states = new LinkedHashMap<>();
+    public int games;
+
+    // Estimated heap held by the games in memory, see Game.estimateRetainedBytes().
+    public long estimatedHeapBytes;
+    public long averageGameBytes;
+    public long largestGameBytes;
+
+    // Games with the most stalling positions, largest first.
+    public List<GameFootprint> largestStallingMaps;
+
+    public List<PoolOccupancy> pools;
+
+    /**
+     * The memory footprint of one game.
+     */
+    public static class GameFootprint {
+        public int gameId;
+        public String state;
+        public int moveCount;
+        public int stallingEntries;
+        public long estimatedBytes;
+
+        GameFootprint(Game game) {
+            this.gameId = game.getGameId();
+            this.state = game.getState();
+            this.moveCount = game.getMoveCount();
+            this.stallingEntries = game.getStallingSize();
+            this.estimatedBytes = game.estimateRetainedBytes();
+        }
+    }
+
+    /**
+     * How busy a pool of threads or connections is.
+     */
+    public static class PoolOccupancy {
+        public String name;
+        public int active;
+        public int size;
+        public int max;
+        public int queued;
+
+        /**
+         * Construct a PoolOccupancy.
+         * @param name
+         * @param active threads or connections doing work
+         * @param size threads or connections that exist
+         * @param max most the pool may have; -1 if unbounded
+         * @param queued work waiting for the pool
+         */
+        public PoolOccupancy(String name, int active, int size, int max, int queued) {
+            this.name = name;
+            this.active = active;
+            this.size = size;
+            this.max = max;
+            this.queued = queued;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * @author Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.SparkBase;
+import spark.webserver.SparkServer;
+
+import java.lang.reflect.Field;
+
+/**
+ * Access to the Jetty server that Spark starts for us.
+ *
+ * Spark 2.2 only lets us choose the address, port and thread pool; the
+ * connector is created and started with Spark's own settings, and there is
+ * no hook to build it ourselves. This class reaches the running Jetty
+ * server (Spark keeps it in a protected field of SparkBase) to read its
+ * thread pool and to change the settings a running connector allows.
+ */
+public class EmbeddedJetty extends SparkBase {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddedJetty.class);
+
+    private EmbeddedJetty() { }
+
+    /**
+     * Find the running Jetty server. Call after Spark.awaitInitialization().
+     * @return the server; null if Spark is not running its own server.
+     */
+    public static Server server() {
+        SparkServer sparkServer = SparkBase.server;
+        if (sparkServer == null) {
+            return null;
+        }
+        try {
+            Field field = SparkServer.class.getDeclaredField("server");
+            field.setAccessible(true);
+            return (Server) field.get(sparkServer);
+        } catch (ReflectiveOperationException ex) {
+            logger.warn("Could not reach the Jetty server started by Spark", ex);
+            return null;
+        }
+    }
+
+    /**
+     * How busy the request thread pool of the running server is. Jetty does
+     * not expose the queue of waiting jobs, so queued is reported as -1.
+     * @return the occupancy; null if Spark is not running its own server.
+     */
+    public static Diagnostics.PoolOccupancy threadPoolOccupancy() {
+        Server server = server();
+        if (server == null || !(server.getThreadPool() instanceof QueuedThreadPool)) {
+            return null;
+        }
+        QueuedThreadPool pool = (QueuedThreadPool) server.getThreadPool();
+        return new Diagnostics.PoolOccupancy("requests", pool.getThreads() - pool.getIdleThreads(),
+                pool.getThreads(), pool.getMaxThreads(), -1);
+    }
+
+    /**
+     * Threads of the pool that Jetty keeps for itself: one per acceptor and
+     * one per selector of every connector.
+     * @return the thread count; -1 if Spark is not running its own server.
+     */
+    public static int reservedThreads() {
+        Server server = server();
+        if (server == null) {
+            return -1;
+        }
+        int reserved = 0;
+        for (Connector connector : server.getConnectors()) {
+            if (connector instanceof ServerConnector) {
+                ServerConnector serverConnector = (ServerConnector) connector;
+                reserved += serverConnector.getAcceptors() + serverConnector.getSelectorManager().getSelectorCount();
+            }
+        }
+        return reserved;
+    }
+
+    /**
+     * Apply the connector settings of the configuration to the running
+     * connector. Only the idle timeout can be changed there; it applies to
+     * connections accepted from then on.
+     * @param config
+     */
+    public static void tuneConnector(ServerConfig config) {
+        Server server = server();
+        if (server == null || server.getConnectors().length == 0) {
+            logger.warn("No Jetty connector to tune");
+            return;
+        }
+        ServerConnector connector = (ServerConnector) server.getConnectors()[0];
+
+        connector.setIdleTimeout(config.idleTimeoutMillis);
+        logger.info("Jetty connector: {} acceptors, {} selectors, idle timeout {} ms, keep-alive {}",
+                connector.getAcceptors(), connector.getSelectorManager().getSelectorCount(),
+                connector.getIdleTimeout(), config.keepAlive ? "on" : "off");
+    }
+}
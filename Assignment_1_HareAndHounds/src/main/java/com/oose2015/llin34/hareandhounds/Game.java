@@ -3,14 +3,28 @@
  */
 package com.oose2015.llin34.hareandhounds;
 
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
 import java.io.Serializable;
 import java.lang.reflect.Array;
 import java.util.*;
 
 /**
- * A class that represents a hare-and-hounds game. 
+ * A class that represents a hare-and-hounds game.
+ *
+ * A game is kept compact since every live game stays in memory: the squares
+ * of the pieces are packed into one char and the stalling counts into one
+ * int per position, so there is no object per piece or per position. Its
+ * JSON still has the pieces, board and stalling map of the original layout,
+ * see Adapter.
  */
 // implements Serializable
+@JsonAdapter(Game.Adapter.class)
 public class Game {
 
 	// Game states mapping.
@@ -24,20 +38,63 @@ public class Game {
 		STATES.put(3, "WIN_HARE_BY_ESCAPE");
 		STATES.put(4, "WIN_HARE_BY_STALLING");
 		STATES.put(5, "WIN_HOUND");
+		STATES.put(6, "WIN_HARE_BY_FORFEIT");
+		STATES.put(7, "WIN_HOUND_BY_FORFEIT");
+		STATES.put(8, "EXPIRED");
 	}
 
 
+	// States 0 (TURN_HOUND) to 2 (WAITING_FOR_SECOND_PLAYER) are games
+	// still being played; the later ones are finished.
+	static final int LAST_LIVE_STATE = 2;
+
+	// Size of the grid.
+	private static final int COLUMNS = 5;
+	private static final int ROWS = 3;
+
+	// The hare is piece 0, the hounds pieces 1 to 3.
+	private static final int PIECES = 4;
+
+	// Squares of the pieces at the start of a game.
+	private static final char START_SQUARES = squares(new int[]{4, 1, 0, 1, 1, 0, 1, 2});
+
+	// Stalling entries of a game that is still at its starting position.
+	// Shared by every such game, so it is copied before it is changed.
+	private static final int[] START_STALLING = {position(START_SQUARES) << 2 | 1};
+
 	private int gameId;
-	private int gameState;
+	// Read without the lock by /state polls and the live indexes.
+	private volatile byte gameState;
 	private int hareId;
 	private int houndId;
 
-	// Pieces' information
-	private List<Piece> pieces;
-	private boolean[][] board;
+	// The square (x * ROWS + y) of each piece, four bits per piece starting
+	// with the hare in the lowest bits.
+	private char squares;
+
+	// Storing the stalling state: every position seen so far, packed as
+	// (position << 2 | times seen), sorted by position and sized exactly.
+	// Counting stops at three, which ends the game.
+	private int[] stalling;
+
+	// Number of moves made so far by both players.
+	private volatile int moveCount;
+
+	// Increased with every change of the game, so watchers can tell
+	// whether they have seen the latest state.
+	private volatile int version;
 
-	// Storing the stalling state.
-	private Map<String, Integer> stalling;
+	// Which piece moved in each of the last HISTORY versions (NO_PIECE for
+	// none), four bits per version at version % HISTORY. Only covers the
+	// versions from historyFrom on, since it is not stored with the game;
+	// historyFrom is -1 until the first change.
+	private static final int HISTORY = 16;
+	private static final int NO_PIECE = 0xF;
+	private transient long history;
+	private transient int historyFrom;
+
+	// Numbered moves and premoves of the players; created on the first numbered move.
+	private transient MoveLedger moveLedger;
 
 
 	/**
@@ -62,43 +119,40 @@ public class Game {
 
 		gameState = 2; // WAITING_FOR_SECOND_PLAYER
 
-		// Initialize pieces' position
-		this.pieces = new ArrayList<>();
-		Piece hare = new Piece("HARE", 4, 1);
-		Piece hound1 = new Piece("HOUND", 0, 1);
-		Piece hound2 = new Piece("HOUND", 1, 0);
-		Piece hound3 = new Piece("HOUND", 1, 2);
-		this.pieces.add(hare);
-		this.pieces.add(hound1);
-		this.pieces.add(hound2);
-		this.pieces.add(hound3);
-
-		// Initialize the board.
-		this.board = new boolean[5][3];
-		this.board[0][1] = true;
-		this.board[1][0] = true;
-		this.board[1][2] = true;
-		this.board[4][1] = true;
-		this.stalling = new HashMap<>();
-
-		// Add the initialize board status (pieces' position) into the stalling.
-		updateStalling();
+		// Initialize pieces' position, and the stalling state with it.
+		this.squares = START_SQUARES;
+		this.stalling = START_STALLING;
+		this.historyFrom = -1;
+	}
+
+	// A game read from JSON, see Adapter.
+	private Game() {
+		this.hareId = -1;
+		this.houndId = -1;
+		this.squares = START_SQUARES;
+		this.stalling = START_STALLING;
+		this.historyFrom = -1;
 	}
 
 	/**
 	 * The second player joins this game.
 	 * @param playerId
 	 * @return the piece type of the second player; null if
-	 *         the second player already joined.
+	 *         the second player already joined or the game expired.
 	 */
-	public String joinGame(int playerId) {
-		if (houndId < 0) {
+	public synchronized String joinGame(int playerId) {
+		if (gameState != 2) {
+			// Joined already, or expired while waiting.
+			return null;
+		} else if (houndId < 0) {
 			this.houndId = playerId;
 			this.gameState = 0; // Hound moves first.
+			recordChange(-1);
 			return "HOUND";
 		} else if (hareId < 0) {
 			this.hareId = playerId;
 			this.gameState = 0; // Hound moves first.
+			recordChange(-1);
 			return "HARE";
 		} else {
 			// Second player already joined.
@@ -112,11 +166,87 @@ public class Game {
 
 	public int getHoundId() { return this.houndId; }
 	
-	public String getState() { return STATES.get(this.gameState); }
+	public String getState() { return STATES.get((int) this.gameState); }
 
 	public int getStateInt() { return this.gameState; }
 
-	public List<Piece> getPieces() { return pieces; }
+	public int getMoveCount() { return this.moveCount; }
+
+	public int getVersion() { return this.version; }
+
+	/**
+	 * The ledger of numbered moves. Only use it while holding the lock of
+	 * this game.
+	 * @param create whether to create the ledger if the game has none yet
+	 * @return the ledger; null if there is none and create is false.
+	 */
+	public MoveLedger getMoveLedger(boolean create) {
+		if (this.moveLedger == null && create) {
+			this.moveLedger = new MoveLedger();
+		}
+		return this.moveLedger;
+	}
+
+	/**
+	 * Number of distinct board positions remembered for the stalling rule.
+	 * @return stalling map size
+	 */
+	public synchronized int getStallingSize() { return this.stalling.length; }
+
+	/**
+	 * Estimate the heap retained by this game: the game itself, its stalling
+	 * entries and its move ledger. Assumes a 64-bit JVM with compressed
+	 * references (12-byte headers, 4-byte references, 8-byte alignment).
+	 * @return estimated bytes
+	 */
+	public synchronized long estimateRetainedBytes() {
+		// Header, six ints, a long, two references, a byte and a char.
+		long bytes = align(12 + 6 * 4 + 8 + 2 * 4 + 1 + 2);
+
+		// The stalling entries, unless still shared with other new games.
+		if (this.stalling != START_STALLING) {
+			bytes += align(16 + 4L * this.stalling.length);
+		}
+		if (this.moveLedger != null) {
+			bytes += this.moveLedger.estimateRetainedBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Find the name of a game state.
+	 * @param state
+	 * @return state name; null if unknown.
+	 */
+	public static String stateName(int state) { return STATES.get(state); }
+
+	/**
+	 * Find the game state with a given name.
+	 * @param name
+	 * @return state; -1 if unknown.
+	 */
+	public static int stateOf(String name) {
+		for (Map.Entry<Integer, String> entry : STATES.entrySet()) {
+			if (entry.getValue().equals(name)) {
+				return entry.getKey();
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * The pieces at their current positions, the hare first. They are made
+	 * under the lock, so that a move being made at the same time is either
+	 * wholly in them or not at all, and changing them does not change the game.
+	 * @return the pieces
+	 */
+	public synchronized List<Piece> getBoard() {
+		List<Piece> board = new ArrayList<>(PIECES);
+		for (int i = 0; i < PIECES; i++) {
+			board.add(piece(i));
+		}
+		return board;
+	}
 
 	/**
 	 * Find the piece type of the given player id.
@@ -164,28 +294,41 @@ public class Game {
 	 * @param move
 	 * @return true if move succeed; false otherwise.
 	 */
-	public boolean movePiece(Move move){
+	public synchronized boolean movePiece(Move move){
+		// The game may have timed out since the turn was checked.
+		if (this.gameState > 1) {
+			return false;
+		}
+
 		String pieceType = this.getPieceType(move.getPlayerId());
 
+		// Both squares must be on the grid.
+		if (!onGrid(move.getFromX(), move.getFromY()) || !onGrid(move.getToX(), move.getToY())) {
+			return false;
+		}
+
 		// Hounds cannot move backwards.
 		if (pieceType.equals("HOUND") && move.getFromX() > move.getToX()){
 			return false;
 		}
 
 		// Check move to an empty position.
-		if (!this.board[move.getToX()][move.getToY()]){
+		if (!isOccupied(move.getToX(), move.getToY())){
 			// Check move only one step.
 			if(checkMoveOneStep(move)){
-				for(Piece piece: this.pieces){
+				int from = square(move.getFromX(), move.getFromY());
+				for(int i = 0; i < PIECES; i++){
 					// Move the piece.
-					if (piece.getX() == move.getFromX() && piece.getY() == move.getFromY()){
-						piece.setX(move.getToX());
-						piece.setY(move.getToY());
-						this.board[move.getFromX()][move.getFromY()] = false;
-						this.board[move.getToX()][move.getToY()] = true;
-						this.gameState = (this.gameState + 1) % 2;
+					if (squareOf(i) == from){
+						setSquare(i, square(move.getToX(), move.getToY()));
+						this.gameState = (byte) ((this.gameState + 1) % 2);
+						this.moveCount++;
 						updateStalling();
 						checkWin(pieceType);
+						recordChange(i);
+						if (this.gameState > LAST_LIVE_STATE) {
+							GameEvents.gameFinished(this);
+						}
 						return true;
 					}
 				}
@@ -196,36 +339,94 @@ public class Game {
 	}
 
 	/**
-	 * Update the stalling state of this game.
+	 * End the game because its player with the turn, or its second player,
+	 * did not show up in time: a player who does not move forfeits, and a
+	 * game nobody joined expires.
+	 * @param expectedVersion the version the deadline was set for
+	 * @return true if the game ended; false if it changed since the
+	 *         deadline was set or is already finished.
 	 */
-	public void updateStalling(){
-		ArrayList<Integer> pState = new ArrayList<>();
+	public synchronized boolean timeOut(int expectedVersion) {
+		if (this.version != expectedVersion) {
+			return false;
+		}
+		switch (this.gameState) {
+			case 0: this.gameState = 6; break; // WIN_HARE_BY_FORFEIT
+			case 1: this.gameState = 7; break; // WIN_HOUND_BY_FORFEIT
+			case 2: this.gameState = 8; break; // EXPIRED
+			default: return false;
+		}
+		recordChange(-1);
+		GameEvents.gameFinished(this);
+		return true;
+	}
 
-		// Get the three position of hounds.
-		for (int i = 1; i <= 3; i++){
-			Piece piece = this.pieces.get(i);
-			// Use (x * 10 + y) as the key of each position.
-			pState.add(piece.getX() * 10 + piece.getY());
+	/**
+	 * The changes of the board since a version the caller already has: the
+	 * pieces that moved since then, at their current positions. If that
+	 * version is too old to be remembered, or is not a version of this game,
+	 * the whole board is returned instead.
+	 * @param since
+	 * @return the board delta
+	 */
+	public synchronized BoardDelta getBoardSince(int since) {
+		List<BoardDelta.IndexedPiece> changed = new ArrayList<>();
+		if (historyFrom < 0 || since < historyFrom || since > version) {
+			for (int i = 0; i < PIECES; i++) {
+				changed.add(new BoardDelta.IndexedPiece(i, piece(i)));
+			}
+			return new BoardDelta(this.version, getState(), true, changed);
 		}
 
-		Collections.sort(pState);
-		// Add hare's position to the last of the pState list.
-		Piece hare = pieces.get(0);
-		pState.add(hare.getX() * 10 + hare.getY());
+		int moved = 0; // Bit set of moved pieces, so each is sent once.
+		for (int v = since + 1; v <= this.version; v++) {
+			int i = (int) (history >>> (v % HISTORY * 4)) & 0xF;
+			if (i != NO_PIECE && (moved & (1 << i)) == 0) {
+				moved |= 1 << i;
+				changed.add(new BoardDelta.IndexedPiece(i, piece(i)));
+			}
+		}
+		return new BoardDelta(this.version, getState(), false, changed);
+	}
 
-		// Convert list of integers to a string in order to prevent error when
-		// deserializing object form json.
-		String stateStr = "";
-		for (Integer i: pState){
-			stateStr += Integer.toString(i) + "_";
+	/**
+	 * Move to the next version and remember which piece moved in it.
+	 * @param pieceIndex the moved piece; -1 if no piece moved
+	 */
+	private void recordChange(int pieceIndex) {
+		if (this.historyFrom < 0) {
+			this.historyFrom = this.version;
 		}
+		this.version++;
+		int shift = this.version % HISTORY * 4;
+		this.history = this.history & ~(0xFL << shift) | (long) (pieceIndex & NO_PIECE) << shift;
+		// Versions that fell out of the buffer can no longer be served.
+		this.historyFrom = Math.max(this.historyFrom, this.version - HISTORY);
+	}
+
+	/**
+	 * Update the stalling state of this game.
+	 */
+	public void updateStalling(){
+		int position = position(this.squares);
+		int i = findStalling(position);
 
 		// Update Stalling state.
-		int times = 1;
-		if (this.stalling.containsKey(stateStr)){
-			times = this.stalling.get(stateStr) + 1;
+		if (i >= 0) {
+			if ((this.stalling[i] & 3) < 3) {
+				if (this.stalling == START_STALLING) {
+					this.stalling = START_STALLING.clone();
+				}
+				this.stalling[i]++;
+			}
+			return;
 		}
-		this.stalling.put(stateStr, times);
+		int at = -i - 1;
+		int[] grown = new int[this.stalling.length + 1];
+		System.arraycopy(this.stalling, 0, grown, 0, at);
+		grown[at] = position << 2 | 1;
+		System.arraycopy(this.stalling, at, grown, at + 1, this.stalling.length - at);
+		this.stalling = grown;
 	}
 
 
@@ -243,22 +444,23 @@ public class Game {
 	 * @param pieceType
 	 */
 	public void checkWin(String pieceType){
-		Piece hare = this.pieces.get(0);
+		int hareX = squareOf(0) / ROWS;
+		int hareY = squareOf(0) % ROWS;
 
 		// 1.Check whether hare is trapped. Only check when hound moves.
 		// Hare can only be trapped at (2,0), (2,2) or (4,1) since each of
 		// these points has only three outer routes.
 		if (pieceType.equals("HOUND")) {
-			if (hare.getX() == 4 && hare.getY() == 1) {
-				if (this.board[3][0] && this.board[3][1] && this.board[3][2]) {
+			if (hareX == 4 && hareY == 1) {
+				if (isOccupied(3, 0) && isOccupied(3, 1) && isOccupied(3, 2)) {
 					this.gameState = 5; // WIN_HOUND
 				}
-			} else if (hare.getX() == 2 && hare.getY() == 0) {
-				if (this.board[1][0] && this.board[2][1] && this.board[3][0]) {
+			} else if (hareX == 2 && hareY == 0) {
+				if (isOccupied(1, 0) && isOccupied(2, 1) && isOccupied(3, 0)) {
 					this.gameState = 5; // WIN_HOUND
 				}
-			} else if (hare.getX() == 2 && hare.getY() == 2) {
-				if (this.board[1][2] && this.board[2][1] && this.board[3][2]) {
+			} else if (hareX == 2 && hareY == 2) {
+				if (isOccupied(1, 2) && isOccupied(2, 1) && isOccupied(3, 2)) {
 					this.gameState = 5; // WIN_HOUND
 				}
 			}
@@ -267,7 +469,7 @@ public class Game {
 		// 2.Check whether there is no hound to left of the hare.
 		boolean noLeft = true;
 		for (int i = 1; i <= 3; i++){
-			if (this.pieces.get(i).getX() < hare.getX()){
+			if (squareOf(i) / ROWS < hareX){
 				noLeft = false;
 				break;
 			}
@@ -277,8 +479,11 @@ public class Game {
 		}
 
 		// 3.Check stalling.
-		if (this.stalling.containsValue(3)){
-			this.gameState = 4; // WIN_HARE_BY_STALLING
+		for (int entry : this.stalling) {
+			if ((entry & 3) == 3) {
+				this.gameState = 4; // WIN_HARE_BY_STALLING
+				break;
+			}
 		}
 	}
 
@@ -307,5 +512,236 @@ public class Game {
 		// pass all check.
 		return true;
 	}
-}
 
+	/**
+	 * Put a piece on a square without a move, for tests and benchmarks that
+	 * need a board the rules would take many moves to reach. The stalling
+	 * state is not updated.
+	 * @param index 0 for the hare, 1 to 3 for the hounds
+	 * @param x
+	 * @param y
+	 */
+	synchronized void placePiece(int index, int x, int y) {
+		setSquare(index, square(x, y));
+	}
+
+	//-----------------------------------------------------------------------------//
+	// Helper Classes and Methods
+	//-----------------------------------------------------------------------------//
+
+	private static boolean onGrid(int x, int y) {
+		return x >= 0 && x < COLUMNS && y >= 0 && y < ROWS;
+	}
+
+	private static int square(int x, int y) {
+		return x * ROWS + y;
+	}
+
+	private int squareOf(int piece) {
+		return this.squares >> (4 * piece) & 0xF;
+	}
+
+	private void setSquare(int piece, int square) {
+		this.squares = (char) (this.squares & ~(0xF << (4 * piece)) | square << (4 * piece));
+	}
+
+	private boolean isOccupied(int x, int y) {
+		int square = square(x, y);
+		for (int i = 0; i < PIECES; i++) {
+			if (squareOf(i) == square) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Piece piece(int i) {
+		int square = squareOf(i);
+		return new Piece(i == 0 ? "HARE" : "HOUND", square / ROWS, square % ROWS);
+	}
+
+	// Squares packed like the squares field, from {x, y} of each piece.
+	private static char squares(int[] xy) {
+		char squares = 0;
+		for (int i = 0; i < PIECES; i++) {
+			squares |= square(xy[2 * i], xy[2 * i + 1]) << (4 * i);
+		}
+		return squares;
+	}
+
+	/**
+	 * The stalling position of a board: the hounds' squares in increasing
+	 * order, which hound is where does not matter, then the hare's square,
+	 * four bits each.
+	 */
+	private static int position(char squares) {
+		int a = squares >> 4 & 0xF;
+		int b = squares >> 8 & 0xF;
+		int c = squares >> 12 & 0xF;
+		int low = Math.min(a, Math.min(b, c));
+		int high = Math.max(a, Math.max(b, c));
+		return low << 12 | (a + b + c - low - high) << 8 | high << 4 | (squares & 0xF);
+	}
+
+	/**
+	 * Binary search of the stalling entries for a position.
+	 * @return its index; (-insertion point - 1) if it was never seen
+	 */
+	private int findStalling(int position) {
+		int low = 0;
+		int high = this.stalling.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int seen = this.stalling[mid] >>> 2;
+			if (seen < position) {
+				low = mid + 1;
+			} else if (seen > position) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -low - 1;
+	}
+
+	private static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+
+	/**
+	 * Reads and writes games as JSON in the layout they had before they were
+	 * packed: a list of pieces, the board as rows of booleans and the
+	 * stalling map keyed by the squares (x * 10 + y) of the sorted hounds and
+	 * the hare, e.g. "1_10_12_41_". Rows stored by earlier versions load
+	 * unchanged, and earlier versions can load the rows written now. The
+	 * board is derived from the pieces when reading.
+	 */
+	static class Adapter extends TypeAdapter<Game> {
+
+		@Override
+		public void write(JsonWriter out, Game game) throws IOException {
+			if (game == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			out.name("gameId").value(game.gameId);
+			out.name("gameState").value(game.gameState);
+			out.name("hareId").value(game.hareId);
+			out.name("houndId").value(game.houndId);
+
+			out.name("pieces").beginArray();
+			for (int i = 0; i < PIECES; i++) {
+				int square = game.squareOf(i);
+				out.beginObject();
+				out.name("pieceType").value(i == 0 ? "HARE" : "HOUND");
+				out.name("x").value(square / ROWS);
+				out.name("y").value(square % ROWS);
+				out.endObject();
+			}
+			out.endArray();
+
+			out.name("board").beginArray();
+			for (int x = 0; x < COLUMNS; x++) {
+				out.beginArray();
+				for (int y = 0; y < ROWS; y++) {
+					out.value(game.isOccupied(x, y));
+				}
+				out.endArray();
+			}
+			out.endArray();
+
+			out.name("stalling").beginObject();
+			for (int entry : game.stalling) {
+				int position = entry >>> 2;
+				StringBuilder key = new StringBuilder(12);
+				for (int shift = 12; shift >= 0; shift -= 4) {
+					int square = position >> shift & 0xF;
+					key.append(square / ROWS * 10 + square % ROWS).append('_');
+				}
+				out.name(key.toString()).value(entry & 3);
+			}
+			out.endObject();
+
+			out.name("moveCount").value(game.moveCount);
+			out.name("version").value(game.version);
+			out.endObject();
+		}
+
+		@Override
+		public Game read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			Game game = new Game();
+			in.beginObject();
+			while (in.hasNext()) {
+				switch (in.nextName()) {
+					case "gameId": game.gameId = in.nextInt(); break;
+					case "gameState": game.gameState = (byte) in.nextInt(); break;
+					case "hareId": game.hareId = in.nextInt(); break;
+					case "houndId": game.houndId = in.nextInt(); break;
+					case "pieces": readPieces(in, game); break;
+					case "stalling": readStalling(in, game); break;
+					case "moveCount": game.moveCount = in.nextInt(); break;
+					case "version": game.version = in.nextInt(); break;
+					default: in.skipValue(); // The board follows from the pieces.
+				}
+			}
+			in.endObject();
+			return game;
+		}
+
+		private static void readPieces(JsonReader in, Game game) throws IOException {
+			in.beginArray();
+			for (int i = 0; in.hasNext(); i++) {
+				int x = 0;
+				int y = 0;
+				in.beginObject();
+				while (in.hasNext()) {
+					switch (in.nextName()) {
+						case "x": x = in.nextInt(); break;
+						case "y": y = in.nextInt(); break;
+						default: in.skipValue();
+					}
+				}
+				in.endObject();
+				if (i < PIECES && onGrid(x, y)) {
+					game.setSquare(i, square(x, y));
+				}
+			}
+			in.endArray();
+		}
+
+		// Keys that are not four squares on the grid are dropped.
+		private static void readStalling(JsonReader in, Game game) throws IOException {
+			List<Integer> entries = new ArrayList<>();
+			in.beginObject();
+			while (in.hasNext()) {
+				String[] keys = in.nextName().split("_");
+				int times = Math.min(in.nextInt(), 3);
+				int position = 0;
+				for (int i = 0; i < keys.length && keys.length == PIECES; i++) {
+					int key = Integer.parseInt(keys[i]);
+					if (!onGrid(key / 10, key % 10)) {
+						position = -1;
+						break;
+					}
+					position = position << 4 | square(key / 10, key % 10);
+				}
+				if (keys.length == PIECES && position >= 0 && times > 0) {
+					entries.add(position << 2 | times);
+				}
+			}
+			in.endObject();
+
+			int[] stalling = new int[entries.size()];
+			for (int i = 0; i < stalling.length; i++) {
+				stalling[i] = entries.get(i);
+			}
+			Arrays.sort(stalling);
+			game.stalling = stalling;
+		}
+	}
+}
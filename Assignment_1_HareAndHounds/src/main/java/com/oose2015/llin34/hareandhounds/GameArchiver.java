@@ -0,0 +1,88 @@
+/**
+ * @author Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A background job that periodically moves finished games out of the game
+ * table into the archive, so the table the server reads and writes only
+ * holds live and recently finished games. Archived games can still be
+ * looked up through GameService.findGame().
+ */
+public class GameArchiver {
+
+    private final GameService gameService;
+
+    private final long archiveAfterMillis;
+
+    private final int batchSize;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong archived = new AtomicLong();
+
+    private final Logger logger = LoggerFactory.getLogger(GameArchiver.class);
+
+
+    /**
+     * Construct and start the archiver.
+     * @param gameService
+     * @param archiveAfterSeconds how long a game stays in the game table after it finished
+     * @param intervalSeconds time between archive runs
+     * @param batchSize games moved per transaction
+     */
+    public GameArchiver(GameService gameService, int archiveAfterSeconds, int intervalSeconds, int batchSize) {
+        this.gameService = gameService;
+        this.archiveAfterMillis = TimeUnit.SECONDS.toMillis(archiveAfterSeconds);
+        this.batchSize = Math.max(1, batchSize);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "game-archiver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::archive, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Archive every game that finished long enough ago, one batch at a time
+     * so request threads are never locked out of the database for long.
+     * @return number of games archived
+     */
+    public int archive() {
+        long finishedBefore = System.currentTimeMillis() - archiveAfterMillis;
+        int total = 0;
+        try {
+            int archived;
+            do {
+                archived = gameService.archiveFinishedGames(finishedBefore, batchSize);
+                total += archived;
+            } while (archived == batchSize);
+        } catch (GameService.GameServiceException ex) {
+            logger.error("Failed to archive finished games", ex);
+        }
+        if (total > 0) {
+            logger.info("Archived {} finished games", total);
+        }
+        this.archived.addAndGet(total);
+        return total;
+    }
+
+    /**
+     * Number of games archived since the archiver started.
+     * @return archived game count
+     */
+    public long getArchived() { return archived.get(); }
+
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
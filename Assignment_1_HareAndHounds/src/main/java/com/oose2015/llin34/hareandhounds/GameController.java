@@ -5,57 +5,192 @@
 
 package com.oose2015.llin34.hareandhounds;
 
-import com.google.gson.Gson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.Request;
 import spark.Response;
 import spark.Route;
 
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 
+import static com.oose2015.llin34.hareandhounds.AdmissionControl.RouteClass.*;
 import static spark.Spark.*;
 
 public class GameController {
 
     private static final String API_CONTEXT = "/hareandhounds/api/games";
 
+    private static final String STATS_CONTEXT = "/hareandhounds/api";
+
     private final GameService gameService;
 
+    private final ServerConfig config;
+
+    private final JsonTransformer transformer = new JsonTransformer();
+
+    private final AdmissionControl admission;
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+
     private final Logger logger = LoggerFactory.getLogger(GameController.class);
 
     public GameController(GameService gameService) {
+        this(gameService, new ServerConfig());
+    }
+
+    public GameController(GameService gameService, ServerConfig config) {
         this.gameService = gameService;
+        this.config = config;
+        this.admission = new AdmissionControl(config);
+        registerMetrics();
         setupEndpoints();
     }
 
     private void setupEndpoints() {
+        // Ask clients to close the connection after each response when
+        // keep-alive is turned off.
+        if (!config.keepAlive) {
+            before((request, response) -> response.header("Connection", "close"));
+        }
+
         // Create new game
-        post(API_CONTEXT, "application/json", (request, response) -> {
+        post(API_CONTEXT, "application/json", metered("create", json(admit(CREATE, (request, response) -> {
             try {
-                if (request.body().contains("HOUND") ||
-                    request.body().contains("HARE")     ){
-                    // The pieceType should be "HOUND" or "HARE."
-                    GameInfo gameInfo = gameService.createNewGame(request.body());
-                    if (gameInfo != null){
-                        response.status(201);
-                        return gameInfo;
-                    }
-                }
+                // The pieceType should be "HOUND" or "HARE."
+                String pieceType = RequestParser.parsePieceType(body(request), config.maxRequestBytes);
+                GameInfo gameInfo = gameService.createNewGame(pieceType);
+                response.status(201);
+                return gameInfo;
+            } catch (RequestParser.RequestTooLargeException ex) {
+                response.status(413);
+            } catch (RequestParser.MalformedRequestException ex) {
                 response.status(400);
             } catch (GameService.GameServiceException ex) {
                 logger.error("Failed to create new game!");
                 response.status(500);
             }
             return Collections.EMPTY_MAP;
-        }, new JsonTransformer());
+        }))));
+
+        // List games, a page at a time: ?state=&after=&limit=
+        get(API_CONTEXT, "application/json", metered("list", json(admit(READ, (request, response) -> {
+            try {
+                String stateName = request.queryParams("state");
+                int state = stateName == null ? -1 : Game.stateOf(stateName);
+                int after = intParam(request, "after", -1);
+                int limit = intParam(request, "limit", config.defaultPageSize);
+                if ((stateName != null && state < 0) || after < -1 || limit < 1 || limit > config.maxPageSize) {
+                    response.status(400);
+                    return Collections.EMPTY_MAP;
+                }
+                response.status(200);
+                return gameService.listGames(state, after, limit);
+            } catch (NumberFormatException ex) {
+                response.status(400);
+            } catch (GameService.GameServiceException ex) {
+                logger.error("Failed to list games!");
+                response.status(500);
+            }
+            return Collections.EMPTY_MAP;
+        }))));
+
+        // Create many games at once
+        post(API_CONTEXT + "/batch", "application/json", metered("create_batch", json(admit(CREATE, (request, response) -> {
+            try {
+                List<String> pieceTypes = RequestParser.parseBatchCreate(body(request),
+                        config.maxRequestBytes, config.maxBatchSize);
+                List<GameInfo> gameInfos = gameService.createNewGames(pieceTypes);
+                response.status(201);
+                return gameInfos;
+            } catch (RequestParser.RequestTooLargeException ex) {
+                response.status(413);
+            } catch (RequestParser.MalformedRequestException ex) {
+                response.status(400);
+            } catch (GameService.GameServiceException ex) {
+                logger.error("Failed to create new games!");
+                response.status(500);
+            }
+            return Collections.EMPTY_MAP;
+        }))));
+
+        // Join any game waiting for the given piece type, or create one that
+        // waits for an opponent if there is none.
+        post(API_CONTEXT + "/match", "application/json", metered("match", json(admit(MOVE, (request, response) -> {
+            try {
+                String pieceType = RequestParser.parsePieceType(body(request), config.maxRequestBytes);
+                GameInfo gameInfo = gameService.joinWaitingGame(pieceType);
+                if (gameInfo != null) {
+                    response.status(200);
+                } else {
+                    gameInfo = gameService.createNewGame(pieceType);
+                    response.status(201);
+                }
+                return gameInfo;
+            } catch (RequestParser.RequestTooLargeException ex) {
+                response.status(413);
+            } catch (RequestParser.MalformedRequestException ex) {
+                response.status(400);
+            } catch (GameService.GameServiceException ex) {
+                logger.error("Failed to match a game!");
+                response.status(500);
+            }
+            return Collections.EMPTY_MAP;
+        }))));
+
+        // Operator endpoints
+        setupAdminEndpoints();
+
+        // Get overall win statistics
+        get(STATS_CONTEXT + "/stats", "application/json", metered("stats", json(admit(READ, (request, response) -> {
+            response.status(200);
+            return gameService.getStatistics().getSummary();
+        }))));
+
+        // Get the statistics of one player
+        get(STATS_CONTEXT + "/stats/players/:playerId", "application/json", metered("player_stats", json(admit(READ, (request, response) -> {
+            try {
+                GameStatistics.PlayerStats stats =
+                        gameService.getStatistics().getPlayer(Integer.parseInt(request.params(":playerId")));
+                if (stats != null) {
+                    response.status(200);
+                    return stats;
+                }
+                response.status(404);
+            } catch (NumberFormatException ex) {
+                response.status(400);
+            }
+            return Collections.EMPTY_MAP;
+        }))));
 
-        // Get game board
-        get(API_CONTEXT + "/:gameId" + "/board", "application/json", (request, response) -> {
+        // Get game board. With ?since=<version> only the pieces that moved
+        // since then are sent, or 304 if nothing changed.
+        get(API_CONTEXT + "/:gameId" + "/board", "application/json", metered("board", json(admit(READ, (request, response) -> {
             try {
+                String since = request.queryParams("since");
+                if (since != null) {
+                    BoardDelta delta = gameService.getGameBoardSince(Integer.parseInt(request.params(":gameId")),
+                                                                     Integer.parseInt(since));
+                    if (delta == null) {
+                        response.status(404);
+                    } else if (!delta.snapshot && delta.version == Integer.parseInt(since)) {
+                        response.status(304);
+                    } else {
+                        response.status(200);
+                        return delta;
+                    }
+                    return Collections.EMPTY_MAP;
+                }
+
                 List<Piece> pieces = gameService.getGameBoard(request.params(":gameId"));
                 if (pieces != null) {
                     response.status(200);
@@ -63,15 +198,43 @@ public class GameController {
                 } else {
                     response.status(404);
                 }
+            } catch (NumberFormatException ex) {
+                response.status(400);
             } catch (GameService.GameServiceException ex) {
                 logger.error(String.format("Failed to find the game's board with gameId: %s", request.params(":gameId")));
                 response.status(500);
             }
             return Collections.EMPTY_MAP;
-        }, new JsonTransformer());
+        }))));
+
+        // Spectate a game: the latest frame if it is newer than ?since=,
+        // otherwise 304. The frame's JSON is shared by every spectator.
+        get(API_CONTEXT + "/:gameId" + "/spectate", metered("spectate", admit(READ, (request, response) -> {
+            try {
+                Game game = gameService.findGame(Integer.parseInt(request.params(":gameId")));
+                if (game == null) {
+                    response.status(404);
+                    return "{}";
+                }
+                String since = request.queryParams("since");
+                if (since != null && game.getVersion() <= Integer.parseInt(since)) {
+                    response.status(304);
+                    return "";
+                }
+                response.status(200);
+                response.type("application/json");
+                return gameService.getSpectators().latest(game).json();
+            } catch (NumberFormatException ex) {
+                response.status(400);
+            } catch (GameService.GameServiceException ex) {
+                logger.error(String.format("Failed to find the game with gameId: %s", request.params(":gameId")));
+                response.status(500);
+            }
+            return "{}";
+        })));
 
         // Get game state
-        get(API_CONTEXT + "/:gameId" + "/state", "application/json", (request, response) -> {
+        get(API_CONTEXT + "/:gameId" + "/state", "application/json", metered("state", json(admit(READ, (request, response) -> {
             try {
                 GameInfo gameInfo = gameService.getGameState(request.params(":gameId"));
                 if (gameInfo != null) {
@@ -85,10 +248,10 @@ public class GameController {
                 response.status(500);
             }
             return Collections.EMPTY_MAP;
-        }, new JsonTransformer());
+        }))));
 
         // Join a game
-        put(API_CONTEXT + "/:gameId", "application/json", (request, response) -> {
+        put(API_CONTEXT + "/:gameId", "application/json", metered("join", json(admit(MOVE, (request, response) -> {
             try {
                 GameInfo gameInfo = gameService.joinGame(request.params(":gameId"));
                 if (gameInfo.state.equals("404")) {
@@ -105,13 +268,18 @@ public class GameController {
                 response.status(500);
                 return Collections.EMPTY_MAP;
             }
-        }, new JsonTransformer());
+        }))));
 
         // Play game
-        post(API_CONTEXT + "/:gameId" + "/turns", "application/json", (request, response) -> {
+        post(API_CONTEXT + "/:gameId" + "/turns", "application/json", metered("turns", json(admit(MOVE, (request, response) -> {
             try {
                 // create a move object from json.
-                Move move = new Gson().fromJson(request.body(), Move.class);
+                Move move = RequestParser.parseMove(body(request), config.maxRequestBytes);
+                if (!admission.tryMove(move.getPlayerId())) {
+                    response.header("Retry-After", Integer.toString(config.retryAfterSeconds));
+                    response.status(429);
+                    return Collections.EMPTY_MAP;
+                }
                 String moveResult = gameService.playGame(move);
                 switch (moveResult){
                     case "MOVE_OK":
@@ -129,14 +297,238 @@ public class GameController {
                     case "ILLEGAL_MOVE":
                         response.status(422);
                         break;
+                    case "MOVE_QUEUED":
+                        // Kept as a premove until the player's turn.
+                        response.status(202);
+                        break;
+                    case "OUT_OF_SEQUENCE":
+                    case "STALE_MOVE":
+                    case "TOO_MANY_PREMOVES":
+                    case "PREMOVE_CANCELLED":
+                        response.status(409);
+                        break;
                 }
                 return moveResult;
 
+            } catch (RequestParser.RequestTooLargeException ex) {
+                response.status(413);
+            } catch (RequestParser.MalformedRequestException ex) {
+                response.status(400);
             } catch (GameService.GameServiceException ex) {
                 logger.error("Failed to create new game!");
                 response.status(500);
             }
             return Collections.EMPTY_MAP;
-        }, new JsonTransformer());
+        }))));
+    }
+
+    private void setupAdminEndpoints() {
+        // Server metrics in the Prometheus text format, open to any scraper
+        get("/metrics", (request, response) -> {
+            response.type("text/plain; version=0.0.4");
+            return metrics.scrape();
+        });
+
+        // The diagnostics name games and players, so they need the admin token
+        if (config.adminToken.isEmpty()) {
+            return;
+        }
+
+        // Games in memory per state, their estimated heap, the largest
+        // stalling maps (?top=) and the occupancy of the pools
+        get(STATS_CONTEXT + "/admin/diagnostics", "application/json", metered("diagnostics", admin(json(admit(READ, (request, response) -> {
+            try {
+                int top = intParam(request, "top", 10);
+                if (top < 0 || top > config.maxPageSize) {
+                    response.status(400);
+                    return Collections.EMPTY_MAP;
+                }
+                response.status(200);
+                return getDiagnostics(top);
+            } catch (NumberFormatException ex) {
+                response.status(400);
+            }
+            return Collections.EMPTY_MAP;
+        })))));
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * Run a route only if its route class has room for another request;
+     * otherwise answer 503 with Retry-After right away.
+     * @param routeClass
+     * @param route
+     * @return a route guarded by the admission control
+     */
+    private Route admit(AdmissionControl.RouteClass routeClass, Route route) {
+        return (request, response) -> {
+            if (!admission.tryEnter(routeClass)) {
+                response.header("Retry-After", Integer.toString(config.retryAfterSeconds));
+                response.status(503);
+                return Collections.EMPTY_MAP;
+            }
+            try {
+                return route.handle(request, response);
+            } finally {
+                admission.exit(routeClass);
+            }
+        };
+    }
+
+    /**
+     * Run a route only for requests that carry the admin token; answer 401
+     * to the others.
+     * @param route
+     * @return a route guarded by the admin token
+     */
+    private Route admin(Route route) {
+        byte[] expected = ("Bearer " + config.adminToken).getBytes(StandardCharsets.UTF_8);
+        return (request, response) -> {
+            String authorization = request.headers("Authorization");
+            if (authorization == null
+                    || !MessageDigest.isEqual(expected, authorization.getBytes(StandardCharsets.UTF_8))) {
+                response.header("WWW-Authenticate", "Bearer");
+                response.status(401);
+                return "";
+            }
+            return route.handle(request, response);
+        };
+    }
+
+    /**
+     * Count a route's requests by status code and record their latency,
+     * including the rendering of the response.
+     * @param name route label in the metrics
+     * @param route
+     * @return a route that records its metrics
+     */
+    private Route metered(String name, Route route) {
+        MetricsRegistry.RouteMetrics routeMetrics = metrics.route(name);
+        return (request, response) -> {
+            long start = routeMetrics.begin();
+            int status = 500;
+            try {
+                Object body = route.handle(request, response);
+                status = response.raw().getStatus();
+                return body;
+            } finally {
+                routeMetrics.end(start, status);
+            }
+        };
+    }
+
+    private void registerMetrics() {
+        for (int state = 0; state <= Game.LAST_LIVE_STATE; state++) {
+            int s = state;
+            metrics.gauge("live_games", "state=\"" + Game.stateName(s) + "\"", "Games being played, by state.",
+                    () -> gameService.getLiveGameCount(s));
+        }
+        metrics.gauge("cached_games", null, "Games held in memory, finished ones included.",
+                gameService::getCachedGameCount);
+        metrics.gauge("pending_timeouts", null, "Join and move deadlines waiting on the timer wheel.",
+                gameService::getPendingTimeouts);
+        for (AdmissionControl.RouteClass routeClass : AdmissionControl.RouteClass.values()) {
+            metrics.counter("requests_shed_total", "class=\"" + routeClass.name().toLowerCase() + "\"",
+                    "Requests turned away with 503 because their route class was full.",
+                    () -> admission.getShed(routeClass));
+        }
+        metrics.counter("moves_rate_limited_total", null, "Moves turned away with 429 by the per-player rate limit.",
+                admission::getRateLimited);
+        gameService.getTimings().register(metrics);
+        SpectatorHub spectators = gameService.getSpectators();
+        metrics.counter("spectator_frames_published_total", null, "Frames published to spectators.",
+                spectators::getFramesPublished);
+        metrics.counter("spectator_frames_dropped_total", null, "Frames skipped by spectators that fell behind.",
+                spectators::getFramesDropped);
+        metrics.counter("spectator_slow_subscribers_total", null, "Spectator connections closed for being too slow.",
+                spectators::getSlowSubscribers);
+        metrics.gauge("spectated_games", null, "Live games with a spectator channel.", spectators::getWatchedGames);
+    }
+
+    /**
+     * The body of a request, unread. Bodies that announce more than
+     * maxRequestBytes are turned down before any of it is read. Spark's
+     * request wrapper copies the whole body into memory on
+     * getInputStream(), so the stream is taken from the request it wraps.
+     * @param request
+     * @return the body
+     * @throws IOException if the body can not be read
+     * @throws RequestParser.RequestTooLargeException if the body is too large
+     */
+    private InputStream body(Request request) throws IOException, RequestParser.RequestTooLargeException {
+        ServletRequest raw = request.raw();
+        if (raw.getContentLength() > config.maxRequestBytes) {
+            throw new RequestParser.RequestTooLargeException(config.maxRequestBytes);
+        }
+        if (raw instanceof ServletRequestWrapper) {
+            raw = ((ServletRequestWrapper) raw).getRequest();
+        }
+        return raw.getInputStream();
+    }
+
+    private static int intParam(Request request, String name, int defaultValue) {
+        String value = request.queryParams(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public AdmissionControl getAdmissionControl() { return admission; }
+
+    /**
+     * Take the game census of the service and add the request pools: the
+     * Jetty thread pool and the in-flight requests of each route class.
+     * @param top number of largest stalling maps to list
+     * @return the diagnostics
+     */
+    public Diagnostics getDiagnostics(int top) {
+        Diagnostics diagnostics = gameService.getDiagnostics(top);
+        Diagnostics.PoolOccupancy threads = EmbeddedJetty.threadPoolOccupancy();
+        if (threads != null) {
+            diagnostics.pools.add(0, threads);
+        }
+        for (AdmissionControl.RouteClass routeClass : AdmissionControl.RouteClass.values()) {
+            int inFlight = admission.getInFlight(routeClass);
+            if (inFlight >= 0) {
+                diagnostics.pools.add(new Diagnostics.PoolOccupancy(routeClass.name().toLowerCase() + "_requests",
+                        inFlight, inFlight, admission.getLimit(routeClass), 0));
+            }
+        }
+        return diagnostics;
+    }
+
+    public MetricsRegistry getMetrics() { return metrics; }
+
+    /**
+     * Render the result of a route as JSON. Responses of at least
+     * compressionThreshold bytes are gzipped when the client accepts it.
+     * The body is written and committed here: Spark 2.2 only flushes the
+     * gzip stream it wraps around a body, so its gzipped responses lack the
+     * gzip trailer.
+     * @param route
+     * @return a route that has written the rendered JSON
+     */
+    private Route json(Route route) {
+        return (request, response) -> {
+            Object model = route.handle(request, response);
+            if (response.raw().getStatus() == 304) {
+                // Not modified: the client keeps what it has, so send no body.
+                return "";
+            }
+            byte[] body = transformer.render(model).getBytes(StandardCharsets.UTF_8);
+            if (body.length >= config.compressionThreshold) {
+                response.header("Vary", "Accept-Encoding");
+                if (ContentEncoding.acceptsGzip(request.headers("Accept-Encoding"))) {
+                    response.header("Content-Encoding", "gzip");
+                    body = ContentEncoding.gzip(body);
+                }
+            }
+            response.raw().setContentLength(body.length);
+            OutputStream out = response.raw().getOutputStream();
+            out.write(body);
+            out.flush();
+            return "";
+        };
     }
 }
@@ -0,0 +1,134 @@
+/**
+ * @author Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+/**
+ * Java Flight Recorder events of the game lifecycle, so a recording shows
+ * gameplay next to GC pauses and lock contention. Enable them with e.g.
+ * -XX:StartFlightRecording:settings=default or a .jfc file that turns on
+ * the hareandhounds.* events.
+ *
+ * The events themselves are in JfrGameEvents, which is loaded reflectively
+ * so that the server still runs on JVMs without JFR (Java 8, or a JRE
+ * without the jdk.jfr module); there every event is dropped.
+ */
+public final class GameEvents {
+
+    private static final Recorder RECORDER = loadRecorder();
+
+    private GameEvents() {}
+
+    /**
+     * Record that a game was created.
+     * @param gameId
+     * @param playerId the first player
+     * @param pieceType piece of the first player
+     */
+    public static void gameCreated(int gameId, int playerId, String pieceType) {
+        RECORDER.gameCreated(gameId, playerId, pieceType);
+    }
+
+    /**
+     * Record that a second player joined a game.
+     * @param gameId
+     * @param playerId
+     * @param pieceType piece of the joining player
+     * @param matched whether the game was found by matchmaking
+     */
+    public static void playerJoined(int gameId, int playerId, String pieceType, boolean matched) {
+        RECORDER.playerJoined(gameId, playerId, pieceType, matched);
+    }
+
+    /**
+     * Start timing a move. The move is recorded if it is committed.
+     * @return the timer
+     */
+    public static MoveTimer beginMove() {
+        return RECORDER.beginMove();
+    }
+
+    /**
+     * Record that a move was turned down.
+     * @param move
+     * @param reason the result of Game.checkTurns() or "ILLEGAL_MOVE"
+     */
+    public static void moveRejected(Move move, String reason) {
+        RECORDER.moveRejected(move, reason);
+    }
+
+    /**
+     * Record that a game ended.
+     * @param game the game in its terminal state
+     */
+    public static void gameFinished(Game game) {
+        RECORDER.gameFinished(game);
+    }
+
+    /**
+     * Record a database write.
+     * @param operation
+     * @param gameId -1 if the write is for several games
+     * @param rows
+     * @param openNanos time spent getting a connection
+     * @param executeNanos time spent running the SQL
+     */
+    public static void persistenceFlush(PersistenceTimings.Operation operation, int gameId, int rows,
+                                        long openNanos, long executeNanos) {
+        RECORDER.persistenceFlush(operation, gameId, rows, openNanos, executeNanos);
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * A move being played. Its duration covers checking the turn and moving
+     * the piece, including waiting for the game's lock.
+     */
+    public interface MoveTimer {
+        /**
+         * Stop timing and record the move if it is recorded at all.
+         * @param game
+         * @param played
+         * @param premove whether it was played from the premove queue
+         */
+        void commit(Game game, Move played, boolean premove);
+    }
+
+    private static final MoveTimer UNTIMED = (game, played, premove) -> { };
+
+    /**
+     * Where the events go. Records nothing unless overridden.
+     */
+    interface Recorder {
+        default void gameCreated(int gameId, int playerId, String pieceType) {}
+
+        default void playerJoined(int gameId, int playerId, String pieceType, boolean matched) {}
+
+        default MoveTimer beginMove() { return UNTIMED; }
+
+        default void moveRejected(Move move, String reason) {}
+
+        default void gameFinished(Game game) {}
+
+        default void persistenceFlush(PersistenceTimings.Operation operation, int gameId, int rows,
+                                      long openNanos, long executeNanos) {}
+    }
+
+    /**
+     * Load JfrGameEvents reflectively, so that the server still runs on
+     * JVMs without JFR.
+     * @return the JFR recorder; one that records nothing if the JVM has no JFR
+     */
+    private static Recorder loadRecorder() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (Recorder) Class.forName(GameEvents.class.getPackage().getName() + ".JfrGameEvents")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return new Recorder() {};
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.oose2015.llin34.hareandhounds;
+
+/**
+ * Created by Li-Yi Lin.
+ */
+
+import java.util.List;
+
+/**
+ * A class that stores one page of a game listing for returning to the
+ * front end. The next page is requested with after=nextAfter.
+ */
+public class GamePage {
+    public List<GameInfo> games;
+    public Integer nextAfter;
+
+
+    /**
+     * Construct a GamePage.
+     * @param games
+     * @param nextAfter gameId to continue after; null if this is the last page
+     */
+    public GamePage(List<GameInfo> games, Integer nextAfter){
+        this.games = games;
+        this.nextAfter = nextAfter;
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * @author Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import java.util.List;
+
+/**
+ * Where GameService keeps its games once they are out of its hands: the
+ * stored copy of every game, finished games after they are dropped from
+ * memory, the archive and the win statistics.
+ *
+ * Writes are split in two. insertGame() and updateGame() are called on the
+ * request thread while the game is locked, and take whatever they need from
+ * the game right away; the Write they return does the storing and may be
+ * run later on another thread. Writes of one game are run in the order they
+ * were taken.
+ *
+ * See SqliteGameRepository and MemoryGameRepository.
+ */
+public interface GameRepository {
+
+    /**
+     * The stored games that are not finished yet (states 0 to 2), read once
+     * at startup.
+     * @return the games
+     * @throws GameService.GameServiceException
+     */
+    List<Game> loadLiveGames() throws GameService.GameServiceException;
+
+    /**
+     * The largest game id and player id ever stored, archived games
+     * included, read once at startup.
+     * @return {largest game id, largest player id}; both null if no game was stored yet
+     * @throws GameService.GameServiceException
+     */
+    Integer[] maxIds() throws GameService.GameServiceException;
+
+    /**
+     * Find a stored game, archived or not.
+     * @param gameId
+     * @return the game as last stored; null if there is none
+     * @throws GameService.GameServiceException
+     */
+    Game findGame(int gameId) throws GameService.GameServiceException;
+
+    /**
+     * The ids of finished games in a state, in gameId order.
+     * @param state a terminal state
+     * @param after list games with a larger gameId than this; -1 to start
+     * @param limit largest number of ids to return
+     * @return the ids
+     * @throws GameService.GameServiceException
+     */
+    List<Integer> listFinishedGames(int state, int after, int limit) throws GameService.GameServiceException;
+
+    /**
+     * Take a new game for storing.
+     * @param game
+     * @return the write that stores it
+     */
+    Write insertGame(Game game);
+
+    /**
+     * Store many new games at once, all or none of them.
+     * @param games
+     * @throws GameService.GameServiceException if the games could not be stored
+     */
+    void insertGames(List<Game> games) throws GameService.GameServiceException;
+
+    /**
+     * Take the current state of a game for storing.
+     * @param game
+     * @param finishedAt the time (in ms) the game ended; 0 while it is being played
+     * @return the write that stores it
+     */
+    Write updateGame(Game game, long finishedAt);
+
+    /**
+     * Move games that finished before the given time to the archive,
+     * oldest gameIds first.
+     * @param finishedBefore only games finished before this time (ms) are archived
+     * @param batchSize largest number of games to archive
+     * @return the ids of the archived games
+     * @throws GameService.GameServiceException
+     */
+    List<Integer> archiveFinishedGames(long finishedBefore, int batchSize) throws GameService.GameServiceException;
+
+    /**
+     * The win statistics, with the totals stored so far.
+     * @return the statistics
+     * @throws GameService.GameServiceException
+     */
+    GameStatistics loadStatistics() throws GameService.GameServiceException;
+
+    /**
+     * Add a game that just finished to the stored statistics; it is already
+     * counted in the ones in memory.
+     * @param game a game in a terminal state
+     * @throws GameService.GameServiceException
+     */
+    void storeStatistics(Game game) throws GameService.GameServiceException;
+
+    /**
+     * Called once the last write has run, when the server shuts down.
+     * @throws GameService.GameServiceException
+     */
+    void close() throws GameService.GameServiceException;
+
+    /**
+     * A write that can be run now or handed to the persistence executor.
+     */
+    interface Write {
+        void run() throws GameService.GameServiceException;
+    }
+}
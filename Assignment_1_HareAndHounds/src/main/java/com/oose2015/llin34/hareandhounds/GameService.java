@@ -5,26 +5,80 @@
 
 package com.oose2015.llin34.hareandhounds;
 
-import com.google.gson.Gson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.sql2o.Connection;
-import org.sql2o.Sql2o;
-import org.sql2o.Sql2oException;
 
 import javax.sql.DataSource;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.oose2015.llin34.hareandhounds.Game.LAST_LIVE_STATE;
 
 public class GameService {
 
-    private Sql2o db;
+    // Queue entries of games that stopped waiting are purged once there are
+    // more of them than this and than waiting games.
+    private static final int MIN_STALE_PURGE = 1024;
+
+    // Where games are stored; memory only holds the live and recent ones.
+    private final GameRepository repository;
+
+    // Next ids to hand out, following the largest ids in the repository.
+    // Ids are reserved with one atomic step, so concurrent creates and
+    // joins never get the same id.
+    private final AtomicInteger gameIds = new AtomicInteger();
+
+    private final AtomicInteger playerIds = new AtomicInteger();
+
+    // Games in memory, by gameId.
+    private final Map<Integer, Game> games = new ConcurrentHashMap<>();
+
+    // Games waiting for a second player, by the piece type they still need,
+    // in the order they started waiting. Pairing takes the head and adding
+    // goes to the tail, both in constant time. A game that is joined by id,
+    // expires or is archived is only dropped from waitingGameIds, which is
+    // the claim every pairing must win; its queue entry goes stale and is
+    // skipped when it reaches the head, or purged by stopWaiting() once the
+    // stale entries outnumber the waiting games.
+    private final Queue<Game> waitingForHare = new ConcurrentLinkedQueue<>();
+    private final Queue<Game> waitingForHound = new ConcurrentLinkedQueue<>();
+    private final Set<Integer> waitingGameIds = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger staleWaitingEntries = new AtomicInteger();
+
+    // Index of live games (states 0 to 2) by gameId, overall and per state.
+    // Finished games are listed from the repository.
+    private final ConcurrentSkipListMap<Integer, Game> liveGames = new ConcurrentSkipListMap<>();
+    private final List<ConcurrentSkipListMap<Integer, Game>> liveGamesByState = new ArrayList<>();
+
+    // Spectators of live games, sent every change of the games they watch.
+    private final SpectatorHub spectators = new SpectatorHub();
 
-    private static int gameIds = 0;
+    // Win statistics, updated as games finish.
+    private final GameStatistics statistics;
 
-    private static int playerIds = 0;
+    // Runs database writes off the request threads; null to write synchronously.
+    private final PersistenceExecutor persistence;
 
-    public List<Game> Games;
+    // Deadlines of live games, one per game, replaced on every join and
+    // move. Null timers means games never time out.
+    private volatile HashedTimerWheel timers;
+    private volatile long joinTimeoutMillis;
+    private volatile long moveTimeoutMillis;
+    private final Map<Integer, HashedTimerWheel.Timeout> deadlines = new ConcurrentHashMap<>();
+
+    // Time spent in each phase of every database operation.
+    private final PersistenceTimings timings;
 
     private final Logger logger = LoggerFactory.getLogger(GameService.class);
 
@@ -36,136 +90,182 @@ public class GameService {
      * @param dataSource
      */
     public GameService(DataSource dataSource) throws GameServiceException {
-        this.Games = new ArrayList<>();
-        db = new Sql2o(dataSource);
-
-        //Create the schema for the database if necessary. This allows this
-        //program to mostly self-contained. But this is not always what you want;
-        //sometimes you want to create the schema externally via a script.
-        try (Connection conn = db.open()) {
-            String sql = "CREATE TABLE IF NOT EXISTS game (game_id INTEGER PRIMARY KEY, " +
-                                                          "bigger_player_id INTEGER, " +
-                                                          "game_json STRING, game_state INTEGER)";
-            conn.createQuery(sql).executeUpdate();
-
-            // Load existing but not finished games.
-            loadGames();
-
-            // Update the counters for game id and player id if some games are
-            // already stored in the database.
-            int val = 0;
-            sql = "SELECT MAX(game_id) FROM game";
-            if (conn.createQuery(sql).executeScalar(Integer.class) != null) {
-                val = conn.createQuery(sql).executeScalar(Integer.class) + 1;
-                this.gameIds = val;
-            }
+        this(dataSource, null);
+    }
 
-            sql = "SELECT MAX(bigger_player_id) FROM game";
-            if (conn.createQuery(sql).executeScalar(Integer.class) != null){
-                val = conn.createQuery(sql).executeScalar(Integer.class) + 1;
-                this.playerIds = val;
-            }
+    /**
+     * Construct the model with a pre-defined datasource and an executor that
+     * writes game rows in the background. Request threads then only update
+     * the in-memory game and never wait on SQLite.
+     *
+     * @param dataSource
+     * @param persistence executor for database writes; null to write synchronously
+     */
+    public GameService(DataSource dataSource, PersistenceExecutor persistence) throws GameServiceException {
+        this(dataSource, persistence, new PersistenceTimings(new ServerConfig().slowQueryMillis));
+    }
+
+    /**
+     * Construct the model with a pre-defined datasource, an executor for
+     * background writes and the timings that database operations are
+     * recorded in.
+     *
+     * @param dataSource
+     * @param persistence executor for database writes; null to write synchronously
+     * @param timings
+     */
+    public GameService(DataSource dataSource, PersistenceExecutor persistence, PersistenceTimings timings)
+            throws GameServiceException {
+        this(new SqliteGameRepository(dataSource, timings), persistence, timings);
+    }
+
+    /**
+     * Construct the model on a repository, e.g. a MemoryGameRepository to
+     * play without a database. Games that are not finished yet are loaded
+     * from it.
+     *
+     * @param repository
+     * @param persistence executor for repository writes; null to write synchronously
+     * @param timings
+     */
+    public GameService(GameRepository repository, PersistenceExecutor persistence, PersistenceTimings timings)
+            throws GameServiceException {
+        this.repository = repository;
+        this.persistence = persistence;
+        this.timings = timings;
+        for (int state = 0; state <= LAST_LIVE_STATE; state++) {
+            liveGamesByState.add(new ConcurrentSkipListMap<>());
+        }
+
+        // Load existing but not finished games.
+        loadGames();
 
-        } catch(Sql2oException ex) {
-            logger.error("Failed to create schema at startup", ex);
-            throw new GameServiceException("Failed to create schema at startup", ex);
+        // Update the counters for game id and player id if some games are
+        // already stored in the repository or its archive.
+        Integer[] maxIds = repository.maxIds();
+        if (maxIds[0] != null) {
+            gameIds.set(maxIds[0] + 1);
         }
+        if (maxIds[1] != null) {
+            playerIds.set(maxIds[1] + 1);
+        }
+
+        this.statistics = repository.loadStatistics();
     }
 
 
     /**
-     * Fetch all Game entries in the list
-     * @return List of all Game entries
+     * Load the games that are not finished yet from the repository.
      */
     public void loadGames() throws GameServiceException {
-        // Only reload games that are not finished yet (game_state <= 2).
-        String sql = "SELECT game_json FROM game WHERE game_state <= 2";
-        try (Connection conn = db.open()) {
-            List<String> gameStrings =  conn.createQuery(sql)
-                .executeAndFetch(String.class);
-
-            // Restore games from query result.
-            Gson gson = new Gson();
-            for (String gameString: gameStrings){
-                Game game = gson.fromJson(gameString, Game.class);
-                this.Games.add(game);
+        for (Game game : repository.loadLiveGames()) {
+            this.games.put(game.getGameId(), game);
+            index(game);
+            if (game.getStateInt() == 2) {
+                waitForSecondPlayer(game);
             }
-
-        } catch(Sql2oException ex) {
-            logger.error("GameService.findAll: Failed to query database", ex);
-            throw new GameServiceException("GameService.findAll: Failed to query database", ex);
         }
     }
 
 
     /**
-     * Use binary search to find the desired game in the Games list.
+     * Find the desired game among the games in memory.
      * @param gameId
      * @return the target game; null if game not found
-     * @throws GameServiceException
      */
-    public Game searchGame(int gameId) throws GameServiceException{
-        int start = 0;
-        int end = Games.size() - 1;
+    public Game searchGame(int gameId) {
+        return games.get(gameId);
+    }
 
-        try {
-            while (start <= end){
-                int mid = start + (end - start) / 2;
-                int midId = Games.get(mid).getGameId();
-                if (midId == gameId){
-                    return Games.get(mid);
-                } else if (midId < gameId){
-                    start = mid + 1;
-                } else {
-                    end = mid - 1;
-                }
-            }
-            return null;
-        } catch(NumberFormatException ex) {
-            logger.error("GameService.searchGame: Game not found", ex);
-            throw new GameServiceException("GameService.searchGame: Game not found", ex);
+
+    /**
+     * Find a game in memory or, if it is finished and no longer held in
+     * memory, in the repository. Finished games are read only, so this is
+     * what /state and /board use; moves and joins only ever need the games
+     * in memory.
+     * @param gameId
+     * @return the game; null if game not found
+     * @throws GameServiceException
+     */
+    public Game findGame(int gameId) throws GameServiceException {
+        Game game = searchGame(gameId);
+        if (game != null || gameId < 0 || gameId >= gameIds.get()) {
+            return game;
         }
+        return repository.findGame(gameId);
     }
 
 
     /**
      * Create a new game.
-     * @param body
-     * @return
+     * @param pieceType "HOUND" or "HARE", the piece of the first player
+     * @return the GameInfo of the created game
      * @throws GameServiceException
      */
-    public GameInfo createNewGame(String body) throws GameServiceException {
-    	String pieceType = body.contains("HOUND")? "HOUND":"HARE";
-        Game game = new Game(this.gameIds, pieceType, this.playerIds);
-        GameInfo gameInfo = new GameInfo(this.gameIds, this.playerIds, pieceType, game.getState());
-
-        // Insert this game to database
-        String gameJson = new Gson().toJson(game);
-
-        String sql = "INSERT INTO game (game_id, bigger_player_id, game_json, game_state) " +
-                                "VALUES ( :gameId, :bigger_player_id, :game_json, :game_state)";
+    public GameInfo createNewGame(String pieceType) throws GameServiceException {
+        int gameId = gameIds.getAndIncrement();
+        int playerId = playerIds.getAndIncrement();
+        Game game = new Game(gameId, pieceType, playerId);
+        GameInfo gameInfo = new GameInfo(gameId, playerId, pieceType, game.getState());
+
+        // Insert this game to the repository
+        persist(gameId, repository.insertGame(game));
+        GameEvents.gameCreated(gameId, playerId, pieceType);
+
+        // Keep this game in memory for future query.
+        this.games.put(gameId, game);
+        index(game);
+        waitForSecondPlayer(game);
+        resetDeadline(game);
+
+        return gameInfo;
+    }
 
-        try (Connection conn = db.open()) {
-            // Insert this game into database.
-        	conn.createQuery(sql)
-                .addParameter("gameId", this.gameIds)
-                .addParameter("bigger_player_id", this.playerIds)
-                .addParameter("game_json", gameJson)
-                .addParameter("game_state", game.getStateInt())
-                .executeUpdate();
 
-            // Add this game to the Games list for future query.
-            this.Games.add(game);
+    /**
+     * Create many games at once, e.g. for a tournament. A block of game and
+     * player ids is reserved up front and all games are stored at once; in
+     * SQLite that is one batched statement in a single transaction, so the
+     * cost of opening a connection and committing is paid once for the
+     * whole batch.
+     *
+     * The insert is always done on this thread, even with a persistence
+     * executor: the games may land on different lanes, and their rows must
+     * exist before any later update of them is written.
+     *
+     * @param pieceTypes "HOUND" or "HARE", the piece of the first player of each game
+     * @return the GameInfo of each created game, in the same order
+     * @throws GameServiceException if the batch could not be stored; no game
+     *         of the batch is created then.
+     */
+    public List<GameInfo> createNewGames(List<String> pieceTypes) throws GameServiceException {
+        int count = pieceTypes.size();
+        int firstGameId = gameIds.getAndAdd(count);
+        int firstPlayerId = playerIds.getAndAdd(count);
+
+        List<Game> games = new ArrayList<>(count);
+        List<GameInfo> gameInfos = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Game game = new Game(firstGameId + i, pieceTypes.get(i), firstPlayerId + i);
+            games.add(game);
+            gameInfos.add(new GameInfo(game.getGameId(), firstPlayerId + i, pieceTypes.get(i), game.getState()));
+        }
 
-            // Increase the static variables.
-            this.gameIds += 1;
-            this.playerIds += 1;
+        repository.insertGames(games);
 
-            return gameInfo;
-        } catch(Sql2oException ex) {
-            logger.error("GameService.createNewGame: Failed to create new game", ex);
-            throw new GameServiceException("GameService.createNewGame: Failed to create new game", ex);
+        // Keep the games in memory for future query.
+        for (Game game : games) {
+            this.games.put(game.getGameId(), game);
         }
+        for (int i = 0; i < count; i++) {
+            Game game = games.get(i);
+            index(game);
+            waitForSecondPlayer(game);
+            resetDeadline(game);
+            GameEvents.gameCreated(game.getGameId(), firstPlayerId + i, pieceTypes.get(i));
+        }
+
+        return gameInfos;
     }
 
 
@@ -176,44 +276,99 @@ public class GameService {
      * @throws GameServiceException
      */
     public GameInfo joinGame(String gameId) throws GameServiceException{
-        try {
-            int gId = Integer.parseInt(gameId);
+        return joinGame(parseGameId(gameId));
+    }
 
-            // Create return GameInfo.
-            GameInfo gameInfo = new GameInfo(gId, this.playerIds, "", "");
 
-            // Find the game.
-            Game game = searchGame(gId);
-            if (game == null){
-                gameInfo.state = "404";
-                return gameInfo;
-            }
+    /**
+     * Join a game according to a given gameId.
+     * @param gId
+     * @return the GameInfo of a joined game; its state is "404" if the game
+     *         does not exist and "410" if it already has two players.
+     * @throws GameServiceException
+     */
+    public GameInfo joinGame(int gId) throws GameServiceException{
+        // Create return GameInfo.
+        GameInfo gameInfo = new GameInfo(gId, 0, "", "");
+
+        // Find the game.
+        Game game = searchGame(gId);
+        if (game == null){
+            gameInfo.state = "404";
+            return gameInfo;
+        }
 
-            // Join the game.
-            String pieceType = game.joinGame(this.playerIds);
-            if (pieceType == null) {
+        // The lock keeps a racing move or join out until the join is
+        // indexed and written, like playGame() does for moves.
+        synchronized (game) {
+            // Only take a player id once the game is known to be open.
+            if (game.getStateInt() != LAST_LIVE_STATE) {
                 gameInfo.state = "410";
                 return gameInfo;
             }
+            gameInfo.playerId = playerIds.getAndIncrement();
+            String pieceType = game.joinGame(gameInfo.playerId);
+            stopWaiting(game);
 
             gameInfo.state = game.getState();
             gameInfo.pieceType = pieceType;
+            GameEvents.playerJoined(gId, gameInfo.playerId, pieceType, false);
 
-            // Increase the static variable playerIds for next player.
-            this.playerIds += 1;
-
+            index(game);
+            resetDeadline(game);
             updateGameDB(game);
+            spectators.publish(game);
+        }
 
-            return gameInfo;
-        } catch(NumberFormatException ex) {
-            logger.error("GameService.searchGame: Game id is wrong", ex);
-            throw new GameServiceException("GameService.searchGame: Game id is wrong", ex);
+        return gameInfo;
+    }
+
+
+    /**
+     * Join any game that is waiting for a player of the given piece type.
+     * The game that has waited longest is taken from the head of a queue in
+     * constant time, skipping stale entries of games that stopped waiting.
+     * Only the caller that removes the game from waitingGameIds joins it,
+     * under its lock, so two players can never join the same game.
+     * @param pieceType "HOUND" or "HARE", the piece the player wants
+     * @return the GameInfo of the joined game; null if no game is waiting
+     *         for that piece type.
+     * @throws GameServiceException
+     */
+    public GameInfo joinWaitingGame(String pieceType) throws GameServiceException {
+        Queue<Game> waiting = pieceType.equals("HARE") ? waitingForHare : waitingForHound;
+
+        Game game;
+        while ((game = waiting.poll()) != null) {
+            if (!waitingGameIds.remove(game.getGameId())) {
+                // Stopped waiting already.
+                staleWaitingEntries.decrementAndGet();
+                continue;
+            }
+            synchronized (game) {
+                // Skip a game that was joined or expired while it was being taken.
+                if (game.getStateInt() != LAST_LIVE_STATE) {
+                    continue;
+                }
+                int playerId = playerIds.getAndIncrement();
+                game.joinGame(playerId);
+                GameEvents.playerJoined(game.getGameId(), playerId, pieceType, true);
+                index(game);
+                resetDeadline(game);
+                updateGameDB(game);
+                spectators.publish(game);
+                return new GameInfo(game.getGameId(), playerId, pieceType, game.getState());
+            }
         }
+        return null;
     }
 
 
     /**
-     * Check the move and make the move.
+     * Check the move and make the move. A move with a sequence number is
+     * played at most once: a retry gets the result of the first attempt, and
+     * a move sent while the opponent is still to move is kept as a premove
+     * and played as soon as the turn comes ("MOVE_QUEUED").
      * @param move
      * @return status code
      * @throws GameServiceException
@@ -224,15 +379,29 @@ public class GameService {
             Game game = searchGame(move.getGameId());
             if (game == null) { return "INVALID_GAME_ID"; }
 
-            // Check turns.
-            String check = game.checkTurns(move.getPlayerId());
-            if (!check.equals("OK")) { return check; }
+            // The lock keeps the ledger, the moves they lead to and the
+            // writes of the new state in the same order.
+            synchronized (game) {
+                int movesBefore = game.getMoveCount();
+                String result = move.getSeq() > 0 ? submit(game, move) : apply(game, move, false);
+                playPremoves(game);
+                if (game.getMoveCount() == movesBefore) {
+                    return result;
+                }
 
-            // Move this piece.
-            if (!game.movePiece(move)){ return "ILLEGAL_MOVE"; }
+                index(game);
+                resetDeadline(game);
+                updateGameDB(game);
+                spectators.publish(game);
 
-            updateGameDB(game);
-            return "MOVE_OK";
+                // Only the moves that end a game get here with a terminal
+                // state; later moves are rejected by checkTurns.
+                if (game.getStateInt() > LAST_LIVE_STATE) {
+                    statistics.record(game);
+                    persist(game.getGameId(), () -> repository.storeStatistics(game));
+                }
+                return result;
+            }
 
         } catch(GameServiceException ex) {
             logger.error("GameService.movePiece: Move fail", ex);
@@ -247,17 +416,21 @@ public class GameService {
      * @return gameInfo
      */
     public GameInfo getGameState(String gameId) throws GameServiceException{
-        try {
-            int gId = Integer.parseInt(gameId);
-            Game game = searchGame(gId);
-            if (game == null){
-                return null;
-            }
-            return new GameInfo(gId, 0, "", game.getState());
-        } catch(NumberFormatException ex) {
-            logger.error("GameService.searchGame: Game id is wrong", ex);
-            throw new GameServiceException("GameService.searchGame: Game id is wrong", ex);
+        return getGameState(parseGameId(gameId));
+    }
+
+
+    /**
+     * Search the target game and return its game info.
+     * @param gId
+     * @return gameInfo; null if game not found
+     */
+    public GameInfo getGameState(int gId) throws GameServiceException{
+        Game game = findGame(gId);
+        if (game == null){
+            return null;
         }
+        return new GameInfo(gId, 0, "", game.getState());
     }
 
 
@@ -268,42 +441,212 @@ public class GameService {
      * @throws GameServiceException
      */
     public List<Piece> getGameBoard(String gameId) throws GameServiceException{
-        try {
-            int gId = Integer.parseInt(gameId);
-            Game game = searchGame(gId);
-            if (game == null) {
-                return null;
+        return getGameBoard(parseGameId(gameId));
+    }
+
+
+    /**
+     * Search the target game and return its board info (the position of each pieces).
+     * @param gId
+     * @return a list of PieceInfo; null if game not found
+     * @throws GameServiceException
+     */
+    public List<Piece> getGameBoard(int gId) throws GameServiceException{
+        Game game = findGame(gId);
+        if (game == null) {
+            return null;
+        }
+        return game.getBoard();
+    }
+
+
+    /**
+     * Search the target game and return the changes of its board since a
+     * version the client already has.
+     * @param gId
+     * @param since the version the client has; anything not remembered gets the whole board
+     * @return the board delta; null if game not found
+     * @throws GameServiceException
+     */
+    public BoardDelta getGameBoardSince(int gId, int since) throws GameServiceException {
+        Game game = findGame(gId);
+        if (game == null) {
+            return null;
+        }
+        return game.getBoardSince(since);
+    }
+
+
+    /**
+     * List games in gameId order, one page at a time. Live games are read
+     * from the in-memory index; finished games from the repository.
+     * @param state the state to list; -1 for every live game
+     * @param after list games with a larger gameId than this; -1 to start
+     * @param limit largest number of games on the page
+     * @return the page of games
+     * @throws GameServiceException
+     */
+    public GamePage listGames(int state, int after, int limit) throws GameServiceException {
+        List<GameInfo> gameInfos = new ArrayList<>(limit);
+
+        if (state <= LAST_LIVE_STATE) {
+            ConcurrentSkipListMap<Integer, Game> index = state < 0 ? liveGames : liveGamesByState.get(state);
+            for (Game game : index.tailMap(after, false).values()) {
+                if (gameInfos.size() == limit) {
+                    return new GamePage(gameInfos, gameInfos.get(limit - 1).gameId);
+                }
+                gameInfos.add(new GameInfo(game.getGameId(), 0, "", game.getState()));
             }
-            return game.getPieces();
-        } catch(NumberFormatException ex) {
-            logger.error("GameService.searchGame: Game id is wrong", ex);
-            throw new GameServiceException("GameService.searchGame: Game id is wrong", ex);
+            return new GamePage(gameInfos, null);
+        }
+
+        // Ask for one extra game to learn whether there is a next page.
+        List<Integer> gameIds = repository.listFinishedGames(state, after, limit + 1);
+        String stateName = Game.stateName(state);
+        for (int i = 0; i < gameIds.size() && i < limit; i++) {
+            gameInfos.add(new GameInfo(gameIds.get(i), 0, "", stateName));
         }
+        return new GamePage(gameInfos, gameIds.size() > limit ? gameIds.get(limit - 1) : null);
     }
 
 
     /**
-     * Update the status of a game in database.
+     * Move games that finished before the given time to the archive of the
+     * repository, oldest gameIds first, and drop them from memory.
+     * @param finishedBefore only games finished before this time (ms) are archived
+     * @param batchSize largest number of games to archive
+     * @return number of games archived
+     * @throws GameServiceException
+     */
+    public int archiveFinishedGames(long finishedBefore, int batchSize) throws GameServiceException {
+        List<Integer> gameIds = repository.archiveFinishedGames(finishedBefore, batchSize);
+        for (int gameId : gameIds) {
+            Game game = this.games.remove(gameId);
+            if (game != null) {
+                stopWaiting(game);
+            }
+            spectators.drop(gameId);
+        }
+        return gameIds.size();
+    }
+
+
+    /**
+     * Update the status of a game in the repository.
      * @param game
      * @throws GameServiceException
      */
     public void updateGameDB(Game game) throws GameServiceException{
-        String gameJson = new Gson().toJson(game);
+        int gameState = game.getStateInt();
+        long finishedAt = gameState > LAST_LIVE_STATE ? System.currentTimeMillis() : 0;
+
+        persist(game.getGameId(), repository.updateGame(game, finishedAt));
+    }
+
+
+    /**
+     * Start timing games out: a game that waits longer than joinTimeoutMillis
+     * for its second player expires, and a player who takes longer than
+     * moveTimeoutMillis for a move forfeits. Games already in memory get
+     * their deadlines now, counted from this call.
+     * @param timers the wheel that runs the deadlines
+     * @param joinTimeoutMillis zero or less to let games wait forever
+     * @param moveTimeoutMillis zero or less to let players think forever
+     */
+    public void enableTimeouts(HashedTimerWheel timers, long joinTimeoutMillis, long moveTimeoutMillis) {
+        this.joinTimeoutMillis = joinTimeoutMillis;
+        this.moveTimeoutMillis = moveTimeoutMillis;
+        this.timers = timers;
+        for (Game game : liveGames.values()) {
+            resetDeadline(game);
+        }
+    }
+
+
+    public GameStatistics getStatistics() { return statistics; }
 
-        int biggerPlayerId = game.getHareId() > game.getHoundId()? game.getHareId():game.getHoundId();
+    public PersistenceTimings getTimings() { return timings; }
 
-        String sql = "UPDATE game SET game_json = :game_json, bigger_player_id = :bigger_player_id" +
-                ", game_state = :game_state WHERE game_id = :game_id";
-        try (Connection conn = db.open()) {
-            conn.createQuery(sql)
-                    .addParameter("game_json", gameJson)
-                    .addParameter("bigger_player_id", biggerPlayerId)
-                    .addParameter("game_state", game.getStateInt())
-                    .addParameter("game_id", game.getGameId())
-                    .executeUpdate();
-        } catch(Sql2oException ex) {
-            logger.error("Failed to update game database", ex);
-            throw new GameServiceException("Failed to update game database", ex);
+    /**
+     * Number of live games in a state; walks the state's index.
+     * @param state 0 to 2
+     * @return game count
+     */
+    public int getLiveGameCount(int state) { return liveGamesByState.get(state).size(); }
+
+    public int getCachedGameCount() { return games.size(); }
+
+    public int getWaitingGameCount() { return waitingGameIds.size(); }
+
+    /**
+     * The games in memory, in no particular order. The view is live and may
+     * be walked while games are added and dropped.
+     * @return the games
+     */
+    public Collection<Game> getGames() { return games.values(); }
+
+    public long getPendingTimeouts() {
+        HashedTimerWheel wheel = this.timers;
+        return wheel == null ? 0 : wheel.pendingTimeouts();
+    }
+
+    public SpectatorHub getSpectators() { return spectators; }
+
+    /**
+     * Take a census of the games in memory: their count per state, their
+     * estimated heap and the games with the largest stalling maps. Also
+     * reports the lanes of the persistence executor, if writes are queued.
+     * Walks every game in memory, so it is meant for admins, not for polling.
+     * @param top number of largest stalling maps to list
+     * @return the diagnostics; pools other than persistence are left to the caller
+     */
+    public Diagnostics getDiagnostics(int top) {
+        List<Game> games = new ArrayList<>(this.games.values());
+
+        Diagnostics diagnostics = new Diagnostics();
+        for (int state = 0; Game.stateName(state) != null; state++) {
+            diagnostics.states.put(Game.stateName(state), 0);
+        }
+        PriorityQueue<Diagnostics.GameFootprint> largest =
+                new PriorityQueue<>(Comparator.comparingInt((Diagnostics.GameFootprint f) -> f.stallingEntries));
+        for (Game game : games) {
+            Diagnostics.GameFootprint footprint = new Diagnostics.GameFootprint(game);
+            diagnostics.states.merge(footprint.state, 1, Integer::sum);
+            diagnostics.estimatedHeapBytes += footprint.estimatedBytes;
+            diagnostics.largestGameBytes = Math.max(diagnostics.largestGameBytes, footprint.estimatedBytes);
+            largest.add(footprint);
+            if (largest.size() > top) {
+                largest.poll();
+            }
+        }
+        diagnostics.games = games.size();
+        diagnostics.averageGameBytes = games.isEmpty() ? 0 : diagnostics.estimatedHeapBytes / games.size();
+
+        diagnostics.largestStallingMaps = new ArrayList<>(largest);
+        diagnostics.largestStallingMaps.sort((a, b) -> Integer.compare(b.stallingEntries, a.stallingEntries));
+
+        diagnostics.pools = new ArrayList<>();
+        if (persistence != null) {
+            diagnostics.pools.add(new Diagnostics.PoolOccupancy("persistence", persistence.activeTasks(),
+                    persistence.laneCount(), persistence.laneCount(), persistence.queuedTasks()));
+        }
+        return diagnostics;
+    }
+
+
+    /**
+     * Wait for queued background writes to finish, then close the
+     * repository.
+     * @param timeoutMillis
+     */
+    public void close(long timeoutMillis) throws InterruptedException {
+        if (persistence != null && !persistence.shutdown(timeoutMillis)) {
+            logger.warn("Some game writes were still pending at shutdown");
+        }
+        try {
+            repository.close();
+        } catch (GameServiceException ex) {
+            logger.error("Failed to close the game repository", ex);
         }
     }
 
@@ -311,6 +654,195 @@ public class GameService {
     // Helper Classes and Methods
     //-----------------------------------------------------------------------------//
 
+    private int parseGameId(String gameId) throws GameServiceException {
+        try {
+            return Integer.parseInt(gameId);
+        } catch(NumberFormatException ex) {
+            logger.error("GameService.searchGame: Game id is wrong", ex);
+            throw new GameServiceException("GameService.searchGame: Game id is wrong", ex);
+        }
+    }
+
+    /**
+     * Move a game to the live index of its current state, or drop it from the
+     * live indexes once it is finished.
+     */
+    private void index(Game game) {
+        synchronized (game) {
+            int gameId = game.getGameId();
+            int state = game.getStateInt();
+            for (int s = 0; s <= LAST_LIVE_STATE; s++) {
+                if (s != state) {
+                    liveGamesByState.get(s).remove(gameId);
+                }
+            }
+            if (state <= LAST_LIVE_STATE) {
+                liveGamesByState.get(state).put(gameId, game);
+                liveGames.put(gameId, game);
+            } else {
+                liveGames.remove(gameId);
+            }
+        }
+    }
+
+    /**
+     * Replace the deadline of a game with one for its current state. Only the
+     * old timeout is cancelled, so this takes constant time; a deadline that
+     * fires after the game changed anyway does nothing, see Game.timeOut().
+     */
+    private void resetDeadline(Game game) {
+        HashedTimerWheel wheel = this.timers;
+        if (wheel == null) {
+            return;
+        }
+        int state = game.getStateInt();
+        long delay = state == LAST_LIVE_STATE ? joinTimeoutMillis : state < LAST_LIVE_STATE ? moveTimeoutMillis : 0;
+
+        HashedTimerWheel.Timeout old;
+        if (delay > 0) {
+            int version = game.getVersion();
+            old = deadlines.put(game.getGameId(), wheel.schedule(() -> timeOut(game, version), delay));
+        } else {
+            old = deadlines.remove(game.getGameId());
+        }
+        if (old != null) {
+            old.cancel();
+        }
+    }
+
+    // Runs on the timer wheel thread when a deadline passes.
+    private void timeOut(Game game, int version) {
+        synchronized (game) {
+            if (!game.timeOut(version)) {
+                return;
+            }
+            playPremoves(game); // Only cancels them; the game is over.
+            deadlines.remove(game.getGameId());
+            stopWaiting(game);
+            index(game);
+            spectators.publish(game);
+            spectators.drop(game.getGameId());
+            try {
+                updateGameDB(game);
+                // A forfeit is a win; the statistics skip EXPIRED games, which had no opponent.
+                statistics.record(game);
+                persist(game.getGameId(), () -> repository.storeStatistics(game));
+            } catch (GameServiceException ex) {
+                logger.error("Failed to store timed out game {}", game.getGameId(), ex);
+            }
+        }
+    }
+
+    // Check turns and make the move.
+    private static String apply(Game game, Move move, boolean premove) {
+        GameEvents.MoveTimer event = GameEvents.beginMove();
+        String check = game.checkTurns(move.getPlayerId());
+        if (!check.equals("OK")) {
+            GameEvents.moveRejected(move, check);
+            return check;
+        }
+        if (!game.movePiece(move)) {
+            GameEvents.moveRejected(move, "ILLEGAL_MOVE");
+            return "ILLEGAL_MOVE";
+        }
+        event.commit(game, move, premove);
+        return "MOVE_OK";
+    }
+
+    // Play a numbered move, unless it was seen before or has to wait for its turn.
+    private static String submit(Game game, Move move) {
+        String pieceType = game.getPieceType(move.getPlayerId());
+        if (pieceType == null) { return "INVALID_PLAYER_ID"; }
+        int side = MoveLedger.side(pieceType);
+        MoveLedger ledger = game.getMoveLedger(true);
+
+        String previous = ledger.check(side, move.getSeq());
+        if (previous != null) { return previous; }
+
+        String result = apply(game, move, false);
+        if (result.equals("INCORRECT_TURN") && game.getStateInt() < LAST_LIVE_STATE) {
+            // The opponent is still to move.
+            return ledger.queue(side, move) ? "MOVE_QUEUED" : "TOO_MANY_PREMOVES";
+        }
+        ledger.record(side, move.getSeq(), result);
+        return result;
+    }
+
+    // Play the waiting premoves of whoever has the turn, for as long as there are any.
+    private static void playPremoves(Game game) {
+        MoveLedger ledger = game.getMoveLedger(false);
+        if (ledger == null) {
+            return;
+        }
+        while (game.getStateInt() < LAST_LIVE_STATE) {
+            int side = game.getStateInt() == 0 ? MoveLedger.HOUND : MoveLedger.HARE;
+            Move premove = ledger.nextPremove(side);
+            if (premove == null) {
+                return;
+            }
+            String result = apply(game, premove, true);
+            ledger.record(side, premove.getSeq(), result);
+            if (!result.equals("MOVE_OK")) {
+                // The later premoves were planned on this one.
+                ledger.cancelPremoves(side);
+            }
+        }
+        ledger.cancelPremoves(MoveLedger.HOUND);
+        ledger.cancelPremoves(MoveLedger.HARE);
+    }
+
+    private void waitForSecondPlayer(Game game) {
+        Queue<Game> waiting = game.getHareId() < 0 ? waitingForHare : game.getHoundId() < 0 ? waitingForHound : null;
+        if (waiting != null && waitingGameIds.add(game.getGameId())) {
+            waiting.add(game);
+        }
+    }
+
+    // Drop a game that no longer waits for a second player from matchmaking.
+    // Its queue entry stays behind; walk the queues only once stale entries
+    // outnumber the waiting games, so each stopWaiting() costs O(1) amortized.
+    private void stopWaiting(Game game) {
+        if (!waitingGameIds.remove(game.getGameId())) {
+            return;
+        }
+        int stale = staleWaitingEntries.incrementAndGet();
+        if (stale > MIN_STALE_PURGE && stale > waitingGameIds.size()
+                && staleWaitingEntries.compareAndSet(stale, 0)) {
+            int purged = purgeStale(waitingForHare) + purgeStale(waitingForHound);
+            staleWaitingEntries.addAndGet(stale - purged);
+        }
+    }
+
+    private int purgeStale(Queue<Game> waiting) {
+        int purged = 0;
+        for (Iterator<Game> it = waiting.iterator(); it.hasNext(); ) {
+            if (!waitingGameIds.contains(it.next().getGameId())) {
+                it.remove();
+                purged++;
+            }
+        }
+        return purged;
+    }
+
+    /**
+     * Run a write for the given game, either right away on this thread or on
+     * the game's lane of the persistence executor. Background failures can
+     * not reach the client any more, so they are only logged.
+     */
+    private void persist(int gameId, GameRepository.Write write) throws GameServiceException {
+        if (persistence == null) {
+            write.run();
+            return;
+        }
+        persistence.execute(gameId, () -> {
+            try {
+                write.run();
+            } catch (GameServiceException ex) {
+                logger.error("Background write of game {} failed", gameId, ex);
+            }
+        });
+    }
+
     public static class GameServiceException extends Exception {
         public GameServiceException(String message, Throwable cause) {
             super(message, cause);
@@ -0,0 +1,258 @@
+/**
+ * @author Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Win statistics, overall and per player, kept up to date as games finish
+ * instead of being computed from the game table.
+ *
+ * Each finished game is added to the counters in memory here, and the
+ * repository adds it to the totals it stores (see
+ * GameRepository.storeStatistics()), so the totals survive a restart without
+ * ever scanning finished games.
+ *
+ * A player id stands for one seat in one game, not for a person, so there
+ * is no leaderboard: ranking seats would say nothing about who plays well.
+ */
+public class GameStatistics {
+
+    // Terminal game states, see Game.
+    private static final int WIN_HARE_BY_ESCAPE = 3;
+    private static final int WIN_HARE_BY_STALLING = 4;
+    private static final int WIN_HOUND = 5;
+    private static final int WIN_HARE_BY_FORFEIT = 6;
+    private static final int WIN_HOUND_BY_FORFEIT = 7;
+
+    // Names of the counters, as stored by the repositories.
+    private static final String[] COUNTER_NAMES = {"gamesFinished", "winsHareByEscape", "winsHareByStalling",
+            "winsHound", "winsHareByForfeit", "winsHoundByForfeit", "totalMoves"};
+
+    private final LongAdder gamesFinished = new LongAdder();
+    private final LongAdder winsHareByEscape = new LongAdder();
+    private final LongAdder winsHareByStalling = new LongAdder();
+    private final LongAdder winsHound = new LongAdder();
+    private final LongAdder winsHareByForfeit = new LongAdder();
+    private final LongAdder winsHoundByForfeit = new LongAdder();
+    private final LongAdder totalMoves = new LongAdder();
+
+    private final Map<Integer, PlayerStats> players = new ConcurrentHashMap<>();
+
+
+
+    /**
+     * Construct statistics with every counter at zero. Repositories add the
+     * totals they stored with add().
+     */
+    public GameStatistics() {
+    }
+
+    /**
+     * Count a game that just finished.
+     * @param game a game in a terminal state
+     */
+    public void record(Game game) {
+        int state = game.getStateInt();
+        LongAdder wins = counter(state);
+        if (wins == null) {
+            return;
+        }
+        wins.increment();
+        gamesFinished.increment();
+        totalMoves.add(game.getMoveCount());
+
+        recordPlayer(winnerId(game), true, game.getMoveCount());
+        recordPlayer(loserId(game), false, game.getMoveCount());
+    }
+
+    /**
+     * Overall statistics.
+     * @return the current totals
+     */
+    public Summary getSummary() {
+        Summary summary = new Summary();
+        summary.gamesFinished = gamesFinished.sum();
+        summary.winsHareByEscape = winsHareByEscape.sum();
+        summary.winsHareByStalling = winsHareByStalling.sum();
+        summary.winsHound = winsHound.sum();
+        summary.winsHareByForfeit = winsHareByForfeit.sum();
+        summary.winsHoundByForfeit = winsHoundByForfeit.sum();
+        summary.averageGameLength = summary.gamesFinished == 0 ? 0 : (double) totalMoves.sum() / summary.gamesFinished;
+        return summary;
+    }
+
+    /**
+     * Statistics of one player.
+     * @param playerId
+     * @return a copy of the player's statistics; null if the player never finished a game.
+     */
+    public PlayerStats getPlayer(int playerId) {
+        PlayerStats stats = players.get(playerId);
+        if (stats == null) {
+            return null;
+        }
+        synchronized (stats) {
+            return stats.copy();
+        }
+    }
+
+    /**
+     * The counters, for keeping the totals in a repository.
+     * @return the value of every counter by name
+     */
+    Map<String, Long> getCounters() {
+        Map<String, Long> counters = new HashMap<>();
+        for (String name : COUNTER_NAMES) {
+            counters.put(name, counter(name).sum());
+        }
+        return counters;
+    }
+
+    /**
+     * Statistics of every player, for keeping them in a repository.
+     * @return copies of the statistics
+     */
+    List<PlayerStats> getPlayers() {
+        List<PlayerStats> copies = new ArrayList<>(players.size());
+        for (PlayerStats stats : players.values()) {
+            synchronized (stats) {
+                copies.add(stats.copy());
+            }
+        }
+        return copies;
+    }
+
+    /**
+     * Add totals kept by a repository, in the form of getCounters() and
+     * getPlayers().
+     * @param counters
+     * @param players
+     */
+    void add(Map<String, Long> counters, List<PlayerStats> players) {
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            LongAdder counter = counter(entry.getKey());
+            if (counter != null) {
+                counter.add(entry.getValue());
+            }
+        }
+        for (PlayerStats added : players) {
+            PlayerStats stats = this.players.computeIfAbsent(added.playerId, PlayerStats::new);
+            synchronized (stats) {
+                stats.wins += added.wins;
+                stats.losses += added.losses;
+                stats.games += added.games;
+                stats.moves += added.moves;
+            }
+        }
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    private void recordPlayer(int playerId, boolean won, int moves) {
+        PlayerStats stats = players.computeIfAbsent(playerId, PlayerStats::new);
+        synchronized (stats) {
+            if (won) {
+                stats.wins++;
+            } else {
+                stats.losses++;
+            }
+            stats.games++;
+            stats.moves += moves;
+        }
+    }
+
+    /**
+     * Name of the counter of a terminal state.
+     * @param state
+     * @return the name; null if the state is not terminal
+     */
+    static String counterName(int state) {
+        switch (state) {
+            case WIN_HARE_BY_ESCAPE: return "winsHareByEscape";
+            case WIN_HARE_BY_STALLING: return "winsHareByStalling";
+            case WIN_HOUND: return "winsHound";
+            case WIN_HARE_BY_FORFEIT: return "winsHareByForfeit";
+            case WIN_HOUND_BY_FORFEIT: return "winsHoundByForfeit";
+            default: return null;
+        }
+    }
+
+    static int winnerId(Game game) {
+        return houndWon(game.getStateInt()) ? game.getHoundId() : game.getHareId();
+    }
+
+    static int loserId(Game game) {
+        return houndWon(game.getStateInt()) ? game.getHareId() : game.getHoundId();
+    }
+
+    private static boolean houndWon(int state) {
+        return state == WIN_HOUND || state == WIN_HOUND_BY_FORFEIT;
+    }
+
+    private LongAdder counter(int state) {
+        return counter(counterName(state));
+    }
+
+    private LongAdder counter(String name) {
+        if (name == null) {
+            return null;
+        }
+        switch (name) {
+            case "gamesFinished": return gamesFinished;
+            case "winsHareByEscape": return winsHareByEscape;
+            case "winsHareByStalling": return winsHareByStalling;
+            case "winsHound": return winsHound;
+            case "winsHareByForfeit": return winsHareByForfeit;
+            case "winsHoundByForfeit": return winsHoundByForfeit;
+            case "totalMoves": return totalMoves;
+            default: return null;
+        }
+    }
+
+    /**
+     * Overall statistics for returning to the front end.
+     */
+    public static class Summary {
+        public long gamesFinished;
+        public long winsHareByEscape;
+        public long winsHareByStalling;
+        public long winsHound;
+        public long winsHareByForfeit;
+        public long winsHoundByForfeit;
+        public double averageGameLength;
+    }
+
+    /**
+     * Statistics of one player for returning to the front end.
+     */
+    public static class PlayerStats {
+        public int playerId;
+        public int wins;
+        public int losses;
+        public int games;
+        public long moves;
+
+        PlayerStats(int playerId) {
+            this.playerId = playerId;
+        }
+
+        PlayerStats copy() {
+            PlayerStats copy = new PlayerStats(playerId);
+            copy.wins = wins;
+            copy.losses = losses;
+            copy.games = games;
+            copy.moves = moves;
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ * @author Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A hashed timer wheel: a scheduler for a very large number of timeouts
+ * that are usually cancelled before they expire, such as per-game deadlines.
+ *
+ * Timeouts are put in one of wheelSize buckets by their deadline. A single
+ * thread visits one bucket per tick and runs the timeouts in it whose
+ * deadline has passed; timeouts further away than one turn of the wheel
+ * wait the right number of turns. Scheduling and cancelling take constant
+ * time and no thread is needed per timeout. Deadlines are rounded up to the
+ * tick, so a timeout runs at most one tick late.
+ *
+ * Tasks run on the wheel thread and should be short.
+ */
+public class HashedTimerWheel {
+
+    private final long tickNanos;
+
+    private final Bucket[] wheel;
+
+    private final int mask;
+
+    // Timeouts scheduled since the last tick; only the wheel thread files them.
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong pending = new AtomicLong();
+
+    private final Thread worker;
+
+    private final long startTime;
+
+    private volatile boolean running = true;
+
+    private final Logger logger = LoggerFactory.getLogger(HashedTimerWheel.class);
+
+
+    /**
+     * Construct and start a timer wheel.
+     * @param tickMillis length of one tick
+     * @param wheelSize number of buckets, rounded up to a power of two
+     * @param threadName name of the wheel thread
+     */
+    public HashedTimerWheel(long tickMillis, int wheelSize, String threadName) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+
+        this.worker = new Thread(this::run, threadName);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Run a task once the delay has passed.
+     * @param task
+     * @param delayMillis
+     * @return the timeout, which can be cancelled
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        Timeout timeout = new Timeout(task, deadline);
+        pending.incrementAndGet();
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Number of timeouts that are scheduled and have neither run nor been
+     * dropped after cancelling.
+     * @return pending timeout count
+     */
+    public long pendingTimeouts() { return pending.get(); }
+
+    /**
+     * Stop the wheel. Timeouts that have not expired yet never run.
+     */
+    public void close() {
+        running = false;
+        worker.interrupt();
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Wheel thread
+    //-----------------------------------------------------------------------------//
+
+    private void run() {
+        long tick = 0;
+        while (running) {
+            long tickDeadline = (tick + 1) * tickNanos;
+            long sleepNanos = tickDeadline - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException ex) {
+                    if (!running) {
+                        return;
+                    }
+                }
+                continue;
+            }
+
+            fileAdded(tick);
+            expire(wheel[(int) (tick & mask)], tickDeadline);
+            tick++;
+        }
+    }
+
+    // Put the newly scheduled timeouts in their buckets.
+    private void fileAdded(long tick) {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.state.get() == Timeout.CANCELLED) {
+                pending.decrementAndGet();
+                continue;
+            }
+            long expiryTick = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+            wheel[(int) (expiryTick & mask)].add(timeout);
+        }
+    }
+
+    private void expire(Bucket bucket, long tickDeadline) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.state.get() == Timeout.CANCELLED) {
+                bucket.remove(timeout);
+                pending.decrementAndGet();
+            } else if (timeout.remainingRounds <= 0 && timeout.deadline <= tickDeadline) {
+                bucket.remove(timeout);
+                pending.decrementAndGet();
+                if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException ex) {
+                        logger.error("Timer task failed", ex);
+                    }
+                }
+            } else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * A scheduled task.
+     */
+    public static class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        // Owned by the wheel thread.
+        private long remainingRounds;
+        private Timeout next;
+        private Timeout prev;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the timeout. It is dropped from the wheel when the wheel
+         * next visits its bucket.
+         * @return true if it was cancelled; false if it already ran.
+         */
+        public boolean cancel() {
+            return state.compareAndSet(WAITING, CANCELLED);
+        }
+
+        public boolean isExpired() { return state.get() == EXPIRED; }
+    }
+
+    // A doubly linked list of timeouts, so any of them is removed in constant time.
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.prev = tail;
+            timeout.next = null;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.next = null;
+            timeout.prev = null;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * @author Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events of the game lifecycle, see GameEvents.
+ *
+ * This is the only class that uses jdk.jfr. It is compiled for Java 11 in
+ * its own pass (see pom.xml) and only loaded by GameEvents when the JVM has
+ * JFR, so the rest of the server still builds and runs on Java 8.
+ *
+ * When an event is not enabled, emitting it costs an isEnabled() check on
+ * an object the JIT does not even allocate.
+ */
+final class JfrGameEvents implements GameEvents.Recorder {
+
+    private static final String CATEGORY = "Hare and Hounds";
+
+    @Override
+    public void gameCreated(int gameId, int playerId, String pieceType) {
+        GameCreated event = new GameCreated();
+        if (event.isEnabled()) {
+            event.gameId = gameId;
+            event.playerId = playerId;
+            event.pieceType = pieceType;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void playerJoined(int gameId, int playerId, String pieceType, boolean matched) {
+        PlayerJoined event = new PlayerJoined();
+        if (event.isEnabled()) {
+            event.gameId = gameId;
+            event.playerId = playerId;
+            event.pieceType = pieceType;
+            event.matched = matched;
+            event.commit();
+        }
+    }
+
+    @Override
+    public GameEvents.MoveTimer beginMove() {
+        MoveApplied event = new MoveApplied();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void moveRejected(Move move, String reason) {
+        MoveRejected event = new MoveRejected();
+        if (event.isEnabled()) {
+            event.gameId = move.getGameId();
+            event.playerId = move.getPlayerId();
+            event.reason = reason;
+            event.move = describe(move);
+            event.commit();
+        }
+    }
+
+    @Override
+    public void gameFinished(Game game) {
+        GameFinished event = new GameFinished();
+        if (event.isEnabled()) {
+            event.gameId = game.getGameId();
+            event.outcome = game.getState();
+            event.moves = game.getMoveCount();
+            event.commit();
+        }
+    }
+
+    @Override
+    public void persistenceFlush(PersistenceTimings.Operation operation, int gameId, int rows,
+                                 long openNanos, long executeNanos) {
+        PersistenceFlush event = new PersistenceFlush();
+        if (event.isEnabled()) {
+            event.operation = operation.name();
+            event.gameId = gameId;
+            event.rows = rows;
+            event.openTime = openNanos;
+            event.executeTime = executeNanos;
+            event.commit();
+        }
+    }
+
+    private static String describe(Move move) {
+        return "(" + move.getFromX() + "," + move.getFromY() + ")->(" + move.getToX() + "," + move.getToY() + ")";
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Events
+    //-----------------------------------------------------------------------------//
+
+    @Name("hareandhounds.GameCreated")
+    @Label("Game Created")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class GameCreated extends Event {
+        @Label("Game Id") int gameId;
+        @Label("Player Id") int playerId;
+        @Label("Piece Type") String pieceType;
+    }
+
+    @Name("hareandhounds.PlayerJoined")
+    @Label("Player Joined")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class PlayerJoined extends Event {
+        @Label("Game Id") int gameId;
+        @Label("Player Id") int playerId;
+        @Label("Piece Type") String pieceType;
+        @Label("Matched") @Description("Found by matchmaking rather than by game id") boolean matched;
+    }
+
+    /**
+     * A move that was played. Its duration covers checking the turn and
+     * moving the piece, including waiting for the game's lock.
+     */
+    @Name("hareandhounds.MoveApplied")
+    @Label("Move Applied")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class MoveApplied extends Event implements GameEvents.MoveTimer {
+        @Label("Game Id") int gameId;
+        @Label("Player Id") int playerId;
+        @Label("Move") String move;
+        @Label("Move Count") int moveCount;
+        @Label("Premove") @Description("Played from the premove queue") boolean premove;
+
+        @Override
+        public void commit(Game game, Move played, boolean isPremove) {
+            end();
+            if (shouldCommit()) {
+                gameId = played.getGameId();
+                playerId = played.getPlayerId();
+                move = describe(played);
+                moveCount = game.getMoveCount();
+                premove = isPremove;
+                commit();
+            }
+        }
+    }
+
+    @Name("hareandhounds.MoveRejected")
+    @Label("Move Rejected")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class MoveRejected extends Event {
+        @Label("Game Id") int gameId;
+        @Label("Player Id") int playerId;
+        @Label("Reason") String reason;
+        @Label("Move") String move;
+    }
+
+    @Name("hareandhounds.GameFinished")
+    @Label("Game Finished")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class GameFinished extends Event {
+        @Label("Game Id") int gameId;
+        @Label("Outcome") String outcome;
+        @Label("Moves") int moves;
+    }
+
+    @Name("hareandhounds.PersistenceFlush")
+    @Label("Persistence Flush")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class PersistenceFlush extends Event {
+        @Label("Operation") String operation;
+        @Label("Game Id") int gameId;
+        @Label("Rows") int rows;
+        @Label("Open Time") @Timespan(Timespan.NANOSECONDS) long openTime;
+        @Label("Execute Time") @Timespan(Timespan.NANOSECONDS) long executeTime;
+    }
+}
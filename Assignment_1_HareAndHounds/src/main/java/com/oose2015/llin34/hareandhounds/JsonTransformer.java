@@ -10,6 +10,7 @@ import spark.Response;
 import spark.ResponseTransformer;
 
 import java.util.HashMap;
+import java.util.Map;
 
 public class JsonTransformer implements ResponseTransformer {
 
@@ -17,7 +18,9 @@ public class JsonTransformer implements ResponseTransformer {
 
     @Override
     public String render(Object model) {
-        if (model instanceof Response) {
+        // Empty maps are rendered directly; Collections.EMPTY_MAP is not
+        // reflectively accessible to Gson on newer JDKs.
+        if (model instanceof Response || (model instanceof Map && ((Map) model).isEmpty())) {
             return gson.toJson(new HashMap<>());
         }
         return gson.toJson(model);
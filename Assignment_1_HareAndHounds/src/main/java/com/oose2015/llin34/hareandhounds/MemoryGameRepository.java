@@ -0,0 +1,322 @@
+/**
+ * @author Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.oose2015.llin34.hareandhounds.Game.LAST_LIVE_STATE;
+
+/**
+ * Games kept in memory only, for tests, benchmarks and short-lived servers
+ * such as a tournament's: nothing is written to disk while games are
+ * played, and the stored copy of a game is the game itself, so writes cost
+ * a map update at most.
+ *
+ * Games are held as they are until they are archived. Then only their JSON
+ * is kept, as in SqliteGameRepository's game_archive: they can still be
+ * found and listed, but no longer hold their move ledger in memory. With a
+ * snapshot file, the games and the archive are written to it when the
+ * repository is closed and read back when it is constructed. Without one,
+ * everything is gone at shutdown.
+ */
+public class MemoryGameRepository implements GameRepository {
+
+    private static final Type FINISHED_AT = new TypeToken<Map<Integer, Long>>(){}.getType();
+    private static final Type ARCHIVED_COUNTERS = new TypeToken<Map<String, Long>>(){}.getType();
+    private static final Type ARCHIVE = new TypeToken<Map<Integer, String>>(){}.getType();
+    private static final Type ARCHIVED_PLAYERS = new TypeToken<List<GameStatistics.PlayerStats>>(){}.getType();
+
+    // Every game stored and not archived, by gameId.
+    private final Map<Integer, Game> games = new ConcurrentHashMap<>();
+
+    // The JSON of every archived game, by gameId.
+    private final Map<Integer, String> archive = new ConcurrentHashMap<>();
+
+    // Finished games by state, archived or not, in gameId order.
+    private final Map<Integer, ConcurrentSkipListSet<Integer>> finishedByState = new ConcurrentHashMap<>();
+
+    // Finished games that are not archived yet, with the time (in ms) they ended.
+    private final ConcurrentSkipListMap<Integer, Long> finishedAt = new ConcurrentSkipListMap<>();
+
+    // Statistics and largest ids of the archived games, so they need not be parsed.
+    private final GameStatistics archivedStatistics = new GameStatistics();
+    private final AtomicInteger archivedMaxGameId = new AtomicInteger(-1);
+    private final AtomicInteger archivedMaxPlayerId = new AtomicInteger(-1);
+
+    // Where the games are kept between runs; null for nowhere.
+    private final Path snapshot;
+
+    private final Logger logger = LoggerFactory.getLogger(MemoryGameRepository.class);
+
+
+    /**
+     * Construct an empty repository that is lost at shutdown.
+     */
+    public MemoryGameRepository() {
+        this.snapshot = null;
+    }
+
+    /**
+     * Construct a repository that is saved to a snapshot file at shutdown,
+     * starting with the games of the file if it exists.
+     * @param snapshot
+     * @throws GameService.GameServiceException if the file can not be read
+     */
+    public MemoryGameRepository(Path snapshot) throws GameService.GameServiceException {
+        this.snapshot = snapshot;
+        if (!Files.exists(snapshot)) {
+            return;
+        }
+
+        try (Reader reader = Files.newBufferedReader(snapshot, StandardCharsets.UTF_8)) {
+            Snapshot stored = new Gson().fromJson(reader, Snapshot.class);
+            if (stored == null) {
+                return;
+            }
+            for (Game game : stored.games) {
+                games.put(game.getGameId(), game);
+                int state = game.getStateInt();
+                if (state > LAST_LIVE_STATE) {
+                    finishedByState.computeIfAbsent(state, s -> new ConcurrentSkipListSet<>()).add(game.getGameId());
+                }
+            }
+            for (Map.Entry<Integer, String> entry : stored.archive.entrySet()) {
+                archive.put(entry.getKey(), entry.getValue());
+                int state = new Gson().fromJson(entry.getValue(), Game.class).getStateInt();
+                finishedByState.computeIfAbsent(state, s -> new ConcurrentSkipListSet<>()).add(entry.getKey());
+            }
+            finishedAt.putAll(stored.finishedAt);
+            archivedStatistics.add(stored.archivedCounters, stored.archivedPlayers);
+            archivedMaxGameId.set(stored.archivedMaxGameId);
+            archivedMaxPlayerId.set(stored.archivedMaxPlayerId);
+            logger.info("Loaded {} games and {} archived games from {}", games.size(), archive.size(), snapshot);
+        } catch (IOException | RuntimeException ex) {
+            logger.error("Failed to read the snapshot " + snapshot, ex);
+            throw new GameService.GameServiceException("Failed to read the snapshot " + snapshot, ex);
+        }
+    }
+
+
+    @Override
+    public List<Game> loadLiveGames() {
+        List<Game> live = new ArrayList<>();
+        for (Game game : games.values()) {
+            if (game.getStateInt() <= LAST_LIVE_STATE) {
+                live.add(game);
+            }
+        }
+        return live;
+    }
+
+
+    @Override
+    public Integer[] maxIds() {
+        Integer[] maxIds = new Integer[2];
+        if (archivedMaxGameId.get() >= 0) {
+            maxIds[0] = archivedMaxGameId.get();
+            maxIds[1] = archivedMaxPlayerId.get();
+        }
+        for (Game game : games.values()) {
+            int biggerPlayerId = Math.max(game.getHareId(), game.getHoundId());
+            if (maxIds[0] == null || game.getGameId() > maxIds[0]) {
+                maxIds[0] = game.getGameId();
+            }
+            if (maxIds[1] == null || biggerPlayerId > maxIds[1]) {
+                maxIds[1] = biggerPlayerId;
+            }
+        }
+        return maxIds;
+    }
+
+
+    @Override
+    public Game findGame(int gameId) {
+        Game game = games.get(gameId);
+        if (game != null) {
+            return game;
+        }
+        String archived = archive.get(gameId);
+        return archived == null ? null : new Gson().fromJson(archived, Game.class);
+    }
+
+
+    @Override
+    public List<Integer> listFinishedGames(int state, int after, int limit) {
+        List<Integer> gameIds = new ArrayList<>(limit);
+        ConcurrentSkipListSet<Integer> finished = finishedByState.get(state);
+        if (finished == null) {
+            return gameIds;
+        }
+        for (int gameId : finished.tailSet(after, false)) {
+            if (gameIds.size() == limit) {
+                break;
+            }
+            gameIds.add(gameId);
+        }
+        return gameIds;
+    }
+
+
+    @Override
+    public Write insertGame(Game game) {
+        return () -> games.put(game.getGameId(), game);
+    }
+
+
+    @Override
+    public void insertGames(List<Game> games) {
+        for (Game game : games) {
+            this.games.put(game.getGameId(), game);
+        }
+    }
+
+
+    // The game itself is stored, so only the end of a game needs recording.
+    @Override
+    public Write updateGame(Game game, long finishedAt) {
+        int gameId = game.getGameId();
+        int state = game.getStateInt();
+        if (state <= LAST_LIVE_STATE) {
+            return () -> { };
+        }
+        return () -> {
+            if (finishedByState.computeIfAbsent(state, s -> new ConcurrentSkipListSet<>()).add(gameId)) {
+                this.finishedAt.put(gameId, finishedAt);
+            }
+        };
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * Archived games are replaced by their JSON.
+     */
+    @Override
+    public List<Integer> archiveFinishedGames(long finishedBefore, int batchSize) {
+        List<Integer> gameIds = new ArrayList<>();
+        for (Map.Entry<Integer, Long> entry : finishedAt.entrySet()) {
+            if (gameIds.size() == batchSize) {
+                break;
+            }
+            int gameId = entry.getKey();
+            if (entry.getValue() < finishedBefore && finishedAt.remove(gameId) != null) {
+                gameIds.add(gameId);
+                Game game = games.get(gameId);
+                if (game != null) {
+                    String json;
+                    synchronized (game) {
+                        json = new Gson().toJson(game);
+                    }
+                    archive.put(gameId, json);
+                    games.remove(gameId);
+                    archivedStatistics.record(game);
+                    archivedMaxGameId.accumulateAndGet(gameId, Math::max);
+                    archivedMaxPlayerId.accumulateAndGet(Math.max(game.getHareId(), game.getHoundId()), Math::max);
+                }
+            }
+        }
+        return gameIds;
+    }
+
+
+    @Override
+    public GameStatistics loadStatistics() {
+        GameStatistics statistics = new GameStatistics();
+        statistics.add(archivedStatistics.getCounters(), archivedStatistics.getPlayers());
+        for (Game game : games.values()) {
+            if (game.getStateInt() > LAST_LIVE_STATE) {
+                statistics.record(game);
+            }
+        }
+        return statistics;
+    }
+
+
+    // The statistics in memory are all there is.
+    @Override
+    public void storeStatistics(Game game) {
+    }
+
+
+    /**
+     * Write the games to the snapshot file, if there is one. The file is
+     * written next to the old one and then moved over it, so a failed write
+     * leaves the previous snapshot in place.
+     */
+    @Override
+    public void close() throws GameService.GameServiceException {
+        if (snapshot == null) {
+            return;
+        }
+
+        Gson gson = new Gson();
+        Path dir = snapshot.toAbsolutePath().getParent();
+        try {
+            Path temp = Files.createTempFile(dir, snapshot.getFileName().toString(), ".tmp");
+            try (JsonWriter out = new JsonWriter(Files.newBufferedWriter(temp, StandardCharsets.UTF_8))) {
+                out.beginObject().name("games").beginArray();
+                for (Game game : games.values()) {
+                    // Requests may still be running; write each game as of one moment.
+                    synchronized (game) {
+                        gson.toJson(game, Game.class, out);
+                    }
+                }
+                out.endArray().name("archive");
+                gson.toJson(archive, ARCHIVE, out);
+                out.name("finishedAt");
+                gson.toJson(finishedAt, FINISHED_AT, out);
+                out.name("archivedCounters");
+                gson.toJson(archivedStatistics.getCounters(), ARCHIVED_COUNTERS, out);
+                out.name("archivedPlayers");
+                gson.toJson(archivedStatistics.getPlayers(), ARCHIVED_PLAYERS, out);
+                out.name("archivedMaxGameId").value(archivedMaxGameId.get());
+                out.name("archivedMaxPlayerId").value(archivedMaxPlayerId.get());
+                out.endObject();
+            }
+            Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Saved {} games and {} archived games to {}", games.size(), archive.size(), snapshot);
+        } catch (IOException ex) {
+            logger.error("Failed to write the snapshot " + snapshot, ex);
+            throw new GameService.GameServiceException("Failed to write the snapshot " + snapshot, ex);
+        }
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * The contents of a snapshot file.
+     */
+    private static class Snapshot {
+        List<Game> games = new ArrayList<>();
+        Map<Integer, String> archive = new HashMap<>();
+        Map<Integer, Long> finishedAt = new ConcurrentHashMap<>();
+        Map<String, Long> archivedCounters = new HashMap<>();
+        List<GameStatistics.PlayerStats> archivedPlayers = new ArrayList<>();
+        int archivedMaxGameId = -1;
+        int archivedMaxPlayerId = -1;
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ * @author Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Server metrics: request counts, status codes and latency per route, plus
+ * gauges, counters and latency summaries read from the rest of the server
+ * when scraped.
+ *
+ * Routes are registered once at startup and hand out a RouteMetrics that
+ * request threads record into with atomic increments only, so recording
+ * allocates nothing. All formatting happens in scrape(), which renders the
+ * Prometheus text format.
+ */
+public class MetricsRegistry {
+
+    private static final String PREFIX = "hareandhounds_";
+
+    // Percentiles reported for every route.
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+    private static final String[] QUANTILE_LABELS = {"0.5", "0.99", "0.999"};
+
+    private static final int MAX_STATUS = 600;
+
+    private final Map<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+    private final List<RouteMetrics> routeOrder = new CopyOnWriteArrayList<>();
+
+    private final List<Sample> samples = new CopyOnWriteArrayList<>();
+
+
+    /**
+     * The metrics of a route, created on first use.
+     * @param name route label, e.g. "turns"
+     * @return the route's metrics
+     */
+    public RouteMetrics route(String name) {
+        return routes.computeIfAbsent(name, key -> {
+            RouteMetrics metrics = new RouteMetrics(key);
+            routeOrder.add(metrics);
+            return metrics;
+        });
+    }
+
+    /**
+     * Report a value that can go up and down, read when scraped.
+     * @param name metric name without the common prefix
+     * @param labels Prometheus labels, e.g. "class=\"read\""; null for none
+     * @param help
+     * @param value
+     */
+    public void gauge(String name, String labels, String help, LongSupplier value) {
+        samples.add(new Sample(name, labels, help, "gauge", value));
+    }
+
+    /**
+     * Report a value that only goes up, read when scraped.
+     * @param name metric name without the common prefix
+     * @param labels Prometheus labels; null for none
+     * @param help
+     * @param value
+     */
+    public void counter(String name, String labels, String help, LongSupplier value) {
+        samples.add(new Sample(name, labels, help, "counter", value));
+    }
+
+    /**
+     * Report the percentiles of a histogram of durations, read when scraped.
+     * @param name metric name without the common prefix
+     * @param labels Prometheus labels; null for none
+     * @param help
+     * @param histogram durations in nanoseconds, reported in seconds
+     */
+    public void summary(String name, String labels, String help, LatencyHistogram histogram) {
+        samples.add(new Sample(name, labels, help, "summary", histogram));
+    }
+
+    /**
+     * Render every metric in the Prometheus text format (version 0.0.4).
+     * Gauges and counters of the same name must be registered one after the
+     * other, so that they share one HELP and TYPE line.
+     * @return the exposition text
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+
+        header(out, "requests_total", "Requests served, by route and status code.", "counter");
+        for (RouteMetrics route : routeOrder) {
+            for (int status = 0; status < MAX_STATUS; status++) {
+                long count = route.statuses.get(status);
+                if (count > 0) {
+                    out.append(PREFIX).append("requests_total{route=\"").append(route.name)
+                            .append("\",status=\"").append(status).append("\"} ").append(count).append('\n');
+                }
+            }
+        }
+
+        header(out, "request_duration_seconds", "Request latency, by route.", "summary");
+        for (RouteMetrics route : routeOrder) {
+            appendSummary(out, "request_duration_seconds", "route=\"" + route.name + "\"", route.latency);
+        }
+
+        header(out, "requests_in_flight", "Requests being served, by route.", "gauge");
+        for (RouteMetrics route : routeOrder) {
+            out.append(PREFIX).append("requests_in_flight{route=\"").append(route.name).append("\"} ")
+                    .append(route.inFlight.get()).append('\n');
+        }
+
+        String last = null;
+        for (Sample sample : new ArrayList<>(samples)) {
+            if (!sample.name.equals(last)) {
+                header(out, sample.name, sample.help, sample.type);
+                last = sample.name;
+            }
+            if (sample.histogram != null) {
+                appendSummary(out, sample.name, sample.labels, sample.histogram);
+                continue;
+            }
+            out.append(PREFIX).append(sample.name);
+            if (sample.labels != null) {
+                out.append('{').append(sample.labels).append('}');
+            }
+            out.append(' ').append(sample.value.getAsLong()).append('\n');
+        }
+        return out.toString();
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void appendSummary(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        String prefix = labels == null ? "" : labels + ",";
+        for (int i = 0; i < QUANTILES.length; i++) {
+            out.append(PREFIX).append(name).append('{').append(prefix).append("quantile=\"")
+                    .append(QUANTILE_LABELS[i]).append("\"} ")
+                    .append(seconds(histogram.percentile(QUANTILES[i]))).append('\n');
+        }
+        String suffix = labels == null ? " " : "{" + labels + "} ";
+        out.append(PREFIX).append(name).append("_sum").append(suffix).append(seconds(histogram.getSum())).append('\n');
+        out.append(PREFIX).append(name).append("_count").append(suffix).append(histogram.getCount()).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    /**
+     * Request metrics of one route.
+     */
+    public static class RouteMetrics {
+        private final String name;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLongArray statuses = new AtomicLongArray(MAX_STATUS);
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        RouteMetrics(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Note that a request started.
+         * @return the start time to pass to end()
+         */
+        public long begin() {
+            inFlight.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        /**
+         * Note that a request finished.
+         * @param startNanos the value begin() returned
+         * @param status the HTTP status code of the response
+         */
+        public void end(long startNanos, int status) {
+            latency.record(System.nanoTime() - startNanos);
+            statuses.incrementAndGet(status >= 0 && status < MAX_STATUS ? status : 0);
+            inFlight.decrementAndGet();
+        }
+
+        public LatencyHistogram getLatency() { return latency; }
+
+        public long getCount(int status) { return statuses.get(status); }
+    }
+
+    private static class Sample {
+        final String name;
+        final String labels;
+        final String help;
+        final String type;
+        final LongSupplier value;
+        final LatencyHistogram histogram;
+
+        Sample(String name, String labels, String help, String type, LongSupplier value) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+            this.histogram = null;
+        }
+
+        Sample(String name, String labels, String help, String type, LatencyHistogram histogram) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+            this.type = type;
+            this.value = null;
+            this.histogram = histogram;
+        }
+    }
+}
@@ -15,6 +15,10 @@ public class Move {
     private int toX;
     private int toY;
 
+    // Per-player number of the move, so retries can be recognized; 0 if
+    // the client does not number its moves.
+    private int seq;
+
     public Move(int gameId, int playerId, String fromX, String fromY, String toX, String toY){
         this.gameId = gameId;
         this.playerId = playerId;
@@ -24,6 +28,20 @@ public class Move {
         this.toY = Integer.parseInt(toY);
     }
 
+    public Move(int gameId, int playerId, int fromX, int fromY, int toX, int toY){
+        this(gameId, playerId, fromX, fromY, toX, toY, 0);
+    }
+
+    public Move(int gameId, int playerId, int fromX, int fromY, int toX, int toY, int seq){
+        this.gameId = gameId;
+        this.playerId = playerId;
+        this.fromX = fromX;
+        this.fromY = fromY;
+        this.toX = toX;
+        this.toY = toY;
+        this.seq = seq;
+    }
+
     // Return the gameId that this move belongs to.
     public int getGameId(){ return this.gameId; }
 
@@ -41,4 +59,7 @@ public class Move {
 
     // Return the integer value of "toY" position.
     public int getToY(){ return this.toY; }
+
+    // Return the sequence number of this move; 0 if it has none.
+    public int getSeq(){ return this.seq; }
 }
@@ -0,0 +1,134 @@
+/**
+ * @author Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * The numbered moves one game has seen, so that a retried move is answered
+ * with the result it got the first time instead of being played again, and
+ * a move sent before the player's turn (a premove) waits for that turn.
+ *
+ * Each player numbers their moves 1, 2, 3, ... The ledger remembers the
+ * results of the last WINDOW moves of each player and at most MAX_PREMOVES
+ * waiting moves, so it stays small however long the game runs. It belongs
+ * to one game and is only used while holding that game's lock.
+ */
+public class MoveLedger {
+
+    // Results remembered per player; older moves are answered "STALE_MOVE".
+    public static final int WINDOW = 16;
+
+    // Premoves a player may have waiting at once.
+    public static final int MAX_PREMOVES = 4;
+
+    public static final int HOUND = 0;
+    public static final int HARE = 1;
+
+    private final int[] lastSeq = new int[2];
+    private final int[][] seqs = new int[2][WINDOW];
+    private final String[][] results = new String[2][WINDOW];
+
+    // Waiting moves of each side, see premoves(side).
+    private final ArrayDeque<Move> houndPremoves = new ArrayDeque<>();
+    private final ArrayDeque<Move> harePremoves = new ArrayDeque<>();
+
+
+    /**
+     * Find out whether a numbered move was seen before.
+     * @param side HOUND or HARE
+     * @param seq
+     * @return the result of the earlier submission of the move; "STALE_MOVE"
+     *         if it is too old to be remembered; "OUT_OF_SEQUENCE" if moves
+     *         before it have not arrived yet; null if the move is new.
+     */
+    public String check(int side, int seq) {
+        int last = lastSeq[side];
+        if (last == 0 || seq == last + 1) {
+            // The first numbered move may start anywhere, e.g. after a restart.
+            return null;
+        }
+        if (seq > last + 1) {
+            return "OUT_OF_SEQUENCE";
+        }
+        int slot = seq % WINDOW;
+        return seqs[side][slot] == seq ? results[side][slot] : "STALE_MOVE";
+    }
+
+    /**
+     * Remember the result of a numbered move.
+     * @param side
+     * @param seq
+     * @param result
+     */
+    public void record(int side, int seq, String result) {
+        lastSeq[side] = Math.max(lastSeq[side], seq);
+        int slot = seq % WINDOW;
+        seqs[side][slot] = seq;
+        results[side][slot] = result;
+    }
+
+    /**
+     * Keep a move until it is the player's turn.
+     * @param side
+     * @param move
+     * @return false if the player already has MAX_PREMOVES waiting.
+     */
+    public boolean queue(int side, Move move) {
+        if (premoves(side).size() >= MAX_PREMOVES) {
+            return false;
+        }
+        premoves(side).add(move);
+        record(side, move.getSeq(), "MOVE_QUEUED");
+        return true;
+    }
+
+    /**
+     * Take the oldest waiting move of a player.
+     * @param side
+     * @return the move; null if none is waiting.
+     */
+    public Move nextPremove(int side) {
+        return premoves(side).poll();
+    }
+
+    /**
+     * Drop the waiting moves of a player, e.g. because the one before them
+     * failed or the game ended.
+     * @param side
+     */
+    public void cancelPremoves(int side) {
+        Move move;
+        while ((move = premoves(side).poll()) != null) {
+            record(side, move.getSeq(), "PREMOVE_CANCELLED");
+        }
+    }
+
+    /**
+     * Estimate the heap held by this ledger, assuming a 64-bit JVM with
+     * compressed references. The arrays have a fixed size, so only the
+     * waiting moves vary; the remembered results are shared literals.
+     * @return estimated bytes
+     */
+    public long estimateRetainedBytes() {
+        // Ledger 32, lastSeq 24, seqs 184, results 184, premove queues 208.
+        long bytes = 632;
+        return bytes + 40L * (houndPremoves.size() + harePremoves.size());
+    }
+
+    private Queue<Move> premoves(int side) {
+        return side == HOUND ? houndPremoves : harePremoves;
+    }
+
+    /**
+     * The side a piece type plays on.
+     * @param pieceType "HOUND" or "HARE"
+     * @return HOUND or HARE
+     */
+    public static int side(String pieceType) {
+        return pieceType.equals("HOUND") ? HOUND : HARE;
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * @author Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An executor that runs database writes off the request threads.
+ *
+ * Writes are spread over a fixed number of lanes by game id. Each lane runs
+ * one task at a time, so all writes of one game are applied in the order
+ * they were submitted. Lanes are there for that ordering, not for write
+ * throughput: SqliteGameRepository lets one write in at a time behind its
+ * writeLock, so with SQLite more lanes only mean more writers waiting for
+ * the lock (MemoryGameRepository does write games in parallel). Lanes run
+ * on virtual threads when the JDK has them and on daemon platform threads
+ * otherwise. When a lane's queue is full the submitting thread waits,
+ * which pushes back on clients instead of growing the queue without bound.
+ */
+public class PersistenceExecutor {
+
+    private final ThreadPoolExecutor[] lanes;
+
+    private final boolean virtual;
+
+    private final Logger logger = LoggerFactory.getLogger(PersistenceExecutor.class);
+
+
+    /**
+     * Construct an executor.
+     * @param laneCount number of lanes
+     * @param queueCapacity pending writes each lane can hold
+     * @param useVirtualThreads run lanes on virtual threads if available
+     */
+    public PersistenceExecutor(int laneCount, int queueCapacity, boolean useVirtualThreads) {
+        ThreadFactory virtualFactory = useVirtualThreads ? virtualThreadFactory() : null;
+        this.virtual = virtualFactory != null;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory factory = virtualFactory != null ? virtualFactory : runnable -> {
+            Thread thread = new Thread(runnable, "persistence-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        this.lanes = new ThreadPoolExecutor[Math.max(1, laneCount)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), factory, PersistenceExecutor::waitForRoom);
+        }
+        logger.info("Persistence executor started with {} lanes on {} threads",
+                lanes.length, virtual ? "virtual" : "platform");
+    }
+
+    /**
+     * Run a write for the given game on that game's lane.
+     * @param gameId
+     * @param task
+     */
+    public void execute(int gameId, Runnable task) {
+        lanes[Math.floorMod(gameId, lanes.length)].execute(task);
+    }
+
+    /**
+     * Number of writes waiting in all lanes.
+     * @return queued task count
+     */
+    public int queuedTasks() {
+        int queued = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            queued += lane.getQueue().size();
+        }
+        return queued;
+    }
+
+    /**
+     * Number of lanes running a write right now.
+     * @return busy lane count
+     */
+    public int activeTasks() {
+        int active = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            active += lane.getActiveCount();
+        }
+        return active;
+    }
+
+    public int laneCount() { return lanes.length; }
+
+    public boolean isVirtual() { return virtual; }
+
+    /**
+     * Stop accepting writes and wait for the pending ones to finish.
+     * @param timeoutMillis
+     * @return true if every pending write finished in time.
+     */
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (ThreadPoolExecutor lane : lanes) {
+            long remaining = Math.max(0, deadline - System.currentTimeMillis());
+            if (!lane.awaitTermination(remaining, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * Block the submitting thread until the lane has room for the task.
+     */
+    private static void waitForRoom(Runnable task, ThreadPoolExecutor lane) {
+        if (lane.isShutdown()) {
+            throw new RejectedExecutionException("Persistence executor is shut down");
+        }
+        BlockingQueue<Runnable> queue = lane.getQueue();
+        try {
+            queue.put(task);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while queueing a write", ex);
+        }
+    }
+
+    /**
+     * Look up Thread.ofVirtual().factory() reflectively so that the server
+     * still builds and runs on JDKs without virtual threads.
+     * @return a virtual thread factory; null if the JDK has none.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * @author Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timing of every database operation of GameService, split into its phases:
+ * getting a connection, converting games to or from JSON, and running the
+ * SQL. Each operation and phase has its own LatencyHistogram, so recording
+ * allocates nothing. Operations slower than a threshold are logged with
+ * their game id and SQL to the "hareandhounds.slowqueries" logger.
+ */
+public class PersistenceTimings {
+
+    /**
+     * The database operations that are timed.
+     */
+    public enum Operation {
+        INSERT(true), INSERT_BATCH(true), UPDATE(true), ARCHIVE(true), STORE_STATS(true),
+        LOAD(false), STARTUP(false), FIND(false), LIST(false);
+
+        final boolean write;
+
+        Operation(boolean write) {
+            this.write = write;
+        }
+    }
+
+    /**
+     * The phases of an operation.
+     */
+    public enum Phase { OPEN, JSON, EXECUTE }
+
+    private final LatencyHistogram[][] histograms =
+            new LatencyHistogram[Operation.values().length][Phase.values().length];
+
+    private final LongAdder rowsWritten = new LongAdder();
+    private final LongAdder rowsRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder slowOperations = new LongAdder();
+
+    private final long slowNanos;
+
+    private final Logger slowLog = LoggerFactory.getLogger("hareandhounds.slowqueries");
+
+
+    /**
+     * Construct the timings.
+     * @param slowMillis operations taking at least this long are logged;
+     *                   zero or less logs none
+     */
+    public PersistenceTimings(int slowMillis) {
+        this.slowNanos = slowMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(slowMillis) : 0;
+        for (LatencyHistogram[] phases : histograms) {
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new LatencyHistogram();
+            }
+        }
+    }
+
+    /**
+     * Record an operation that opened a connection and ran SQL on it.
+     * @param operation
+     * @param gameId the game the operation is for; -1 if several
+     * @param sql the statement, for the slow-operation log
+     * @param startNanos System.nanoTime() before opening the connection
+     * @param openedNanos System.nanoTime() once the connection was open
+     * @param endNanos System.nanoTime() once the SQL finished
+     * @param rows rows written, or read for operations that only read
+     */
+    public void record(Operation operation, int gameId, String sql,
+                       long startNanos, long openedNanos, long endNanos, int rows) {
+        LatencyHistogram[] phases = histograms[operation.ordinal()];
+        phases[Phase.OPEN.ordinal()].record(openedNanos - startNanos);
+        phases[Phase.EXECUTE.ordinal()].record(endNanos - openedNanos);
+        (operation.write ? rowsWritten : rowsRead).add(rows);
+        if (operation.write) {
+            GameEvents.persistenceFlush(operation, gameId, rows, openedNanos - startNanos, endNanos - openedNanos);
+        }
+
+        long total = endNanos - startNanos;
+        if (slowNanos > 0 && total >= slowNanos) {
+            slowOperations.increment();
+            slowLog.warn("Slow {} of game {}: {} ms (open {} ms, execute {} ms, {} rows): {}",
+                    operation, gameId, millis(total), millis(openedNanos - startNanos),
+                    millis(endNanos - openedNanos), rows, sql);
+        }
+    }
+
+    /**
+     * Record converting a game to or from JSON. This often happens on
+     * another thread than the SQL, so it is timed on its own.
+     * @param operation
+     * @param nanos
+     * @param bytes length of the JSON; counted as written for writes
+     */
+    public void json(Operation operation, long nanos, int bytes) {
+        histograms[operation.ordinal()][Phase.JSON.ordinal()].record(nanos);
+        if (operation.write) {
+            bytesWritten.add(bytes);
+        }
+    }
+
+    public LatencyHistogram getHistogram(Operation operation, Phase phase) {
+        return histograms[operation.ordinal()][phase.ordinal()];
+    }
+
+    public long getRowsWritten() { return rowsWritten.sum(); }
+
+    public long getRowsRead() { return rowsRead.sum(); }
+
+    public long getBytesWritten() { return bytesWritten.sum(); }
+
+    public long getSlowOperations() { return slowOperations.sum(); }
+
+    /**
+     * Report the timings and counters in a metrics registry.
+     * @param metrics
+     */
+    public void register(MetricsRegistry metrics) {
+        for (Operation operation : Operation.values()) {
+            for (Phase phase : Phase.values()) {
+                LatencyHistogram histogram = getHistogram(operation, phase);
+                String labels = "operation=\"" + operation.name().toLowerCase() + "\",phase=\"" +
+                                phase.name().toLowerCase() + "\"";
+                metrics.summary("db_duration_seconds", labels, "Database operation time, by operation and phase.",
+                        histogram);
+            }
+        }
+        metrics.counter("db_rows_written_total", null, "Rows inserted, updated or archived.", this::getRowsWritten);
+        metrics.counter("db_rows_read_total", null, "Rows read.", this::getRowsRead);
+        metrics.counter("db_bytes_written_total", null, "Bytes of game JSON written.", this::getBytesWritten);
+        metrics.counter("db_slow_operations_total", null, "Database operations over the slow-operation threshold.",
+                this::getSlowOperations);
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
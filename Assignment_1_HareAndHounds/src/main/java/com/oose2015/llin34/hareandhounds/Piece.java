@@ -28,6 +28,9 @@ public class Piece {
 		this.y = y;
 	}
 
+	// Return the type of this piece, "HARE" or "HOUND".
+	public String getPieceType() { return this.pieceType; }
+
 	// Return the x-position of this piece.
 	public int getX() { return this.x; }
 
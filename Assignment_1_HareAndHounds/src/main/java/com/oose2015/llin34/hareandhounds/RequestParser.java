@@ -0,0 +1,414 @@
+/**
+ * @author Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A strict parser for the small JSON bodies sent to the create and turn
+ * endpoints. It reads the body through a small buffer into primitive fields
+ * and never builds intermediate Strings for keys or values. Only flat
+ * objects of at most maxBytes bytes are accepted; anything else is rejected
+ * as malformed.
+ */
+public class RequestParser {
+
+    // Piece types, in the order of PIECE_TYPES.
+    private static final String[] PIECE_TYPE_NAMES = {"HOUND", "HARE"};
+    private static final byte[][] PIECE_TYPES = bytesOf(PIECE_TYPE_NAMES);
+
+    // Fields of a create request.
+    private static final byte[][] CREATE_FIELDS = bytesOf(new String[]{"pieceType"});
+
+    // Fields of a batch create request.
+    private static final byte[][] BATCH_FIELDS = bytesOf(new String[]{"pieceType", "count"});
+
+    // Fields of a move request, in the order of the Move constructor. All
+    // but the sequence number are required.
+    private static final byte[][] MOVE_FIELDS =
+            bytesOf(new String[]{"gameId", "playerId", "fromX", "fromY", "toX", "toY", "seq"});
+    private static final int REQUIRED_MOVE_FIELDS = (1 << (MOVE_FIELDS.length - 1)) - 1;
+
+    private static final byte[][] NO_NAMES = new byte[0][];
+
+    // Board size, used to reject coordinates that are off the board.
+    private static final int MAX_X = 4;
+    private static final int MAX_Y = 2;
+
+    // Longest key we compare; longer keys are never one of ours.
+    private static final int MAX_KEY_LENGTH = 16;
+
+    // Bytes read from the stream at a time.
+    private static final int BUFFER_SIZE = 256;
+
+    private final InputStream in;
+    private final int maxBytes;
+    private final byte[] buffer;
+    private int position;
+    private int count;
+    private int bytesRead;
+    private final byte[] key = new byte[MAX_KEY_LENGTH];
+    private int next;
+
+
+    private RequestParser(InputStream in, int maxBytes) throws MalformedRequestException {
+        this.in = in;
+        this.maxBytes = maxBytes;
+        this.buffer = new byte[Math.min(BUFFER_SIZE, maxBytes + 1)];
+        advance();
+    }
+
+    /**
+     * Parse the body of a create request, e.g. {"pieceType":"HOUND"}.
+     * @param in
+     * @param maxBytes largest body accepted
+     * @return "HOUND" or "HARE"
+     * @throws MalformedRequestException if the body is not a flat JSON object
+     *         with a valid pieceType.
+     */
+    public static String parsePieceType(InputStream in, int maxBytes) throws MalformedRequestException {
+        RequestParser parser = new RequestParser(in, maxBytes);
+        int pieceType = -1;
+
+        parser.expect('{');
+        if (!parser.consumeIf('}')) {
+            do {
+                int field = parser.readKey(CREATE_FIELDS);
+                parser.expect(':');
+                if (field == 0) {
+                    pieceType = parser.readEnum(PIECE_TYPES);
+                } else {
+                    parser.skipValue();
+                }
+            } while (parser.consumeIf(','));
+            parser.expect('}');
+        }
+        parser.expectEnd();
+
+        if (pieceType < 0) {
+            throw new MalformedRequestException("pieceType must be HOUND or HARE");
+        }
+        return PIECE_TYPE_NAMES[pieceType];
+    }
+
+    /**
+     * Parse the body of a batch create request, e.g.
+     * {"pieceType":"HOUND","count":100}.
+     * @param in
+     * @param maxBytes largest body accepted
+     * @param maxCount largest number of games one request may create
+     * @return the piece type of the first player of every game to create
+     * @throws MalformedRequestException if the body is not a flat JSON object
+     *         with a valid pieceType and a count between 1 and maxCount.
+     */
+    public static List<String> parseBatchCreate(InputStream in, int maxBytes, int maxCount)
+            throws MalformedRequestException {
+        RequestParser parser = new RequestParser(in, maxBytes);
+        int pieceType = -1;
+        int count = -1;
+
+        parser.expect('{');
+        if (!parser.consumeIf('}')) {
+            do {
+                int field = parser.readKey(BATCH_FIELDS);
+                parser.expect(':');
+                switch (field) {
+                    case 0: pieceType = parser.readEnum(PIECE_TYPES); break;
+                    case 1: count = parser.readInt(); break;
+                    default: parser.skipValue(); break;
+                }
+            } while (parser.consumeIf(','));
+            parser.expect('}');
+        }
+        parser.expectEnd();
+
+        if (pieceType < 0) {
+            throw new MalformedRequestException("pieceType must be HOUND or HARE");
+        }
+        if (count < 1 || count > maxCount) {
+            throw new MalformedRequestException("count must be between 1 and " + maxCount);
+        }
+        return Collections.nCopies(count, PIECE_TYPE_NAMES[pieceType]);
+    }
+
+    /**
+     * Parse the body of a turn request. Coordinates may be sent either as
+     * numbers or as quoted numbers. The optional seq numbers the
+     * player's moves from 1, see MoveLedger; 0 means the move has no number.
+     * @param in
+     * @param maxBytes largest body accepted
+     * @return the move
+     * @throws MalformedRequestException if the body is not a flat JSON object
+     *         holding every field of a move with on-board coordinates.
+     */
+    public static Move parseMove(InputStream in, int maxBytes) throws MalformedRequestException {
+        RequestParser parser = new RequestParser(in, maxBytes);
+        int gameId = 0, playerId = 0, fromX = 0, fromY = 0, toX = 0, toY = 0, seq = 0;
+        int seen = 0;
+
+        parser.expect('{');
+        if (!parser.consumeIf('}')) {
+            do {
+                int field = parser.readKey(MOVE_FIELDS);
+                parser.expect(':');
+                switch (field) {
+                    case 0: gameId = parser.readInt(); break;
+                    case 1: playerId = parser.readInt(); break;
+                    case 2: fromX = parser.readInt(); break;
+                    case 3: fromY = parser.readInt(); break;
+                    case 4: toX = parser.readInt(); break;
+                    case 5: toY = parser.readInt(); break;
+                    case 6: seq = parser.readInt(); break;
+                    default: parser.skipValue(); break;
+                }
+                if (field >= 0) {
+                    seen |= 1 << field;
+                }
+            } while (parser.consumeIf(','));
+            parser.expect('}');
+        }
+        parser.expectEnd();
+
+        if ((seen & REQUIRED_MOVE_FIELDS) != REQUIRED_MOVE_FIELDS) {
+            throw new MalformedRequestException("Move is missing fields");
+        }
+        if (fromX > MAX_X || toX > MAX_X || fromY > MAX_Y || toY > MAX_Y) {
+            throw new MalformedRequestException("Move is off the board");
+        }
+        return new Move(gameId, playerId, fromX, fromY, toX, toY, seq);
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Tokenizer
+    //-----------------------------------------------------------------------------//
+
+    // Read the next byte into the look-ahead slot; -1 at the end of input.
+    private void advance() throws MalformedRequestException {
+        if (position == count && !fill()) {
+            next = -1;
+            return;
+        }
+        next = buffer[position++] & 0xFF;
+    }
+
+    // Refill the buffer from the stream; false at the end of input.
+    private boolean fill() throws MalformedRequestException {
+        int n;
+        try {
+            n = in.read(buffer, 0, buffer.length);
+        } catch (IOException ex) {
+            throw new MalformedRequestException("Failed to read request body");
+        }
+        if (n <= 0) {
+            return false;
+        }
+        bytesRead += n;
+        if (bytesRead > maxBytes) {
+            throw new RequestTooLargeException(maxBytes);
+        }
+        position = 0;
+        count = n;
+        return true;
+    }
+
+    private void skipWhitespace() throws MalformedRequestException {
+        while (next == ' ' || next == '\t' || next == '\n' || next == '\r') {
+            advance();
+        }
+    }
+
+    private void expect(char c) throws MalformedRequestException {
+        skipWhitespace();
+        if (next != c) {
+            throw new MalformedRequestException("Expected '" + c + "'");
+        }
+        advance();
+    }
+
+    private boolean consumeIf(char c) throws MalformedRequestException {
+        skipWhitespace();
+        if (next == c) {
+            advance();
+            return true;
+        }
+        return false;
+    }
+
+    private void expectEnd() throws MalformedRequestException {
+        skipWhitespace();
+        if (next != -1) {
+            throw new MalformedRequestException("Unexpected data after the request object");
+        }
+    }
+
+    /**
+     * Read an object key and find it among the given names.
+     * @param names
+     * @return index of the key in names; -1 if it is not one of them.
+     */
+    private int readKey(byte[][] names) throws MalformedRequestException {
+        expect('"');
+        int length = 0;
+        boolean plain = true;
+        while (next != '"') {
+            if (next == -1 || next < 0x20) {
+                throw new MalformedRequestException("Unterminated key");
+            }
+            if (next == '\\') {
+                // Escaped keys are never ours; skip the escaped character.
+                plain = false;
+                advance();
+                if (next == -1) {
+                    throw new MalformedRequestException("Unterminated key");
+                }
+            }
+            if (length < MAX_KEY_LENGTH) {
+                key[length] = (byte) next;
+            }
+            length++;
+            advance();
+        }
+        advance();
+
+        return plain ? indexOf(names, key, length) : -1;
+    }
+
+    /**
+     * Read a string value and find it among the given options.
+     * @param options
+     * @return index of the value in options
+     * @throws MalformedRequestException if the value is not one of them.
+     */
+    private int readEnum(byte[][] options) throws MalformedRequestException {
+        skipWhitespace();
+        if (next != '"') {
+            throw new MalformedRequestException("Expected a string");
+        }
+        int index = readKey(options);
+        if (index < 0) {
+            throw new MalformedRequestException("Unknown value");
+        }
+        return index;
+    }
+
+    /**
+     * Read a non-negative integer, either bare or in quotes.
+     * @return the value
+     */
+    private int readInt() throws MalformedRequestException {
+        skipWhitespace();
+        boolean quoted = next == '"';
+        if (quoted) {
+            advance();
+        }
+
+        if (next < '0' || next > '9') {
+            throw new MalformedRequestException("Expected a non-negative integer");
+        }
+        long value = 0;
+        while (next >= '0' && next <= '9') {
+            value = value * 10 + (next - '0');
+            if (value > Integer.MAX_VALUE) {
+                throw new MalformedRequestException("Integer is too large");
+            }
+            advance();
+        }
+
+        if (quoted) {
+            if (next != '"') {
+                throw new MalformedRequestException("Expected a non-negative integer");
+            }
+            advance();
+        } else if (next == '.' || next == 'e' || next == 'E') {
+            throw new MalformedRequestException("Expected a non-negative integer");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Skip a scalar value of a field we do not use. Nested objects and arrays
+     * are rejected.
+     */
+    private void skipValue() throws MalformedRequestException {
+        skipWhitespace();
+        if (next == '"') {
+            readKey(NO_NAMES);
+        } else if (next == '-' || (next >= '0' && next <= '9')) {
+            while (next == '-' || next == '+' || next == '.' || next == 'e' || next == 'E' ||
+                   (next >= '0' && next <= '9')) {
+                advance();
+            }
+        } else if (next == 't') {
+            skipLiteral("true");
+        } else if (next == 'f') {
+            skipLiteral("false");
+        } else if (next == 'n') {
+            skipLiteral("null");
+        } else {
+            throw new MalformedRequestException("Unsupported value");
+        }
+    }
+
+    private void skipLiteral(String literal) throws MalformedRequestException {
+        for (int i = 0; i < literal.length(); i++) {
+            if (next != literal.charAt(i)) {
+                throw new MalformedRequestException("Unsupported value");
+            }
+            advance();
+        }
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    private static int indexOf(byte[][] names, byte[] key, int length) {
+        for (int i = 0; i < names.length; i++) {
+            byte[] name = names[i];
+            if (name.length != length) {
+                continue;
+            }
+            int j = 0;
+            while (j < length && name[j] == key[j]) {
+                j++;
+            }
+            if (j == length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[][] bytesOf(String[] names) {
+        byte[][] bytes = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            bytes[i] = names[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        return bytes;
+    }
+
+    public static class MalformedRequestException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public MalformedRequestException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The body is larger than the parser accepts.
+     */
+    public static class RequestTooLargeException extends MalformedRequestException {
+        private static final long serialVersionUID = 1L;
+
+        public RequestTooLargeException(int maxBytes) {
+            super("Request body is larger than " + maxBytes + " bytes");
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * @author Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+/**
+ * A class that holds the tunable settings of the server. Every setting can
+ * be overridden with a "hareandhounds."-prefixed system property, e.g.
+ * -Dhareandhounds.maxThreads=400.
+ */
+public class ServerConfig {
+
+    private static final String PREFIX = "hareandhounds.";
+
+    // Address of the HTTP server.
+    public String host = Bootstrap.IP_ADDRESS;
+    public int port = Bootstrap.PORT;
+
+    // Jetty connector. Spark 2.2 builds the connector itself, so only the
+    // settings that can change on a running connector are offered.
+    public int idleTimeoutMillis = 30000;
+    public boolean keepAlive = true;
+
+    // API responses at least this large are gzipped for clients that accept it.
+    public int compressionThreshold = 1024;
+
+    // Jetty request thread pool.
+    public int maxThreads = 200;
+    public int minThreads = 8;
+    public int threadIdleTimeoutMillis = 60000;
+
+    // Where games are stored: "sqlite" for hareandhounds.db in the current
+    // directory, or "memory" to keep them in memory only. A memory server
+    // with a snapshotFile saves its games there at shutdown and starts from
+    // them; without one they are lost.
+    public String repository = "sqlite";
+    public String snapshotFile = "";
+
+    // Hand SQLite writes to a dedicated executor instead of doing them on
+    // the request thread. Writes of one game stay in order on one of
+    // persistenceThreads lanes; SQLite still runs one write at a time.
+    public boolean asyncPersistence = false;
+    public int persistenceThreads = 4;
+    public int persistenceQueueCapacity = 10000;
+    public boolean virtualThreads = true;
+
+    // Database operations taking at least this long are logged with their
+    // game id and SQL; zero or less logs none.
+    public int slowQueryMillis = 100;
+
+    // Largest request body accepted by the create and turn endpoints;
+    // larger ones are turned down with 413.
+    public int maxRequestBytes = 4096;
+
+    // Largest number of games one batch create request may create.
+    public int maxBatchSize = 1000;
+
+    // Games per page of a listing, when not asked for and at most.
+    public int defaultPageSize = 50;
+    public int maxPageSize = 500;
+
+    // Finished games are moved to the archive table this long after they
+    // end; the archiver runs every archiveIntervalSeconds (zero or less
+    // turns it off).
+    public int archiveAfterSeconds = 3600;
+    public int archiveIntervalSeconds = 60;
+    public int archiveBatchSize = 1000;
+
+    // A game nobody joins within joinTimeoutSeconds expires; a player who
+    // does not move within moveTimeoutSeconds forfeits. Zero or less turns
+    // the timeout off; both are off unless set, e.g. to 600 and 120.
+    // Deadlines are checked every timerTickMillis on a wheel of
+    // timerWheelSize buckets.
+    public int joinTimeoutSeconds = 0;
+    public int moveTimeoutSeconds = 0;
+    public int timerTickMillis = 100;
+    public int timerWheelSize = 512;
+
+    // How long browsers may cache the static assets the page links to, which
+    // carry their version in the URL; other asset requests are revalidated.
+    public int staticMaxAgeSeconds = 86400;
+
+    // Shared secret of the admin API (/hareandhounds/api/admin/...), sent as
+    // "Authorization: Bearer <token>". It is not served at all while the
+    // token is empty. /metrics is always served without a token.
+    public String adminToken = "";
+
+    // Binary endpoint for bot clients; disabled when the port is negative.
+    public int binaryPort = -1;
+    public int binaryWorkers = 4;
+
+    // A spectating binary connection that could not write for this long is closed.
+    public int slowSubscriberMillis = 5000;
+
+    // Requests served at once per route class; more are shed with 503.
+    // Zero or less removes the limit. Together they must stay below
+    // maxThreads less the threads Jetty keeps for its acceptors and
+    // selectors, or requests queue for a thread instead of being shed; the
+    // server warns at startup when they do not.
+    public int maxInFlightReads = 100;
+    public int maxInFlightMoves = 40;
+    public int maxInFlightCreates = 20;
+    public int retryAfterSeconds = 1;
+
+    // Per-player move rate limit (429 when exceeded); disabled when zero.
+    public int playerMovesPerSecond = 0;
+    public int playerMoveBurst = 10;
+
+
+    /**
+     * Build a configuration from the defaults and any system properties
+     * that override them.
+     * @return the configuration
+     */
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config.host = System.getProperty(PREFIX + "host", config.host);
+        config.port = intProperty("port", config.port);
+        config.idleTimeoutMillis = intProperty("idleTimeoutMillis", config.idleTimeoutMillis);
+        config.keepAlive = booleanProperty("keepAlive", config.keepAlive);
+        config.compressionThreshold = intProperty("compressionThreshold", config.compressionThreshold);
+        config.maxThreads = intProperty("maxThreads", config.maxThreads);
+        config.minThreads = intProperty("minThreads", config.minThreads);
+        config.threadIdleTimeoutMillis = intProperty("threadIdleTimeoutMillis", config.threadIdleTimeoutMillis);
+        config.repository = System.getProperty(PREFIX + "repository", config.repository);
+        config.snapshotFile = System.getProperty(PREFIX + "snapshotFile", config.snapshotFile);
+        config.asyncPersistence = booleanProperty("asyncPersistence", config.asyncPersistence);
+        config.persistenceThreads = intProperty("persistenceThreads", config.persistenceThreads);
+        config.persistenceQueueCapacity = intProperty("persistenceQueueCapacity", config.persistenceQueueCapacity);
+        config.virtualThreads = booleanProperty("virtualThreads", config.virtualThreads);
+        config.slowQueryMillis = intProperty("slowQueryMillis", config.slowQueryMillis);
+        config.maxRequestBytes = intProperty("maxRequestBytes", config.maxRequestBytes);
+        config.maxBatchSize = intProperty("maxBatchSize", config.maxBatchSize);
+        config.defaultPageSize = intProperty("defaultPageSize", config.defaultPageSize);
+        config.maxPageSize = intProperty("maxPageSize", config.maxPageSize);
+        config.archiveAfterSeconds = intProperty("archiveAfterSeconds", config.archiveAfterSeconds);
+        config.archiveIntervalSeconds = intProperty("archiveIntervalSeconds", config.archiveIntervalSeconds);
+        config.archiveBatchSize = intProperty("archiveBatchSize", config.archiveBatchSize);
+        config.joinTimeoutSeconds = intProperty("joinTimeoutSeconds", config.joinTimeoutSeconds);
+        config.moveTimeoutSeconds = intProperty("moveTimeoutSeconds", config.moveTimeoutSeconds);
+        config.timerTickMillis = intProperty("timerTickMillis", config.timerTickMillis);
+        config.timerWheelSize = intProperty("timerWheelSize", config.timerWheelSize);
+        config.staticMaxAgeSeconds = intProperty("staticMaxAgeSeconds", config.staticMaxAgeSeconds);
+        config.adminToken = System.getProperty(PREFIX + "adminToken", config.adminToken);
+        config.binaryPort = intProperty("binaryPort", config.binaryPort);
+        config.binaryWorkers = intProperty("binaryWorkers", config.binaryWorkers);
+        config.slowSubscriberMillis = intProperty("slowSubscriberMillis", config.slowSubscriberMillis);
+        config.maxInFlightReads = intProperty("maxInFlightReads", config.maxInFlightReads);
+        config.maxInFlightMoves = intProperty("maxInFlightMoves", config.maxInFlightMoves);
+        config.maxInFlightCreates = intProperty("maxInFlightCreates", config.maxInFlightCreates);
+        config.retryAfterSeconds = intProperty("retryAfterSeconds", config.retryAfterSeconds);
+        config.playerMovesPerSecond = intProperty("playerMovesPerSecond", config.playerMovesPerSecond);
+        config.playerMoveBurst = intProperty("playerMoveBurst", config.playerMoveBurst);
+        return config;
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    private static int intProperty(String name, int defaultValue) {
+        return Integer.getInteger(PREFIX + name, defaultValue);
+    }
+
+    private static boolean booleanProperty(String name, boolean defaultValue) {
+        String value = System.getProperty(PREFIX + name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ * @author Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import com.google.gson.Gson;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.oose2015.llin34.hareandhounds.Game.LAST_LIVE_STATE;
+
+/**
+ * Fans game changes out to spectators, who watch a game without playing it.
+ *
+ * Every change of a watched game becomes one immutable Frame. The binary
+ * form of a frame is built once and the same bytes are handed to every
+ * subscriber; the JSON form is built once, the first time an HTTP spectator
+ * asks for it. Subscribers only ever need the latest frame, so one that
+ * falls behind skips the frames it has not sent yet instead of queueing
+ * them.
+ */
+public class SpectatorHub {
+
+    /**
+     * Something that receives the frames of the games it watches.
+     */
+    public interface Subscriber {
+        /**
+         * Take a new frame. Called on the thread that changed the game, so
+         * it must not block.
+         * @param frame
+         */
+        void offer(Frame frame);
+    }
+
+    private final Map<Integer, Channel> channels = new ConcurrentHashMap<>();
+
+    private final LongAdder framesPublished = new LongAdder();
+    private final LongAdder framesDropped = new LongAdder();
+    private final LongAdder slowSubscribers = new LongAdder();
+
+
+    /**
+     * Publish the current state of a game to its spectators. Does nothing
+     * if nobody watches the game.
+     * @param game
+     */
+    public void publish(Game game) {
+        Channel channel = channels.get(game.getGameId());
+        if (channel == null) {
+            return;
+        }
+        Frame frame = new Frame(game);
+        channel.latest.set(frame);
+        framesPublished.increment();
+        for (Subscriber subscriber : channel.subscribers) {
+            subscriber.offer(frame);
+        }
+        if (frame.isFinished()) {
+            // A finished game sends no more frames.
+            channels.remove(game.getGameId());
+        }
+    }
+
+    /**
+     * Forget a game that left the live games, e.g. because it expired or was
+     * archived: its channel and latest frame go, and its subscribers get no
+     * more frames.
+     * @param gameId
+     */
+    public void drop(int gameId) {
+        channels.remove(gameId);
+    }
+
+    /**
+     * The latest frame of a game. Live games keep their frame, so repeated
+     * requests between two moves share it.
+     * @param game
+     * @return the frame of the game's current version
+     */
+    public Frame latest(Game game) {
+        if (game.getStateInt() > LAST_LIVE_STATE) {
+            // Finished games do not change any more; do not keep a channel for them.
+            Channel channel = channels.get(game.getGameId());
+            Frame frame = channel == null ? null : channel.latest.get();
+            return frame != null && frame.version == game.getVersion() ? frame : new Frame(game);
+        }
+
+        Channel channel = channels.computeIfAbsent(game.getGameId(), id -> new Channel());
+        if (game.getStateInt() > LAST_LIVE_STATE) {
+            // Finished since the check above, perhaps after its last frame
+            // was published; do not leave the channel behind.
+            channels.remove(game.getGameId(), channel);
+            return new Frame(game);
+        }
+        Frame frame = channel.latest.get();
+        while (frame == null || frame.version < game.getVersion()) {
+            Frame current = new Frame(game);
+            if (channel.latest.compareAndSet(frame, current)) {
+                return current;
+            }
+            frame = channel.latest.get();
+        }
+        return frame;
+    }
+
+    /**
+     * Start sending the frames of a game to a subscriber.
+     * @param game
+     * @param subscriber
+     * @return the latest frame, to send first
+     */
+    public Frame subscribe(Game game, Subscriber subscriber) {
+        Frame frame = latest(game);
+        if (!frame.isFinished()) {
+            Channel channel = channels.computeIfAbsent(game.getGameId(), id -> new Channel());
+            channel.subscribers.add(subscriber);
+            if (game.getStateInt() > LAST_LIVE_STATE) {
+                // Finished while subscribing; the last frame may have gone
+                // out before the subscriber was added, so send it instead.
+                channels.remove(game.getGameId(), channel);
+                return latest(game);
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Stop sending the frames of a game to a subscriber.
+     * @param gameId
+     * @param subscriber
+     */
+    public void unsubscribe(int gameId, Subscriber subscriber) {
+        Channel channel = channels.get(gameId);
+        if (channel != null) {
+            channel.subscribers.remove(subscriber);
+        }
+    }
+
+    public void recordDropped() { framesDropped.increment(); }
+
+    public void recordSlowSubscriber() { slowSubscribers.increment(); }
+
+    public long getFramesPublished() { return framesPublished.sum(); }
+
+    public long getFramesDropped() { return framesDropped.sum(); }
+
+    public long getSlowSubscribers() { return slowSubscribers.sum(); }
+
+    public int getWatchedGames() { return channels.size(); }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    private static class Channel {
+        final AtomicReference<Frame> latest = new AtomicReference<>();
+        final Set<Subscriber> subscribers = new CopyOnWriteArraySet<>();
+    }
+
+    /**
+     * The state of a game at one version. Frames are immutable and shared by
+     * every spectator of the game.
+     */
+    public static class Frame {
+        public final int gameId;
+        public final int version;
+        public final String state;
+        public final List<Piece> pieces;
+
+        private final transient int stateCode;
+        private final transient ByteBuffer binary;
+        private transient volatile byte[] json;
+
+        Frame(Game game) {
+            // Read the game under its lock, so a frame never mixes two versions.
+            synchronized (game) {
+                this.gameId = game.getGameId();
+                this.version = game.getVersion();
+                this.stateCode = game.getStateInt();
+                this.state = game.getState();
+                this.pieces = game.getBoard();
+            }
+
+            int size = BinaryProtocol.HEADER_SIZE + BinaryProtocol.bodySize(BinaryProtocol.FRAME);
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            BinaryProtocol.putFrame(buffer, gameId, version, stateCode, pieces);
+            buffer.flip();
+            this.binary = buffer.asReadOnlyBuffer();
+        }
+
+        /**
+         * The frame as a FRAME message of BinaryProtocol.
+         * @return a buffer of its own over the shared bytes
+         */
+        public ByteBuffer binary() {
+            return binary.duplicate();
+        }
+
+        /**
+         * The frame as UTF-8 JSON, built on first use.
+         * @return the shared bytes; do not modify
+         */
+        public byte[] json() {
+            byte[] bytes = json;
+            if (bytes == null) {
+                bytes = new Gson().toJson(this).getBytes(StandardCharsets.UTF_8);
+                json = bytes;
+            }
+            return bytes;
+        }
+
+        public boolean isFinished() { return stateCode > LAST_LIVE_STATE; }
+    }
+}
@@ -0,0 +1,524 @@
+/**
+ * @author Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import com.google.gson.Gson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sql2o.Connection;
+import org.sql2o.Query;
+import org.sql2o.Sql2o;
+import org.sql2o.Sql2oException;
+import org.sql2o.data.Row;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.oose2015.llin34.hareandhounds.Game.LAST_LIVE_STATE;
+
+/**
+ * Games stored as JSON rows of a SQLite database: the game table holds
+ * live and recently finished games, game_archive the older finished ones,
+ * and the statistics tables hold the win totals. The schema is created or
+ * upgraded when the repository is constructed.
+ */
+public class SqliteGameRepository implements GameRepository {
+
+    // Value of PRAGMA auto_vacuum in incremental mode.
+    private static final int INCREMENTAL_VACUUM = 2;
+
+    // Free pages handed back after each archive batch.
+    private static final int VACUUM_PAGES = 512;
+
+    private final Sql2o db;
+
+    // Time spent in each phase of every database operation.
+    private final PersistenceTimings timings;
+
+    // SQLite lets one connection write at a time. Writers wait their turn
+    // here, first come first served, rather than in SQLite's busy handler,
+    // which polls the file lock and can starve a writer past its timeout.
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+
+    private final Logger logger = LoggerFactory.getLogger(SqliteGameRepository.class);
+
+
+    /**
+     * Open the database, creating its schema if necessary.
+     * @param dataSource
+     * @param timings where database operations are recorded
+     * @throws GameService.GameServiceException
+     */
+    public SqliteGameRepository(DataSource dataSource, PersistenceTimings timings)
+            throws GameService.GameServiceException {
+        this.db = new Sql2o(dataSource);
+        this.timings = timings;
+
+        enableIncrementalVacuum();
+
+        //Create the schema for the database if necessary. This allows this
+        //program to mostly self-contained. But this is not always what you want;
+        //sometimes you want to create the schema externally via a script.
+        try (Connection conn = db.open()) {
+            String sql = "CREATE TABLE IF NOT EXISTS game (game_id INTEGER PRIMARY KEY, " +
+                                                          "bigger_player_id INTEGER, " +
+                                                          "game_json STRING, game_state INTEGER)";
+            conn.createQuery(sql).executeUpdate();
+
+            // Databases created before games were archived lack finished_at,
+            // the time (in ms) a game ended; 0 while it is being played.
+            if (!hasColumn(conn, "game", "finished_at")) {
+                sql = "ALTER TABLE game ADD COLUMN finished_at INTEGER NOT NULL DEFAULT 0";
+                conn.createQuery(sql).executeUpdate();
+            }
+
+            // Finished games are moved here by archiveFinishedGames().
+            sql = "CREATE TABLE IF NOT EXISTS game_archive (game_id INTEGER PRIMARY KEY, " +
+                                                           "bigger_player_id INTEGER, " +
+                                                           "game_json STRING, game_state INTEGER, " +
+                                                           "finished_at INTEGER NOT NULL DEFAULT 0)";
+            conn.createQuery(sql).executeUpdate();
+
+            // Listing finished games by state walks these indexes in gameId order.
+            sql = "CREATE INDEX IF NOT EXISTS game_state_id ON game (game_state, game_id)";
+            conn.createQuery(sql).executeUpdate();
+            sql = "CREATE INDEX IF NOT EXISTS game_archive_state_id ON game_archive (game_state, game_id)";
+            conn.createQuery(sql).executeUpdate();
+            sql = "CREATE INDEX IF NOT EXISTS game_archive_player ON game_archive (bigger_player_id)";
+            conn.createQuery(sql).executeUpdate();
+
+            // Win totals, only ever incremented; see storeStatistics().
+            sql = "CREATE TABLE IF NOT EXISTS game_stats (name STRING PRIMARY KEY, value INTEGER NOT NULL)";
+            conn.createQuery(sql).executeUpdate();
+            sql = "CREATE TABLE IF NOT EXISTS player_stats (player_id INTEGER PRIMARY KEY, " +
+                                                           "wins INTEGER NOT NULL, losses INTEGER NOT NULL, " +
+                                                           "moves INTEGER NOT NULL)";
+            conn.createQuery(sql).executeUpdate();
+
+        } catch(Sql2oException ex) {
+            logger.error("Failed to create schema at startup", ex);
+            throw new GameService.GameServiceException("Failed to create schema at startup", ex);
+        }
+    }
+
+
+    @Override
+    public List<Game> loadLiveGames() throws GameService.GameServiceException {
+        // Only reload games that are not finished yet (game_state <= 2).
+        String sql = "SELECT game_json FROM game WHERE game_state <= 2";
+        long start = System.nanoTime();
+        try (Connection conn = db.open()) {
+            long opened = System.nanoTime();
+            List<String> gameStrings =  conn.createQuery(sql)
+                .executeAndFetch(String.class);
+            timings.record(PersistenceTimings.Operation.LOAD, -1, sql, start, opened, System.nanoTime(),
+                    gameStrings.size());
+
+            // Restore games from query result.
+            Gson gson = new Gson();
+            List<Game> games = new ArrayList<>(gameStrings.size());
+            for (String gameString: gameStrings){
+                long parseStart = System.nanoTime();
+                games.add(gson.fromJson(gameString, Game.class));
+                timings.json(PersistenceTimings.Operation.LOAD, System.nanoTime() - parseStart, gameString.length());
+            }
+            return games;
+
+        } catch(Sql2oException ex) {
+            logger.error("GameService.findAll: Failed to query database", ex);
+            throw new GameService.GameServiceException("GameService.findAll: Failed to query database", ex);
+        }
+    }
+
+
+    @Override
+    public Integer[] maxIds() throws GameService.GameServiceException {
+        long start = System.nanoTime();
+        try (Connection conn = db.open()) {
+            long opened = System.nanoTime();
+            Integer[] maxIds = {maxOfBoth(conn, "game_id"), maxOfBoth(conn, "bigger_player_id")};
+            timings.record(PersistenceTimings.Operation.STARTUP, -1, "SELECT MAX(game_id), MAX(bigger_player_id)",
+                    start, opened, System.nanoTime(), 2);
+            return maxIds;
+        } catch(Sql2oException ex) {
+            logger.error("Failed to read the largest ids at startup", ex);
+            throw new GameService.GameServiceException("Failed to read the largest ids at startup", ex);
+        }
+    }
+
+
+    @Override
+    public Game findGame(int gameId) throws GameService.GameServiceException {
+        String sql = "SELECT game_json FROM game WHERE game_id = :game_id " +
+                     "UNION ALL SELECT game_json FROM game_archive WHERE game_id = :game_id";
+        long start = System.nanoTime();
+        try (Connection conn = db.open()) {
+            long opened = System.nanoTime();
+            String gameJson = conn.createQuery(sql)
+                    .addParameter("game_id", gameId)
+                    .executeScalar(String.class);
+            timings.record(PersistenceTimings.Operation.FIND, gameId, sql, start, opened, System.nanoTime(),
+                    gameJson == null ? 0 : 1);
+            if (gameJson == null) {
+                return null;
+            }
+            long parseStart = System.nanoTime();
+            Game stored = new Gson().fromJson(gameJson, Game.class);
+            timings.json(PersistenceTimings.Operation.FIND, System.nanoTime() - parseStart, gameJson.length());
+            return stored;
+        } catch(Sql2oException ex) {
+            logger.error("GameService.findGame: Failed to query database", ex);
+            throw new GameService.GameServiceException("GameService.findGame: Failed to query database", ex);
+        }
+    }
+
+
+    @Override
+    public List<Integer> listFinishedGames(int state, int after, int limit) throws GameService.GameServiceException {
+        String sql = "SELECT game_id FROM (SELECT game_id FROM game " +
+                     "WHERE game_state = :game_state AND game_id > :after ORDER BY game_id LIMIT :limit) " +
+                     "UNION ALL SELECT game_id FROM (SELECT game_id FROM game_archive " +
+                     "WHERE game_state = :game_state AND game_id > :after ORDER BY game_id LIMIT :limit) " +
+                     "ORDER BY game_id LIMIT :limit";
+        long start = System.nanoTime();
+        try (Connection conn = db.open()) {
+            long opened = System.nanoTime();
+            List<Integer> gameIds = conn.createQuery(sql)
+                    .addParameter("game_state", state)
+                    .addParameter("after", after)
+                    .addParameter("limit", limit)
+                    .executeAndFetch(Integer.class);
+            timings.record(PersistenceTimings.Operation.LIST, -1, sql, start, opened, System.nanoTime(), gameIds.size());
+            return gameIds;
+        } catch(Sql2oException ex) {
+            logger.error("GameService.listGames: Failed to query database", ex);
+            throw new GameService.GameServiceException("GameService.listGames: Failed to query database", ex);
+        }
+    }
+
+
+    @Override
+    public Write insertGame(Game game) {
+        // Build the JSON now, while the caller still has the game to itself.
+        long jsonStart = System.nanoTime();
+        String gameJson = new Gson().toJson(game);
+        timings.json(PersistenceTimings.Operation.INSERT, System.nanoTime() - jsonStart, gameJson.length());
+        int gameId = game.getGameId();
+        int biggerPlayerId = biggerPlayerId(game);
+        int gameState = game.getStateInt();
+
+        return () -> exclusive(() -> insertGameRow(gameId, biggerPlayerId, gameJson, gameState));
+    }
+
+
+    @Override
+    public void insertGames(List<Game> games) throws GameService.GameServiceException {
+        String sql = "INSERT INTO game (game_id, bigger_player_id, game_json, game_state) " +
+                                "VALUES ( :gameId, :bigger_player_id, :game_json, :game_state)";
+
+        // Build the JSON before the transaction, so it is held for the inserts only.
+        Gson gson = new Gson();
+        long jsonStart = System.nanoTime();
+        List<String> gameJsons = new ArrayList<>(games.size());
+        int jsonBytes = 0;
+        for (Game game : games) {
+            String gameJson = gson.toJson(game);
+            gameJsons.add(gameJson);
+            jsonBytes += gameJson.length();
+        }
+        timings.json(PersistenceTimings.Operation.INSERT_BATCH, System.nanoTime() - jsonStart, jsonBytes);
+
+        exclusive(() -> {
+            long start = System.nanoTime();
+            // SQLite only offers serializable (or read uncommitted) transactions.
+            try (Connection conn = db.beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE)) {
+                long opened = System.nanoTime();
+                Query query = conn.createQuery(sql);
+                for (int i = 0; i < games.size(); i++) {
+                    Game game = games.get(i);
+                    query.addParameter("gameId", game.getGameId())
+                        .addParameter("bigger_player_id", biggerPlayerId(game))
+                        .addParameter("game_json", gameJsons.get(i))
+                        .addParameter("game_state", game.getStateInt())
+                        .addToBatch();
+                }
+                query.executeBatch();
+                conn.commit();
+                timings.record(PersistenceTimings.Operation.INSERT_BATCH, -1, sql, start, opened, System.nanoTime(),
+                        games.size());
+            } catch(Sql2oException ex) {
+                logger.error("GameService.createNewGames: Failed to create new games", ex);
+                throw new GameService.GameServiceException("GameService.createNewGames: Failed to create new games", ex);
+            }
+        });
+    }
+
+
+    @Override
+    public Write updateGame(Game game, long finishedAt) {
+        long jsonStart = System.nanoTime();
+        String gameJson = new Gson().toJson(game);
+        timings.json(PersistenceTimings.Operation.UPDATE, System.nanoTime() - jsonStart, gameJson.length());
+        int gameId = game.getGameId();
+        int biggerPlayerId = biggerPlayerId(game);
+        int gameState = game.getStateInt();
+
+        return () -> exclusive(() -> updateGameRow(gameId, biggerPlayerId, gameJson, gameState, finishedAt));
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * The move is one transaction; the freed pages are then handed back to
+     * the file system a few at a time.
+     */
+    @Override
+    public List<Integer> archiveFinishedGames(long finishedBefore, int batchSize)
+            throws GameService.GameServiceException {
+        String finished = " FROM game WHERE game_state > " + LAST_LIVE_STATE + " AND finished_at < :before";
+        List<Integer> gameIds;
+
+        long start = System.nanoTime();
+        writeLock.lock();
+        try (Connection conn = db.beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE)) {
+            long opened = System.nanoTime();
+            gameIds = conn.createQuery("SELECT game_id" + finished + " ORDER BY game_id LIMIT :limit")
+                    .addParameter("before", finishedBefore)
+                    .addParameter("limit", batchSize)
+                    .executeAndFetch(Integer.class);
+            if (gameIds.isEmpty()) {
+                return gameIds;
+            }
+
+            // The selected games are exactly the finished ones up to the last selected id.
+            int lastId = gameIds.get(gameIds.size() - 1);
+            conn.createQuery("INSERT OR REPLACE INTO game_archive " +
+                             "SELECT game_id, bigger_player_id, game_json, game_state, finished_at" +
+                             finished + " AND game_id <= :last_id")
+                    .addParameter("before", finishedBefore)
+                    .addParameter("last_id", lastId)
+                    .executeUpdate();
+            conn.createQuery("DELETE" + finished + " AND game_id <= :last_id")
+                    .addParameter("before", finishedBefore)
+                    .addParameter("last_id", lastId)
+                    .executeUpdate();
+            conn.commit();
+            timings.record(PersistenceTimings.Operation.ARCHIVE, -1, "INSERT INTO game_archive ..." + finished,
+                    start, opened, System.nanoTime(), gameIds.size());
+        } catch(Sql2oException ex) {
+            logger.error("GameService.archiveFinishedGames: Failed to archive games", ex);
+            throw new GameService.GameServiceException("GameService.archiveFinishedGames: Failed to archive games", ex);
+        } finally {
+            writeLock.unlock();
+        }
+
+        try {
+            exclusive(() -> {
+                try (Connection conn = db.open()) {
+                    conn.createQuery("PRAGMA incremental_vacuum(" + VACUUM_PAGES + ")").executeUpdate();
+                }
+            });
+        } catch(Sql2oException ex) {
+            logger.warn("GameService.archiveFinishedGames: Incremental vacuum failed", ex);
+        }
+        return gameIds;
+    }
+
+
+    @Override
+    public GameStatistics loadStatistics() throws GameService.GameServiceException {
+        Map<String, Long> counters = new HashMap<>();
+        List<GameStatistics.PlayerStats> players = new ArrayList<>();
+        try (Connection conn = db.open()) {
+            for (Row row : conn.createQuery("SELECT name, value FROM game_stats").executeAndFetchTable().rows()) {
+                counters.put(row.getString("name"), row.getLong("value"));
+            }
+
+            String sql = "SELECT player_id, wins, losses, moves FROM player_stats";
+            for (Row row : conn.createQuery(sql).executeAndFetchTable().rows()) {
+                GameStatistics.PlayerStats stats = new GameStatistics.PlayerStats(row.getInteger("player_id"));
+                stats.wins = row.getInteger("wins");
+                stats.losses = row.getInteger("losses");
+                stats.games = stats.wins + stats.losses;
+                stats.moves = row.getLong("moves");
+                players.add(stats);
+            }
+        } catch(Sql2oException ex) {
+            logger.error("Failed to load game statistics", ex);
+            throw new GameService.GameServiceException("Failed to load game statistics", ex);
+        }
+
+        GameStatistics statistics = new GameStatistics();
+        statistics.add(counters, players);
+        return statistics;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * The game is added to the stored totals as increments, so games may be
+     * stored in any order.
+     */
+    @Override
+    public void storeStatistics(Game game) throws GameService.GameServiceException {
+        String winsName = GameStatistics.counterName(game.getStateInt());
+        if (winsName == null) {
+            return;
+        }
+        int winner = GameStatistics.winnerId(game);
+        int loser = GameStatistics.loserId(game);
+        exclusive(() -> storeStatistics(game, winsName, winner, loser));
+    }
+
+
+    // Every write is done by the time the service closes the repository.
+    @Override
+    public void close() {
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * Let archiving hand free pages back a few at a time. Switching an
+     * existing database over needs one full VACUUM, which SQLite only runs
+     * on a connection with no other statement open.
+     */
+    private void enableIncrementalVacuum() throws GameService.GameServiceException {
+        try {
+            int mode;
+            try (Connection conn = db.open()) {
+                mode = conn.createQuery("PRAGMA auto_vacuum").executeScalar(Integer.class);
+            }
+            if (mode != INCREMENTAL_VACUUM) {
+                try (Connection conn = db.open()) {
+                    conn.createQuery("PRAGMA auto_vacuum = INCREMENTAL").executeUpdate();
+                }
+                try (Connection conn = db.open()) {
+                    conn.createQuery("VACUUM").executeUpdate();
+                }
+            }
+        } catch(Sql2oException ex) {
+            logger.error("Failed to enable incremental vacuum", ex);
+            throw new GameService.GameServiceException("Failed to enable incremental vacuum", ex);
+        }
+    }
+
+    private static boolean hasColumn(Connection conn, String table, String column) {
+        for (Row row : conn.createQuery("PRAGMA table_info(" + table + ")").executeAndFetchTable().rows()) {
+            if (column.equals(row.getString("name"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The largest value of a column over the game table and its archive.
+    private static Integer maxOfBoth(Connection conn, String column) {
+        String sql = "SELECT MAX(" + column + ") FROM (SELECT MAX(" + column + ") AS " + column + " FROM game " +
+                     "UNION ALL SELECT MAX(" + column + ") FROM game_archive)";
+        return conn.createQuery(sql).executeScalar(Integer.class);
+    }
+
+    private void storeStatistics(Game game, String winsName, int winner, int loser)
+            throws GameService.GameServiceException {
+        String addStat = "UPDATE game_stats SET value = value + :delta WHERE name = :name";
+        String addPlayer = "UPDATE player_stats SET wins = wins + :wins, losses = losses + :losses, " +
+                           "moves = moves + :moves WHERE player_id = :player_id";
+
+        long start = System.nanoTime();
+        try (Connection conn = db.beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE)) {
+            long opened = System.nanoTime();
+            // SQLite has no upsert here; make sure every row exists first.
+            for (String name : new String[]{"gamesFinished", "totalMoves", winsName}) {
+                conn.createQuery("INSERT OR IGNORE INTO game_stats (name, value) VALUES (:name, 0)")
+                        .addParameter("name", name).executeUpdate();
+            }
+            for (int playerId : new int[]{winner, loser}) {
+                conn.createQuery("INSERT OR IGNORE INTO player_stats (player_id, wins, losses, moves) " +
+                                 "VALUES (:player_id, 0, 0, 0)")
+                        .addParameter("player_id", playerId).executeUpdate();
+            }
+
+            conn.createQuery(addStat).addParameter("delta", 1).addParameter("name", "gamesFinished").executeUpdate();
+            conn.createQuery(addStat).addParameter("delta", game.getMoveCount()).addParameter("name", "totalMoves")
+                    .executeUpdate();
+            conn.createQuery(addStat).addParameter("delta", 1).addParameter("name", winsName).executeUpdate();
+            conn.createQuery(addPlayer).addParameter("wins", 1).addParameter("losses", 0)
+                    .addParameter("moves", game.getMoveCount()).addParameter("player_id", winner).executeUpdate();
+            conn.createQuery(addPlayer).addParameter("wins", 0).addParameter("losses", 1)
+                    .addParameter("moves", game.getMoveCount()).addParameter("player_id", loser).executeUpdate();
+            conn.commit();
+            timings.record(PersistenceTimings.Operation.STORE_STATS, game.getGameId(), addPlayer,
+                    start, opened, System.nanoTime(), 5);
+        } catch(Sql2oException ex) {
+            logger.error("Failed to store game statistics", ex);
+            throw new GameService.GameServiceException("Failed to store game statistics", ex);
+        }
+    }
+
+    private static int biggerPlayerId(Game game) {
+        return game.getHareId() > game.getHoundId() ? game.getHareId() : game.getHoundId();
+    }
+
+    // Run a write once no other write of this repository is running.
+    private void exclusive(Write write) throws GameService.GameServiceException {
+        writeLock.lock();
+        try {
+            write.run();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void insertGameRow(int gameId, int biggerPlayerId, String gameJson, int gameState)
+            throws GameService.GameServiceException {
+        String sql = "INSERT INTO game (game_id, bigger_player_id, game_json, game_state) " +
+                                "VALUES ( :gameId, :bigger_player_id, :game_json, :game_state)";
+
+        long start = System.nanoTime();
+        try (Connection conn = db.open()) {
+            long opened = System.nanoTime();
+            int rows = conn.createQuery(sql)
+                .addParameter("gameId", gameId)
+                .addParameter("bigger_player_id", biggerPlayerId)
+                .addParameter("game_json", gameJson)
+                .addParameter("game_state", gameState)
+                .executeUpdate()
+                .getResult();
+            timings.record(PersistenceTimings.Operation.INSERT, gameId, sql, start, opened, System.nanoTime(), rows);
+        } catch(Sql2oException ex) {
+            logger.error("GameService.createNewGame: Failed to create new game", ex);
+            throw new GameService.GameServiceException("GameService.createNewGame: Failed to create new game", ex);
+        }
+    }
+
+    private void updateGameRow(int gameId, int biggerPlayerId, String gameJson, int gameState, long finishedAt)
+            throws GameService.GameServiceException {
+        String sql = "UPDATE game SET game_json = :game_json, bigger_player_id = :bigger_player_id" +
+                ", game_state = :game_state, finished_at = :finished_at WHERE game_id = :game_id";
+        long start = System.nanoTime();
+        try (Connection conn = db.open()) {
+            long opened = System.nanoTime();
+            int rows = conn.createQuery(sql)
+                    .addParameter("game_json", gameJson)
+                    .addParameter("bigger_player_id", biggerPlayerId)
+                    .addParameter("game_state", gameState)
+                    .addParameter("finished_at", finishedAt)
+                    .addParameter("game_id", gameId)
+                    .executeUpdate()
+                    .getResult();
+            timings.record(PersistenceTimings.Operation.UPDATE, gameId, sql, start, opened, System.nanoTime(), rows);
+        } catch(Sql2oException ex) {
+            logger.error("Failed to update game database", ex);
+            throw new GameService.GameServiceException("Failed to update game database", ex);
+        }
+    }
+}
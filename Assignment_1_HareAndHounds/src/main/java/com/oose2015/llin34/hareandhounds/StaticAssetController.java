@@ -0,0 +1,255 @@
+/**
+ * @author Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.Request;
+import spark.Response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static spark.Spark.*;
+
+/**
+ * Serves the front end (html, scripts, css and images) from memory.
+ *
+ * Every file under the static folder is read once at startup. Text assets
+ * are also gzipped once, and every asset gets a version from a hash of its
+ * content. The page links to the files it uses with their version in the
+ * query string (scripts/app.js?v=...), and only such versioned requests may
+ * be cached for maxAgeSeconds; a new release changes the links. Everything
+ * else is sent with no-cache and revalidated with its ETag, which differs
+ * between the gzipped and the plain bytes. Requests are answered with the
+ * pre-gzipped bytes when the client accepts them, and with 304 Not Modified
+ * when the client already has the asset.
+ */
+public class StaticAssetController {
+
+    // Content types by file extension.
+    private static final Map<String, String> CONTENT_TYPES;
+    static
+    {
+        CONTENT_TYPES = new HashMap<>();
+        CONTENT_TYPES.put("html", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("js", "application/javascript; charset=utf-8");
+        CONTENT_TYPES.put("css", "text/css; charset=utf-8");
+        CONTENT_TYPES.put("md", "text/plain; charset=utf-8");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+    }
+
+    private static final String WELCOME_FILE = "/index.html";
+
+    private final Map<String, Asset> assets = new HashMap<>();
+
+    private final int maxAgeSeconds;
+
+    private final Logger logger = LoggerFactory.getLogger(StaticAssetController.class);
+
+
+    /**
+     * Load every file under the given classpath folder and register a route
+     * for each of them.
+     * @param folder classpath folder, e.g. "/public"
+     * @param maxAgeSeconds how long browsers may cache versioned assets without asking
+     * @throws IOException if the folder can not be read.
+     */
+    public StaticAssetController(String folder, int maxAgeSeconds) throws IOException {
+        this.maxAgeSeconds = maxAgeSeconds;
+        loadAssets(folder);
+        setupEndpoints();
+    }
+
+    private void setupEndpoints() {
+        for (Map.Entry<String, Asset> entry : assets.entrySet()) {
+            Asset asset = entry.getValue();
+            get(entry.getKey(), (request, response) -> serve(asset, request, response));
+            if (entry.getKey().equals(WELCOME_FILE)) {
+                get("/", (request, response) -> serve(asset, request, response));
+            }
+        }
+    }
+
+    /**
+     * Write an asset to the response. The body is written and committed
+     * here, so Spark does not serialize (or gzip) it a second time.
+     */
+    private Object serve(Asset asset, Request request, Response response) throws IOException {
+        boolean gzip = asset.gzipped != null && ContentEncoding.acceptsGzip(request.headers("Accept-Encoding"));
+        String etag = gzip ? asset.gzipEtag : asset.etag;
+        response.header("ETag", etag);
+        response.header("Cache-Control", asset.version.equals(request.queryParams("v"))
+                ? "public, max-age=" + maxAgeSeconds + ", immutable"
+                : "no-cache");
+        if (asset.gzipped != null) {
+            response.header("Vary", "Accept-Encoding");
+        }
+
+        if (matches(request.headers("If-None-Match"), etag)) {
+            response.status(304);
+            return "";
+        }
+
+        byte[] body = asset.content;
+        if (gzip) {
+            response.header("Content-Encoding", "gzip");
+            body = asset.gzipped;
+        }
+
+        response.status(200);
+        response.type(asset.contentType);
+        response.raw().setContentLength(body.length);
+        OutputStream out = response.raw().getOutputStream();
+        out.write(body);
+        out.flush();
+        return "";
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Loading
+    //-----------------------------------------------------------------------------//
+
+    /**
+     * Read the folder from the classpath, whether it is a directory on disk
+     * (running from the IDE or tests) or an entry in the shaded jar.
+     */
+    private void loadAssets(String folder) throws IOException {
+        URL url = StaticAssetController.class.getResource(folder);
+        if (url == null) {
+            throw new IOException("Static folder " + folder + " is not on the classpath");
+        }
+
+        try {
+            URI uri = url.toURI();
+            if ("jar".equals(uri.getScheme())) {
+                try (FileSystem jar = FileSystems.newFileSystem(uri, Collections.<String, Object>emptyMap())) {
+                    loadAssets(jar.getPath(folder));
+                } catch (FileSystemAlreadyExistsException ex) {
+                    loadAssets(FileSystems.getFileSystem(uri).getPath(folder));
+                }
+            } else {
+                loadAssets(Paths.get(uri));
+            }
+        } catch (URISyntaxException ex) {
+            throw new IOException("Bad static folder location " + url, ex);
+        }
+
+        Asset page = assets.get(WELCOME_FILE);
+        if (page != null) {
+            assets.put(WELCOME_FILE, createAsset(WELCOME_FILE, versionLinks(page.content)));
+        }
+
+        long bytes = 0;
+        for (Asset asset : assets.values()) {
+            bytes += asset.content.length + (asset.gzipped == null ? 0 : asset.gzipped.length);
+        }
+        logger.info("Loaded {} static assets ({} bytes) from {}", assets.size(), bytes, folder);
+    }
+
+    private void loadAssets(Path root) throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                String path = "/" + root.relativize(file).toString().replace('\\', '/');
+                assets.put(path, createAsset(path, Files.readAllBytes(file)));
+            }
+        }
+    }
+
+    private Asset createAsset(String path, byte[] content) throws IOException {
+        String extension = path.substring(path.lastIndexOf('.') + 1).toLowerCase();
+        Asset asset = new Asset();
+        asset.content = content;
+        asset.contentType = CONTENT_TYPES.getOrDefault(extension, "application/octet-stream");
+        asset.version = hash(content);
+        asset.etag = "\"" + asset.version + "\"";
+        asset.gzipEtag = "\"" + asset.version + "-gzip\"";
+
+        if (asset.contentType.startsWith("text/") || asset.contentType.startsWith("application/javascript")) {
+            byte[] gzipped = ContentEncoding.gzip(content);
+            if (gzipped.length < content.length) {
+                asset.gzipped = gzipped;
+            }
+        }
+        return asset;
+    }
+
+    /**
+     * Add the version of every asset the page links to, e.g.
+     * src="scripts/app.js" becomes src="scripts/app.js?v=...".
+     * @param page content of the welcome file
+     * @return the page with versioned links
+     */
+    private byte[] versionLinks(byte[] page) {
+        String html = new String(page, StandardCharsets.UTF_8);
+        for (Map.Entry<String, Asset> entry : assets.entrySet()) {
+            String link = "\"" + entry.getKey().substring(1);
+            html = html.replace(link + "\"", link + "?v=" + entry.getValue().version + "\"");
+        }
+        return html.getBytes(StandardCharsets.UTF_8);
+    }
+
+    //-----------------------------------------------------------------------------//
+    // Helper Classes and Methods
+    //-----------------------------------------------------------------------------//
+
+    // Whether an If-None-Match header names the ETag, or is "*".
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 10; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-1 is not available", ex);
+        }
+    }
+
+    /**
+     * A static file held in memory.
+     */
+    private static class Asset {
+        byte[] content;
+        byte[] gzipped;
+        String contentType;
+        String version;
+        String etag;
+        String gzipEtag;
+    }
+}
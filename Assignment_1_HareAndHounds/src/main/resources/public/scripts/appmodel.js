@@ -5,6 +5,8 @@ var appModel = (function () {
         playerId : null,
         pieceType : null,
         gameState : null,
+        board : [],
+        boardVersion : -1
     };
 
     /* Create a new game. Note that this returns a deffered object that the control can chain on */
@@ -14,6 +16,8 @@ var appModel = (function () {
              state.gameId = data.gameId;
              state.playerId = data.playerId;
              state.pieceType = data.pieceType;
+             state.board = [];
+             state.boardVersion = -1;
              console.log("That worked: Game Id: " + data.gameId + " Player Id: " + data.playerId) ;
          }).fail(function (jqXHR) {
              console.log('Error ' + jqXHR.status);
@@ -31,6 +35,8 @@ var appModel = (function () {
              state.gameId = data.gameId;
              state.playerId = data.playerId;
              state.pieceType = data.pieceType;
+             state.board = [];
+             state.boardVersion = -1;
              console.log("We joined: Game Id: " + data.gameId + " Player Id: " + data.playerId) ;
          }).fail(function (jqXHR) {
              console.log('Error ' + jqXHR.status + ' ' + jqXHR.responseText);
@@ -48,9 +54,23 @@ var appModel = (function () {
     };
 
     /* Fetch the board state from the server. Returns a deffered object that the control can chain on */
+    /* Only the pieces that moved since the board we have are sent; the deffered resolves with the whole board */
     var privateFetchBoard = function() {
-        return $.get('/hareandhounds/api/games/' + state.gameId + '/board', "", null, 'json')
-            .fail(function (jqXHR) {
+        return $.get('/hareandhounds/api/games/' + state.gameId + '/board', {since : state.boardVersion}, null, 'json')
+            .then(function (delta) {
+                //Nothing is sent when the board did not change
+                if (delta) {
+                    if (delta.snapshot) {
+                        state.board = [];
+                    }
+                    for (var i = 0; i < delta.pieces.length; i++) {
+                        var piece = delta.pieces[i];
+                        state.board[piece.index] = {pieceType : piece.pieceType, x : piece.x, y : piece.y};
+                    }
+                    state.boardVersion = delta.version;
+                }
+                return state.board;
+            }).fail(function (jqXHR) {
                console.log('Error ' + jqXHR.status);
             });
     };
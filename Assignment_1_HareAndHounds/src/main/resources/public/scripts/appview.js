@@ -36,6 +36,21 @@ var appView = (function () {
                     "Game Over: You played the hare and lost by getting trapped!";
                 $('#state').text(status);
                 break;
+            case "WIN_HARE_BY_FORFEIT":
+                var status = pieceType === "HARE" ?
+                    "Game Over: You played the hare and won because the hounds ran out of time!" :
+                    "Game Over: You played the hound and lost by running out of time!";
+                $('#state').text(status);
+                break;
+            case "WIN_HOUND_BY_FORFEIT":
+                var status = pieceType === "HOUND" ?
+                    "Game Over: You played the hound and won because the hare ran out of time!" :
+                    "Game Over: You played the hare and lost by running out of time!";
+                $('#state').text(status);
+                break;
+            case "EXPIRED":
+                $('#state').text("Game Over: Nobody joined this game in time.");
+                break;
             default:
                 $('#state').text("The game state is: " + gameState);
         };
@@ -0,0 +1,82 @@
+/**
+ * Cost of creating games one by one compared to the batch create API.
+ * Run with "mvn test -Pbenchmark".
+ * @author: Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import org.sql2o.Connection;
+import org.sql2o.Sql2o;
+import org.sqlite.SQLiteDataSource;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class BatchCreateBenchmark {
+
+    private static final int[] BATCH_SIZES = {10, 100, 1000};
+
+    private GameService gameService;
+
+    @Before
+    public void setup() throws Exception {
+        clearDB();
+        SQLiteDataSource dataSource = new SQLiteDataSource();
+        dataSource.setUrl("jdbc:sqlite:hareandhounds.db");
+        gameService = new GameService(dataSource);
+    }
+
+    @After
+    public void tearDown() {
+        clearDB();
+    }
+
+    @Test
+    public void compareCreate() throws Exception {
+        // Warm up both paths.
+        createOneByOne(100);
+        gameService.createNewGames(Collections.nCopies(100, "HOUND"));
+
+        for (int size : BATCH_SIZES) {
+            long start = System.nanoTime();
+            createOneByOne(size);
+            double singleMillis = (System.nanoTime() - start) / 1e6;
+
+            start = System.nanoTime();
+            List<GameInfo> created = gameService.createNewGames(Collections.nCopies(size, "HOUND"));
+            double batchMillis = (System.nanoTime() - start) / 1e6;
+            assertEquals(size, created.size());
+
+            System.out.printf("%4d games: one by one %9.1f ms, batch %7.1f ms, speed-up %5.1fx%n",
+                    size, singleMillis, batchMillis, singleMillis / batchMillis);
+        }
+    }
+
+    //------------------------------------------------------------------------//
+    // Generic Helper Methods and classes
+    //------------------------------------------------------------------------//
+
+    private void createOneByOne(int games) throws GameService.GameServiceException {
+        for (int i = 0; i < games; i++) {
+            gameService.createNewGame("HOUND");
+        }
+    }
+
+    private void clearDB() {
+        SQLiteDataSource dataSource = new SQLiteDataSource();
+        dataSource.setUrl("jdbc:sqlite:hareandhounds.db");
+
+        Sql2o db = new Sql2o(dataSource);
+
+        try (Connection conn = db.open()) {
+            String sql = "DROP TABLE IF EXISTS game" ;
+            conn.createQuery(sql).executeUpdate();
+            sql = "DROP TABLE IF EXISTS game_archive" ;
+            conn.createQuery(sql).executeUpdate();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Throughput of the binary endpoint compared to the JSON API.
+ * Run with "mvn test -Pbenchmark".
+ * @author: Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import com.google.gson.Gson;
+import org.sql2o.Connection;
+import org.sql2o.Sql2o;
+import org.sqlite.SQLiteDataSource;
+import spark.Spark;
+import spark.utils.IOUtils;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class BinaryProtocolBenchmark {
+
+    private static final int BINARY_PORT = 9090;
+
+    // Games played per measurement, after the same number of warm-up games.
+    private static final int GAMES = 300;
+
+    // A full game that the hare wins by stalling: {fromX, fromY, toX, toY},
+    // alternating hound and hare moves.
+    private static final int[][] STALLING_GAME = {
+            {1, 0, 1, 1}, {4, 1, 3, 1}, {1, 1, 1, 0}, {3, 1, 4, 1},
+            {1, 0, 1, 1}, {4, 1, 3, 1}, {1, 1, 1, 0}, {3, 1, 4, 1}
+    };
+
+    private final Gson gson = new Gson();
+
+    @Before
+    public void setup() throws Exception {
+        clearDB();
+        System.setProperty("hareandhounds.binaryPort", Integer.toString(BINARY_PORT));
+        Bootstrap.main(null);
+        Spark.awaitInitialization();
+    }
+
+    @After
+    public void tearDown() {
+        Bootstrap.stop();
+        System.clearProperty("hareandhounds.binaryPort");
+        clearDB();
+    }
+
+    @Test
+    public void compareThroughput() throws Exception {
+        // Warm up both paths.
+        playJson(GAMES);
+        try (BinaryClient client = new BinaryClient(Bootstrap.IP_ADDRESS, BINARY_PORT)) {
+            playBinary(client, GAMES);
+        }
+
+        long start = System.nanoTime();
+        int jsonRequests = playJson(GAMES);
+        double jsonSeconds = (System.nanoTime() - start) / 1e9;
+
+        int binaryRequests;
+        start = System.nanoTime();
+        try (BinaryClient client = new BinaryClient(Bootstrap.IP_ADDRESS, BINARY_PORT)) {
+            binaryRequests = playBinary(client, GAMES);
+        }
+        double binarySeconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("JSON API:        %d games, %8.0f requests/s%n", GAMES, jsonRequests / jsonSeconds);
+        System.out.printf("Binary endpoint: %d games, %8.0f requests/s%n", GAMES, binaryRequests / binarySeconds);
+        System.out.printf("Speed-up:        %.1fx%n", (binaryRequests / binarySeconds) / (jsonRequests / jsonSeconds));
+    }
+
+    //------------------------------------------------------------------------//
+    // Players
+    //------------------------------------------------------------------------//
+
+    /**
+     * Play full games through the binary endpoint, taking a snapshot after
+     * every move like a polling client would.
+     * @return number of requests sent
+     */
+    private int playBinary(BinaryClient client, int games) throws IOException {
+        int requests = 0;
+        for (int g = 0; g < games; g++) {
+            GameInfo hound = client.create("HOUND");
+            GameInfo hare = client.join(hound.gameId);
+            requests += 2;
+            for (int i = 0; i < STALLING_GAME.length; i++) {
+                int[] m = STALLING_GAME[i];
+                int playerId = i % 2 == 0 ? hound.playerId : hare.playerId;
+                String result = client.move(new Move(hound.gameId, playerId, m[0], m[1], m[2], m[3]));
+                assertEquals("MOVE_OK", result);
+                assertNotNull(client.snapshot(hound.gameId));
+                requests += 2;
+            }
+            assertEquals("WIN_HARE_BY_STALLING", client.snapshot(hound.gameId).getState());
+            requests++;
+        }
+        return requests;
+    }
+
+    /**
+     * Play the same games through the JSON API.
+     * @return number of requests sent
+     */
+    private int playJson(int games) {
+        int requests = 0;
+        String api = "/hareandhounds/api/games";
+        for (int g = 0; g < games; g++) {
+            GameInfo hound = gson.fromJson(request("POST", api, new GameInfo(0, 0, "HOUND", "")), GameInfo.class);
+            GameInfo hare = gson.fromJson(request("PUT", api + "/" + hound.gameId, null), GameInfo.class);
+            requests += 2;
+            for (int i = 0; i < STALLING_GAME.length; i++) {
+                int[] m = STALLING_GAME[i];
+                int playerId = i % 2 == 0 ? hound.playerId : hare.playerId;
+                request("POST", api + "/" + hound.gameId + "/turns",
+                        new Move(hound.gameId, playerId, m[0], m[1], m[2], m[3]));
+                request("GET", api + "/" + hound.gameId + "/board", null);
+                requests += 2;
+            }
+            GameInfo state = gson.fromJson(request("GET", api + "/" + hound.gameId + "/state", null), GameInfo.class);
+            assertEquals("WIN_HARE_BY_STALLING", state.state);
+            requests++;
+        }
+        return requests;
+    }
+
+    //------------------------------------------------------------------------//
+    // Generic Helper Methods and classes
+    //------------------------------------------------------------------------//
+
+    private String request(String method, String path, Object content) {
+        try {
+            URL url = new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, path);
+            HttpURLConnection http = (HttpURLConnection) url.openConnection();
+            http.setRequestMethod(method);
+            http.setDoInput(true);
+            if (content != null) {
+                http.setDoOutput(true);
+                http.setRequestProperty("Content-Type", "application/json");
+                OutputStreamWriter output = new OutputStreamWriter(http.getOutputStream());
+                output.write(gson.toJson(content));
+                output.close();
+            }
+            assertTrue("Request failed: " + method + " " + path, http.getResponseCode() < 400);
+            return IOUtils.toString(http.getInputStream());
+        } catch (IOException e) {
+            fail("Sending request failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void clearDB() {
+        SQLiteDataSource dataSource = new SQLiteDataSource();
+        dataSource.setUrl("jdbc:sqlite:hareandhounds.db");
+
+        Sql2o db = new Sql2o(dataSource);
+
+        try (Connection conn = db.open()) {
+            String sql = "DROP TABLE IF EXISTS game" ;
+            conn.createQuery(sql).executeUpdate();
+            sql = "DROP TABLE IF EXISTS game_archive" ;
+            conn.createQuery(sql).executeUpdate();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Heap retained per live game, measured by holding many games in memory
+ * and comparing the used heap after full collections. Games are measured
+ * waiting for their second player and twelve moves into a game. Compares
+ * the measure with Game.estimateRetainedBytes(), which /admin/diagnostics
+ * reports.
+ * Run with "mvn test -Pbenchmark -Dtest=GameFootprintBenchmark"; set the
+ * game counts with -Dfootprint.games (default 10000,100000,1000000).
+ * @author: Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class GameFootprintBenchmark {
+
+    private static final String GAMES = System.getProperty("footprint.games", "10000,100000,1000000");
+
+    private static final int HOUND_ID = 1;
+    private static final int HARE_ID = 2;
+
+    // The first twelve moves of a game the hounds win, {fromX, fromY, toX, toY}
+    // alternating hound and hare moves. Every position is new, so the game
+    // ends up with thirteen stalling entries, and it is still the hounds' turn.
+    private static final int[][] OPENING = {
+            {0, 1, 1, 1}, {4, 1, 3, 1}, {1, 0, 2, 0}, {3, 1, 4, 1}, {1, 1, 2, 1}, {4, 1, 3, 1},
+            {1, 2, 2, 2}, {3, 1, 4, 1}, {2, 0, 3, 0}, {4, 1, 3, 1}, {2, 2, 3, 2}, {3, 1, 4, 1}
+    };
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    @Test
+    public void retainedHeapPerGame() throws Exception {
+        System.out.printf("%-8s %9s %14s %14s%n", "phase", "games", "bytes/game", "estimate/game");
+        for (String count : GAMES.split(",")) {
+            int games = Integer.parseInt(count.trim());
+            measure("waiting", games, 0);
+            measure("playing", games, OPENING.length);
+        }
+    }
+
+    /**
+     * Hold the given number of games in memory, each moved the given number
+     * of moves into OPENING, and print the heap they retain.
+     */
+    private void measure(String phase, int count, int moves) throws InterruptedException {
+        // The array is allocated before the baseline, so only the games count.
+        Game[] games = new Game[count];
+        long before = usedHeap();
+        for (int i = 0; i < count; i++) {
+            Game game = new Game(i, "HOUND", HOUND_ID);
+            if (moves > 0) {
+                game.joinGame(HARE_ID);
+            }
+            for (int m = 0; m < moves; m++) {
+                int[] move = OPENING[m];
+                game.movePiece(new Move(i, m % 2 == 0 ? HOUND_ID : HARE_ID, move[0], move[1], move[2], move[3]));
+            }
+            games[i] = game;
+        }
+        long after = usedHeap();
+
+        long estimate = 0;
+        for (Game game : games) {
+            estimate += game.estimateRetainedBytes();
+        }
+        assertEquals(moves == 0 ? "WAITING_FOR_SECOND_PLAYER" : "TURN_HOUND", games[count - 1].getState());
+        assertEquals(moves, games[count - 1].getMoveCount());
+        System.out.printf("%-8s %9d %14.1f %14.1f%n", phase, count,
+                (after - before) / (double) count, estimate / (double) count);
+    }
+
+    // Used heap after collecting everything that can be collected.
+    private long usedHeap() throws InterruptedException {
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+            used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+}
@@ -0,0 +1,405 @@
+/**
+ * A load test of the HTTP API with simulated players, run against a server
+ * started in this JVM. Players play in pairs like the web client does: one
+ * creates a game and the other joins it by id, then both poll the board
+ * (?since=) and the state every pollMillis, and the player with the turn
+ * moves after thinkMillis. A finished game is followed by a new one, which
+ * the hound picks after listing the live games like a lobby does.
+ *
+ * The simulation runs once without and once with "Accept-Encoding: gzip";
+ * -Dloadtest.gzip=off or =on runs only one of them.
+ *
+ * Run with "mvn test -Ploadtest"; tune it with -Dloadtest.players,
+ * -Dloadtest.durationSeconds, -Dloadtest.thinkMillis, -Dloadtest.pollMillis
+ * and -Dloadtest.clientThreads. Prints throughput, latency percentiles,
+ * response body bytes per request (as sent, so gzipped when gzip is on) and
+ * error counts per endpoint.
+ * @author: Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import com.google.gson.Gson;
+import org.sql2o.Connection;
+import org.sql2o.Sql2o;
+import org.sqlite.SQLiteDataSource;
+import spark.Spark;
+import spark.utils.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class LoadSimulation {
+
+    private static final int PLAYERS = Integer.getInteger("loadtest.players", 1000);
+    private static final int DURATION_SECONDS = Integer.getInteger("loadtest.durationSeconds", 60);
+    private static final int THINK_MILLIS = Integer.getInteger("loadtest.thinkMillis", 1000);
+    // The web client polls every two seconds.
+    private static final int POLL_MILLIS = Integer.getInteger("loadtest.pollMillis", 2000);
+    private static final int CLIENT_THREADS = Integer.getInteger("loadtest.clientThreads", 200);
+    // "off", "on" or "both".
+    private static final String GZIP = System.getProperty("loadtest.gzip", "both");
+
+    // Tries to find a legal move before a player gives up its turn until the next poll.
+    private static final int MOVE_TRIES = 8;
+
+    private static final String API = "/hareandhounds/api/games";
+
+    // Large enough to be over the compression threshold once enough games are live.
+    private static final int LIST_LIMIT = 50;
+
+    private final Map<String, Endpoint> endpoints = new LinkedHashMap<>();
+
+    private final Gson gson = new Gson();
+
+    private ScheduledExecutorService clients;
+
+    private volatile long endNanos;
+
+    private volatile boolean gzip;
+
+    @Before
+    public void setup() throws Exception {
+        clearDB();
+        Bootstrap.main(null);
+        Spark.awaitInitialization();
+    }
+
+    @After
+    public void tearDown() {
+        Bootstrap.stop();
+        clearDB();
+    }
+
+    @Test
+    public void simulatePlayers() throws Exception {
+        System.out.printf("Simulating %d players for %d s (think %d ms, poll %d ms, %d client threads)%n",
+                PLAYERS, DURATION_SECONDS, THINK_MILLIS, POLL_MILLIS, CLIENT_THREADS);
+
+        Map<String, double[]> totals = new LinkedHashMap<>();
+        if (!GZIP.equals("on")) {
+            totals.put("gzip off", simulate(false));
+        }
+        if (!GZIP.equals("off")) {
+            totals.put("gzip on", simulate(true));
+        }
+
+        System.out.printf("%n%-8s %9s %9s%n", "run", "req/s", "bytes/req");
+        for (Map.Entry<String, double[]> entry : totals.entrySet()) {
+            System.out.printf("%-8s %9.1f %9.1f%n", entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+        }
+    }
+
+    /**
+     * Run the players for DURATION_SECONDS and print the numbers of every
+     * endpoint.
+     * @param gzip whether the players accept gzipped responses
+     * @return {requests per second, response bytes per request}
+     */
+    private double[] simulate(boolean gzip) throws Exception {
+        this.gzip = gzip;
+        endpoints.clear();
+        for (String name : new String[]{"list", "create", "join", "board", "state", "turns"}) {
+            endpoints.put(name, new Endpoint());
+        }
+
+        clients = new ScheduledThreadPoolExecutor(CLIENT_THREADS);
+        long start = System.nanoTime();
+        endNanos = start + TimeUnit.SECONDS.toNanos(DURATION_SECONDS);
+        // Players arrive spread over one poll interval, as they would in practice.
+        for (int i = 0; i < PLAYERS / 2; i++) {
+            Match match = new Match();
+            clients.schedule(match::start, ThreadLocalRandom.current().nextInt(POLL_MILLIS), TimeUnit.MILLISECONDS);
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(DURATION_SECONDS));
+        clients.shutdownNow();
+        clients.awaitTermination(30, TimeUnit.SECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%nGzip %s:%n", gzip ? "on" : "off");
+        System.out.printf("%-8s %9s %9s %9s %9s %9s %9s %7s %7s%n",
+                "endpoint", "requests", "req/s", "p50 ms", "p99 ms", "p99.9 ms", "bytes/req", "4xx", "errors");
+        long served = 0;
+        long bytes = 0;
+        long errors = 0;
+        for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+            Endpoint endpoint = entry.getValue();
+            long requests = endpoint.latency.getCount();
+            System.out.printf("%-8s %9d %9.1f %9.2f %9.2f %9.2f %9.1f %7d %7d%n",
+                    entry.getKey(), requests, requests / seconds,
+                    endpoint.latency.percentile(0.5) / 1e6, endpoint.latency.percentile(0.99) / 1e6,
+                    endpoint.latency.percentile(0.999) / 1e6, (double) endpoint.bytes.sum() / Math.max(requests, 1),
+                    endpoint.rejected.sum(), endpoint.errors.sum());
+            served += requests;
+            bytes += endpoint.bytes.sum();
+            errors += endpoint.errors.sum();
+        }
+        System.out.printf("%d requests in %.1f s, %.1f req/s, %.1f bytes/req, %d errors%n",
+                served, seconds, served / seconds, (double) bytes / Math.max(served, 1), errors);
+
+        assertTrue("No requests were served", served > 0);
+        return new double[]{served / seconds, (double) bytes / Math.max(served, 1)};
+    }
+
+    //------------------------------------------------------------------------//
+    // Simulated Players
+    //------------------------------------------------------------------------//
+
+    /**
+     * Two players playing one game after another.
+     */
+    private class Match {
+        final Player hound = new Player("HOUND");
+        final Player hare = new Player("HARE");
+        volatile int gameId = -1;
+
+        /**
+         * Create a game and join it, then start both players polling.
+         */
+        void start() {
+            if (!newGame()) {
+                // Try again on the next poll.
+                schedule(this::start, POLL_MILLIS);
+                return;
+            }
+            schedule(() -> poll(hound), 0);
+            schedule(() -> poll(hare), ThreadLocalRandom.current().nextInt(POLL_MILLIS));
+        }
+
+        boolean newGame() {
+            request("list", "GET", API + "?limit=" + LIST_LIMIT, null);
+            Result created = request("create", "POST", API, new GameInfo(0, 0, "HOUND", ""));
+            if (created.status != 201) {
+                return false;
+            }
+            GameInfo game = gson.fromJson(created.body, GameInfo.class);
+            Result joined = request("join", "PUT", API + "/" + game.gameId, null);
+            if (joined.status != 200) {
+                return false;
+            }
+            hound.reset(game.playerId);
+            hare.reset(gson.fromJson(joined.body, GameInfo.class).playerId);
+            gameId = game.gameId;
+            return true;
+        }
+
+        /**
+         * Fetch the board changes and the state, then move if it is the
+         * player's turn. The hound starts the next game once one ends.
+         */
+        void poll(Player player) {
+            int game = gameId;
+            try {
+                Result board = request("board", "GET", API + "/" + game + "/board?since=" + player.version, null);
+                if (board.status == 200) {
+                    player.update(gson.fromJson(board.body, BoardDelta.class));
+                }
+                Result state = request("state", "GET", API + "/" + game + "/state", null);
+                if (state.status == 200) {
+                    String name = gson.fromJson(state.body, GameInfo.class).state;
+                    if (name.equals("TURN_" + player.pieceType) && player.startThinking()) {
+                        schedule(() -> move(player, game), THINK_MILLIS);
+                    } else if (!name.startsWith("TURN_") && !name.equals("WAITING_FOR_SECOND_PLAYER")
+                               && player == hound && game == gameId) {
+                        newGame();
+                    }
+                }
+            } finally {
+                schedule(() -> poll(player), POLL_MILLIS);
+            }
+        }
+
+        void move(Player player, int game) {
+            try {
+                for (int i = 0; i < MOVE_TRIES; i++) {
+                    int[] move = player.randomMove();
+                    Move turn = new Move(game, player.playerId, move[0], move[1], move[2], move[3]);
+                    int status = request("turns", "POST", API + "/" + game + "/turns", turn).status;
+                    if (status != 422) {
+                        return;
+                    }
+                }
+            } finally {
+                player.stopThinking();
+            }
+        }
+    }
+
+    /**
+     * What one player knows of its game: the board as of a version.
+     */
+    private static class Player {
+        final String pieceType;
+        int playerId;
+        int version;
+        final int[][] pieces = new int[4][2];
+        boolean thinking;
+
+        Player(String pieceType) {
+            this.pieceType = pieceType;
+        }
+
+        synchronized void reset(int playerId) {
+            this.playerId = playerId;
+            // No version yet, so the first poll gets the whole board.
+            this.version = -1;
+            this.thinking = false;
+        }
+
+        synchronized void update(BoardDelta delta) {
+            for (BoardDelta.IndexedPiece piece : delta.pieces) {
+                pieces[piece.index][0] = piece.x;
+                pieces[piece.index][1] = piece.y;
+            }
+            version = delta.version;
+        }
+
+        synchronized boolean startThinking() {
+            if (thinking) {
+                return false;
+            }
+            thinking = true;
+            return true;
+        }
+
+        synchronized void stopThinking() {
+            thinking = false;
+        }
+
+        /**
+         * A one-step move of one of the player's pieces to a square on the
+         * board. It may still be illegal, e.g. onto another piece.
+         * @return {fromX, fromY, toX, toY}
+         */
+        synchronized int[] randomMove() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (true) {
+                int[] piece = pieces[pieceType.equals("HARE") ? 0 : 1 + random.nextInt(3)];
+                int toX = piece[0] + random.nextInt(3) - 1;
+                int toY = piece[1] + random.nextInt(3) - 1;
+                if (onBoard(toX, toY) && (toX != piece[0] || toY != piece[1])) {
+                    return new int[]{piece[0], piece[1], toX, toY};
+                }
+            }
+        }
+    }
+
+    /**
+     * Requests of one endpoint: latency of every response, response body
+     * bytes as received, client errors (4xx other than illegal moves) and
+     * errors (5xx or no response).
+     */
+    private static class Endpoint {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder errors = new LongAdder();
+    }
+
+    //------------------------------------------------------------------------//
+    // Generic Helper Methods and classes
+    //------------------------------------------------------------------------//
+
+    private void schedule(Runnable task, long delayMillis) {
+        if (System.nanoTime() - endNanos < 0 && !clients.isShutdown()) {
+            clients.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private Result request(String endpointName, String method, String path, Object content) {
+        Endpoint endpoint = endpoints.get(endpointName);
+        long start = System.nanoTime();
+        try {
+            URL url = new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, path);
+            HttpURLConnection http = (HttpURLConnection) url.openConnection();
+            http.setRequestMethod(method);
+            if (gzip) {
+                http.setRequestProperty("Accept-Encoding", "gzip");
+            }
+            if (content != null) {
+                http.setDoOutput(true);
+                http.setRequestProperty("Content-Type", "application/json");
+                try (OutputStreamWriter output = new OutputStreamWriter(http.getOutputStream())) {
+                    output.write(gson.toJson(content));
+                }
+            }
+            int status = http.getResponseCode();
+            // Read the body either way, so that the connection can be reused.
+            InputStream input = status < 400 ? http.getInputStream() : http.getErrorStream();
+            byte[] received = new byte[0];
+            if (input != null) {
+                received = IOUtils.toByteArray(input);
+                input.close();
+            }
+            endpoint.latency.record(System.nanoTime() - start);
+            endpoint.bytes.add(received.length);
+            String body;
+            if ("gzip".equals(http.getContentEncoding())) {
+                try (InputStream gunzip = new GZIPInputStream(new ByteArrayInputStream(received))) {
+                    body = IOUtils.toString(gunzip);
+                }
+            } else {
+                body = new String(received, StandardCharsets.UTF_8);
+            }
+            if (status >= 500) {
+                endpoint.errors.increment();
+            } else if (status >= 400 && status != 422) {
+                endpoint.rejected.increment();
+            }
+            return new Result(status, body);
+        } catch (IOException ex) {
+            endpoint.errors.increment();
+            return new Result(-1, "");
+        }
+    }
+
+    // The corners of the 5x3 grid are not part of the board.
+    private static boolean onBoard(int x, int y) {
+        return x >= 0 && x <= 4 && y >= 0 && y <= 2 && !((x == 0 || x == 4) && y != 1);
+    }
+
+    private static class Result {
+        final int status;
+        final String body;
+
+        Result(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private void clearDB() {
+        SQLiteDataSource dataSource = new SQLiteDataSource();
+        dataSource.setUrl("jdbc:sqlite:hareandhounds.db");
+
+        Sql2o db = new Sql2o(dataSource);
+
+        try (Connection conn = db.open()) {
+            String sql = "DROP TABLE IF EXISTS game" ;
+            conn.createQuery(sql).executeUpdate();
+            sql = "DROP TABLE IF EXISTS game_archive" ;
+            conn.createQuery(sql).executeUpdate();
+            sql = "DROP TABLE IF EXISTS game_stats" ;
+            conn.createQuery(sql).executeUpdate();
+            sql = "DROP TABLE IF EXISTS player_stats" ;
+            conn.createQuery(sql).executeUpdate();
+        }
+    }
+}
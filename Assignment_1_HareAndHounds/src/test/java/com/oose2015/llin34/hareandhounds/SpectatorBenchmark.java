@@ -0,0 +1,119 @@
+/**
+ * Cost of fanning one game out to many spectators on the binary endpoint.
+ * Run with "mvn test -Pbenchmark".
+ * @author: Li-Yi Lin
+ */
+
+package com.oose2015.llin34.hareandhounds;
+
+import org.sql2o.Connection;
+import org.sql2o.Sql2o;
+import org.sqlite.SQLiteDataSource;
+import spark.Spark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class SpectatorBenchmark {
+
+    private static final int BINARY_PORT = 9091;
+
+    private static final int SPECTATORS = 1000;
+
+    // A full game that the hare wins by stalling: {fromX, fromY, toX, toY},
+    // alternating hound and hare moves.
+    private static final int[][] STALLING_GAME = {
+            {1, 0, 1, 1}, {4, 1, 3, 1}, {1, 1, 1, 0}, {3, 1, 4, 1},
+            {1, 0, 1, 1}, {4, 1, 3, 1}, {1, 1, 1, 0}, {3, 1, 4, 1}
+    };
+
+    @Before
+    public void setup() throws Exception {
+        clearDB();
+        System.setProperty("hareandhounds.binaryPort", Integer.toString(BINARY_PORT));
+        Bootstrap.main(null);
+        Spark.awaitInitialization();
+    }
+
+    @After
+    public void tearDown() {
+        Bootstrap.stop();
+        System.clearProperty("hareandhounds.binaryPort");
+        clearDB();
+    }
+
+    @Test
+    public void fanOut() throws Exception {
+        try (BinaryClient player = new BinaryClient(Bootstrap.IP_ADDRESS, BINARY_PORT)) {
+            GameInfo hound = player.create("HOUND");
+            GameInfo hare = player.join(hound.gameId);
+
+            // Every spectator reads frames on its own thread until the game ends.
+            List<BinaryClient> spectators = new ArrayList<>();
+            CountDownLatch finished = new CountDownLatch(SPECTATORS);
+            AtomicLong frames = new AtomicLong();
+            for (int i = 0; i < SPECTATORS; i++) {
+                BinaryClient spectator = new BinaryClient(Bootstrap.IP_ADDRESS, BINARY_PORT);
+                spectators.add(spectator);
+                assertNotNull(spectator.spectate(hound.gameId));
+                Thread thread = new Thread(() -> {
+                    try {
+                        BinaryClient.Snapshot snapshot;
+                        do {
+                            snapshot = spectator.nextFrame();
+                            frames.incrementAndGet();
+                        } while (snapshot.state <= 2);
+                        finished.countDown();
+                    } catch (Exception ex) {
+                        // Counted as a spectator that did not see the end.
+                    }
+                });
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            SpectatorHub hub = Bootstrap.gameService.getSpectators();
+            long start = System.nanoTime();
+            for (int i = 0; i < STALLING_GAME.length; i++) {
+                int[] m = STALLING_GAME[i];
+                int playerId = i % 2 == 0 ? hound.playerId : hare.playerId;
+                assertEquals("MOVE_OK", player.move(new Move(hound.gameId, playerId, m[0], m[1], m[2], m[3])));
+            }
+            assertTrue("Spectators did not see the end", finished.await(30, TimeUnit.SECONDS));
+            double millis = (System.nanoTime() - start) / 1e6;
+
+            System.out.printf("%d spectators, %d moves: %d frames serialized, %d delivered, %d skipped, %.1f ms%n",
+                    SPECTATORS, STALLING_GAME.length, hub.getFramesPublished(), frames.get(),
+                    hub.getFramesDropped(), millis);
+            assertEquals(STALLING_GAME.length, hub.getFramesPublished());
+
+            for (BinaryClient spectator : spectators) {
+                spectator.close();
+            }
+        }
+    }
+
+    //------------------------------------------------------------------------//
+    // Generic Helper Methods and classes
+    //------------------------------------------------------------------------//
+
+    private void clearDB() {
+        SQLiteDataSource dataSource = new SQLiteDataSource();
+        dataSource.setUrl("jdbc:sqlite:hareandhounds.db");
+
+        Sql2o db = new Sql2o(dataSource);
+
+        try (Connection conn = db.open()) {
+            String sql = "DROP TABLE IF EXISTS game" ;
+            conn.createQuery(sql).executeUpdate();
+            sql = "DROP TABLE IF EXISTS game_archive" ;
+            conn.createQuery(sql).executeUpdate();
+        }
+    }
+}
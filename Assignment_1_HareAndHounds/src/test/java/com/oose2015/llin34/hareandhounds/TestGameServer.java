@@ -15,14 +15,24 @@ import org.sqlite.SQLiteDataSource;
 import spark.Spark;
 import spark.utils.IOUtils;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.lang.reflect.Type;
 import java.net.URL;
 import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.*;
+import java.util.zip.GZIPInputStream;
 import com.google.gson.Gson;
 
 import org.junit.*;
@@ -30,6 +40,9 @@ import static org.junit.Assert.*;
 
 public class TestGameServer {
 
+    // Token of the operator endpoints of the test server.
+    private static final String ADMIN_AUTHORIZATION = "Bearer test-admin-token";
+
     //------------------------------------------------------------------------//
     // Setup
     //------------------------------------------------------------------------//
@@ -40,6 +53,7 @@ public class TestGameServer {
         clearDB();
 
         //Start the main server
+        System.setProperty("hareandhounds.adminToken", ADMIN_AUTHORIZATION.substring("Bearer ".length()));
         Bootstrap.main(null);
         Spark.awaitInitialization();
     }
@@ -47,8 +61,10 @@ public class TestGameServer {
     @After
     public void tearDown() {
         //Stop the server
+        Bootstrap.stop();
+        System.clearProperty("hareandhounds.adminToken");
+        System.clearProperty("hareandhounds.asyncPersistence");
         clearDB();
-        Spark.stop();
     }
 
     //------------------------------------------------------------------------//
@@ -376,6 +392,996 @@ public class TestGameServer {
         assertEquals("Failed to test win by stalling", "WIN_HARE_BY_STALLING", reply.state);
     }
 
+    @Test
+    public void testMalformedRequests(){
+        // Create a game with a body that is not a create request.
+        Response r = request("POST", "/hareandhounds/api/games", "HOUND");
+        assertEquals("Failed to reject a malformed create request", 400, r.httpStatus);
+
+        // Create a game with an unknown piece type.
+        Map<String, String> body = new HashMap<>();
+        body.put("pieceType", "HOUNDHARE");
+        r = request("POST", "/hareandhounds/api/games", body);
+        assertEquals("Failed to reject an unknown piece type", 400, r.httpStatus);
+
+        // Create a game with a body larger than the server accepts.
+        body = new HashMap<>();
+        body.put("pieceType", "HOUND");
+        body.put("padding", new String(new char[8192]).replace('\0', ' '));
+        r = request("POST", "/hareandhounds/api/games", body);
+        assertEquals("Failed to reject a body that is too large", 413, r.httpStatus);
+
+        r = request("POST", "/hareandhounds/api/games", games[0]);
+        assertEquals("Failed to create a game", 201, r.httpStatus);
+        GameInfo hound = gson.fromJson(r.content, GameInfo.class);
+
+        // Move with a missing field.
+        body = new HashMap<>();
+        body.put("gameId", Integer.toString(hound.gameId));
+        body.put("playerId", Integer.toString(hound.playerId));
+        body.put("fromX", "0");
+        body.put("fromY", "1");
+        body.put("toX", "1");
+        r = request("POST", "/hareandhounds/api/games/" + hound.gameId + "/turns", body);
+        assertEquals("Failed to reject a move with a missing field", 400, r.httpStatus);
+
+        // Move off the board.
+        Move move = new Move(hound.gameId, hound.playerId, "0", "1", "9", "1");
+        r = request("POST", "/hareandhounds/api/games/" + hound.gameId + "/turns", move);
+        assertEquals("Failed to reject a move off the board", 400, r.httpStatus);
+    }
+
+    @Test
+    public void testStaticAssets() throws Exception {
+        // The page is served with an ETag.
+        HttpURLConnection http = (HttpURLConnection) new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, "/").openConnection();
+        assertEquals("Failed to serve the index page", 200, http.getResponseCode());
+        String etag = http.getHeaderField("ETag");
+        assertNotNull("Failed to send an ETag", etag);
+        assertEquals("Failed to revalidate the index page", "no-cache", http.getHeaderField("Cache-Control"));
+        String page = IOUtils.toString(http.getInputStream());
+        assertTrue("Failed to serve the index page", page.contains("<html"));
+
+        // The page links to its scripts by version.
+        Matcher link = Pattern.compile("src=\"(scripts/jquery\\.js\\?v=[0-9a-f]+)\"").matcher(page);
+        assertTrue("Failed to version the script links", link.find());
+
+        // Scripts are sent gzipped when the client accepts it, and may be
+        // cached only when asked for by version.
+        http = (HttpURLConnection) new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, "/" + link.group(1)).openConnection();
+        http.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals("Failed to serve a script", 200, http.getResponseCode());
+        assertEquals("Failed to gzip a script", "gzip", http.getHeaderField("Content-Encoding"));
+        assertTrue("Failed to send Cache-Control", http.getHeaderField("Cache-Control").contains("max-age"));
+        String gzipEtag = http.getHeaderField("ETag");
+
+        http = (HttpURLConnection) new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, "/scripts/jquery.js").openConnection();
+        assertEquals("Failed to serve a script", 200, http.getResponseCode());
+        assertNull("Failed to send a script as is", http.getHeaderField("Content-Encoding"));
+        assertEquals("Failed to revalidate an unversioned script", "no-cache", http.getHeaderField("Cache-Control"));
+        assertNotEquals("Failed to tell the gzipped and plain script apart", gzipEtag, http.getHeaderField("ETag"));
+
+        // The gzipped ETag only matches the gzipped script.
+        http = (HttpURLConnection) new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, "/scripts/jquery.js").openConnection();
+        http.setRequestProperty("If-None-Match", gzipEtag);
+        assertEquals("Failed to send the plain script for a gzipped ETag", 200, http.getResponseCode());
+        http = (HttpURLConnection) new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, "/scripts/jquery.js").openConnection();
+        http.setRequestProperty("Accept-Encoding", "gzip");
+        http.setRequestProperty("If-None-Match", gzipEtag);
+        assertEquals("Failed to answer a conditional gzipped request with 304", 304, http.getResponseCode());
+
+        // A client that turns gzip down with q=0 gets the plain script.
+        http = (HttpURLConnection) new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, "/scripts/jquery.js").openConnection();
+        http.setRequestProperty("Accept-Encoding", "gzip;q=0, deflate");
+        assertEquals("Failed to serve a script", 200, http.getResponseCode());
+        assertNull("Failed to honour gzip;q=0", http.getHeaderField("Content-Encoding"));
+
+        // A client that already has the page gets 304.
+        http = (HttpURLConnection) new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, "/index.html").openConnection();
+        http.setRequestProperty("If-None-Match", etag);
+        assertEquals("Failed to answer a conditional request with 304", 304, http.getResponseCode());
+    }
+
+    @Test
+    public void testBatchCreate(){
+        Map<String, Object> body = new HashMap<>();
+        body.put("pieceType", "HARE");
+        body.put("count", 5);
+        Response r = request("POST", "/hareandhounds/api/games/batch", body);
+        assertEquals("Failed to create a batch of games", 201, r.httpStatus);
+        Type type = new TypeToken<List<GameInfo>>() {}.getType();
+        List<GameInfo> created = r.getContentAsObject(type);
+        assertEquals(5, created.size());
+
+        // Every game has its own ids and can be joined.
+        Set<Integer> gameIds = new HashSet<>();
+        Set<Integer> playerIds = new HashSet<>();
+        for (GameInfo info : created) {
+            assertEquals("HARE", info.pieceType);
+            gameIds.add(info.gameId);
+            playerIds.add(info.playerId);
+            r = request("PUT", "/hareandhounds/api/games/" + info.gameId, null);
+            assertEquals("Failed to join a game of the batch", 200, r.httpStatus);
+        }
+        assertEquals(5, gameIds.size());
+        assertEquals(5, playerIds.size());
+
+        // Counts out of range are rejected.
+        body.put("count", 0);
+        r = request("POST", "/hareandhounds/api/games/batch", body);
+        assertEquals("Failed to reject an empty batch", 400, r.httpStatus);
+        body.put("count", 100000);
+        r = request("POST", "/hareandhounds/api/games/batch", body);
+        assertEquals("Failed to reject a batch that is too large", 400, r.httpStatus);
+    }
+
+    @Test
+    public void testMatchmaking(){
+        Map<String, String> hare = new HashMap<>();
+        hare.put("pieceType", "HARE");
+        Map<String, String> hound = new HashMap<>();
+        hound.put("pieceType", "HOUND");
+
+        // Nobody is waiting, so a new game is created for the player.
+        Response r = request("POST", "/hareandhounds/api/games/match", hare);
+        assertEquals("Failed to create a game when nobody is waiting", 201, r.httpStatus);
+        GameInfo first = gson.fromJson(r.content, GameInfo.class);
+        assertEquals("WAITING_FOR_SECOND_PLAYER", first.state);
+
+        // A hound is paired with the waiting hare.
+        r = request("POST", "/hareandhounds/api/games/match", hound);
+        assertEquals("Failed to join the waiting game", 200, r.httpStatus);
+        GameInfo second = gson.fromJson(r.content, GameInfo.class);
+        assertEquals(first.gameId, second.gameId);
+        assertEquals("HOUND", second.pieceType);
+        assertEquals("TURN_HOUND", second.state);
+
+        // A game already joined by id is not handed out again.
+        r = request("POST", "/hareandhounds/api/games", games[0]);
+        GameInfo byId = gson.fromJson(r.content, GameInfo.class);
+        r = request("PUT", "/hareandhounds/api/games/" + byId.gameId, null);
+        assertEquals(200, r.httpStatus);
+        assertEquals("Failed to drop joined games from the queues", 0, Bootstrap.gameService.getWaitingGameCount());
+        r = request("POST", "/hareandhounds/api/games/match", hare);
+        assertEquals("Failed to skip a full game", 201, r.httpStatus);
+        assertNotEquals(byId.gameId, gson.fromJson(r.content, GameInfo.class).gameId);
+    }
+
+    @Test
+    public void testListGames(){
+        List<GameInfo> created = new ArrayList<>();
+        for (GameInfo game : games) {
+            created.add(gson.fromJson(request("POST", "/hareandhounds/api/games", game).content, GameInfo.class));
+        }
+        request("PUT", "/hareandhounds/api/games/" + created.get(1).gameId, null);
+
+        // Page through the waiting games.
+        Response r = request("GET", "/hareandhounds/api/games?state=WAITING_FOR_SECOND_PLAYER&limit=1", null);
+        assertEquals("Failed to list games", 200, r.httpStatus);
+        GamePage page = gson.fromJson(r.content, GamePage.class);
+        assertEquals(1, page.games.size());
+        assertEquals(created.get(0).gameId, page.games.get(0).gameId);
+        assertEquals(Integer.valueOf(created.get(0).gameId), page.nextAfter);
+
+        r = request("GET", "/hareandhounds/api/games?state=WAITING_FOR_SECOND_PLAYER&limit=1&after=" + page.nextAfter, null);
+        page = gson.fromJson(r.content, GamePage.class);
+        assertEquals(1, page.games.size());
+        assertEquals(created.get(2).gameId, page.games.get(0).gameId);
+
+        // The joined game moved to the TURN_HOUND index.
+        r = request("GET", "/hareandhounds/api/games?state=TURN_HOUND", null);
+        page = gson.fromJson(r.content, GamePage.class);
+        assertEquals(1, page.games.size());
+        assertEquals(created.get(1).gameId, page.games.get(0).gameId);
+        assertNull(page.nextAfter);
+
+        // Without a state every live game is listed.
+        r = request("GET", "/hareandhounds/api/games", null);
+        assertEquals(3, gson.fromJson(r.content, GamePage.class).games.size());
+
+        // Finished games come from the database.
+        r = request("GET", "/hareandhounds/api/games?state=WIN_HOUND", null);
+        assertEquals(200, r.httpStatus);
+        assertEquals(0, gson.fromJson(r.content, GamePage.class).games.size());
+
+        r = request("GET", "/hareandhounds/api/games?state=SLEEPING", null);
+        assertEquals("Failed to reject an unknown state", 400, r.httpStatus);
+        r = request("GET", "/hareandhounds/api/games?limit=abc", null);
+        assertEquals("Failed to reject a bad limit", 400, r.httpStatus);
+    }
+
+    @Test
+    public void testGzipJson() throws Exception {
+        Map<String, Object> body = new HashMap<>();
+        body.put("pieceType", "HARE");
+        body.put("count", 50);
+        assertEquals(201, request("POST", "/hareandhounds/api/games/batch", body).httpStatus);
+
+        // The page is over the compression threshold, so it comes gzipped
+        // and decodes completely, trailer included.
+        URL url = new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, "/hareandhounds/api/games?limit=50");
+        HttpURLConnection http = (HttpURLConnection) url.openConnection();
+        http.setRequestProperty("Accept-Encoding", "gzip");
+        assertEquals(200, http.getResponseCode());
+        assertEquals("Failed to gzip a large response", "gzip", http.getHeaderField("Content-Encoding"));
+        String json;
+        try (GZIPInputStream in = new GZIPInputStream(http.getInputStream())) {
+            json = IOUtils.toString(in);
+        }
+        assertEquals(50, gson.fromJson(json, GamePage.class).games.size());
+
+        // Without Accept-Encoding the same page is plain JSON.
+        http = (HttpURLConnection) url.openConnection();
+        assertNull(http.getHeaderField("Content-Encoding"));
+        assertEquals(json, IOUtils.toString(http.getInputStream()));
+    }
+
+    @Test
+    public void testArchive() throws Exception {
+        // Play a game that the hare wins by stalling.
+        GameInfo hound = gson.fromJson(request("POST", "/hareandhounds/api/games", games[0]).content, GameInfo.class);
+        GameInfo hare = gson.fromJson(request("PUT", "/hareandhounds/api/games/" + hound.gameId, null).content, GameInfo.class);
+        String[][] stalling = {{"1", "0", "1", "1"}, {"4", "1", "3", "1"}, {"1", "1", "1", "0"}, {"3", "1", "4", "1"}};
+        for (int i = 0; i < 8; i++) {
+            String[] m = stalling[i % 4];
+            int playerId = i % 2 == 0 ? hound.playerId : hare.playerId;
+            Response r = request("POST", "/hareandhounds/api/games/" + hound.gameId + "/turns",
+                    new Move(hound.gameId, playerId, m[0], m[1], m[2], m[3]));
+            assertEquals("Failed to move", 200, r.httpStatus);
+        }
+
+        // Archive it; it is no longer held in memory.
+        assertEquals(1, Bootstrap.gameService.archiveFinishedGames(Long.MAX_VALUE, 100));
+        assertNull(Bootstrap.gameService.searchGame(hound.gameId));
+
+        // It can still be looked up and listed.
+        Response r = request("GET", "/hareandhounds/api/games/" + hound.gameId + "/state", null);
+        assertEquals("Failed to find an archived game", 200, r.httpStatus);
+        assertEquals("WIN_HARE_BY_STALLING", gson.fromJson(r.content, GameInfo.class).state);
+        r = request("GET", "/hareandhounds/api/games/" + hound.gameId + "/board", null);
+        assertEquals("Failed to find the board of an archived game", 200, r.httpStatus);
+        r = request("GET", "/hareandhounds/api/games?state=WIN_HARE_BY_STALLING", null);
+        assertEquals(hound.gameId, gson.fromJson(r.content, GamePage.class).games.get(0).gameId);
+
+        // Nothing is left to archive.
+        assertEquals(0, Bootstrap.gameService.archiveFinishedGames(Long.MAX_VALUE, 100));
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        // Play a game that the hare wins by stalling.
+        GameInfo hound = gson.fromJson(request("POST", "/hareandhounds/api/games", games[0]).content, GameInfo.class);
+        GameInfo hare = gson.fromJson(request("PUT", "/hareandhounds/api/games/" + hound.gameId, null).content, GameInfo.class);
+        String[][] stalling = {{"1", "0", "1", "1"}, {"4", "1", "3", "1"}, {"1", "1", "1", "0"}, {"3", "1", "4", "1"}};
+        for (int i = 0; i < 8; i++) {
+            String[] m = stalling[i % 4];
+            int playerId = i % 2 == 0 ? hound.playerId : hare.playerId;
+            request("POST", "/hareandhounds/api/games/" + hound.gameId + "/turns",
+                    new Move(hound.gameId, playerId, m[0], m[1], m[2], m[3]));
+        }
+
+        Response r = request("GET", "/hareandhounds/api/stats", null);
+        assertEquals("Failed to get statistics", 200, r.httpStatus);
+        GameStatistics.Summary summary = gson.fromJson(r.content, GameStatistics.Summary.class);
+        assertEquals(1, summary.gamesFinished);
+        assertEquals(1, summary.winsHareByStalling);
+        assertEquals(0, summary.winsHound);
+        assertEquals(8.0, summary.averageGameLength, 0.001);
+
+        r = request("GET", "/hareandhounds/api/stats/players/" + hare.playerId, null);
+        assertEquals("Failed to get player statistics", 200, r.httpStatus);
+        assertEquals(1, gson.fromJson(r.content, GameStatistics.PlayerStats.class).wins);
+
+        // The totals are stored, so a restarted server starts from them.
+        SQLiteDataSource dataSource = new SQLiteDataSource();
+        dataSource.setUrl("jdbc:sqlite:hareandhounds.db");
+        GameStatistics reloaded = new SqliteGameRepository(dataSource, new PersistenceTimings(0)).loadStatistics();
+        assertEquals(1, reloaded.getSummary().winsHareByStalling);
+        assertEquals(1, reloaded.getPlayer(hound.playerId).losses);
+    }
+
+    @Test
+    public void testMemoryRepository() throws Exception {
+        Path snapshot = Files.createTempFile("hareandhounds", ".json");
+        Files.delete(snapshot);
+        try {
+            GameService service = new GameService(new MemoryGameRepository(snapshot), null, new PersistenceTimings(0));
+
+            // Leave a game waiting, and play one that the hare wins by stalling.
+            GameInfo waiting = service.createNewGame("HARE");
+            GameInfo hound = service.createNewGame("HOUND");
+            GameInfo hare = service.joinGame(hound.gameId);
+            int[][] stalling = {{1, 0, 1, 1}, {4, 1, 3, 1}, {1, 1, 1, 0}, {3, 1, 4, 1}};
+            for (int i = 0; i < 8; i++) {
+                int[] m = stalling[i % 4];
+                int playerId = i % 2 == 0 ? hound.playerId : hare.playerId;
+                assertEquals("MOVE_OK", service.playGame(new Move(hound.gameId, playerId, m[0], m[1], m[2], m[3])));
+            }
+            assertEquals(1, service.getStatistics().getSummary().winsHareByStalling);
+
+            // An archived game leaves memory, but can still be found and listed.
+            int stalled = Game.stateOf("WIN_HARE_BY_STALLING");
+            assertEquals(hound.gameId, service.listGames(stalled, -1, 10).games.get(0).gameId);
+            assertEquals(1, service.archiveFinishedGames(Long.MAX_VALUE, 100));
+            assertNull(service.searchGame(hound.gameId));
+            assertNotNull("Failed to find an archived game", service.findGame(hound.gameId));
+            assertEquals("WIN_HARE_BY_STALLING", service.getGameState(hound.gameId).state);
+            assertEquals(hound.gameId, service.listGames(stalled, -1, 10).games.get(0).gameId);
+            assertEquals(0, service.archiveFinishedGames(Long.MAX_VALUE, 100));
+
+            // The games are saved at shutdown, and a new service starts from them.
+            service.close(1000);
+            assertTrue("Failed to write the snapshot", Files.exists(snapshot));
+            GameService restarted = new GameService(new MemoryGameRepository(snapshot), null, new PersistenceTimings(0));
+            assertEquals("Failed to keep the archive in the snapshot",
+                    Game.stateOf("WIN_HARE_BY_STALLING"), restarted.findGame(hound.gameId).getStateInt());
+            assertEquals(0, restarted.archiveFinishedGames(Long.MAX_VALUE, 100));
+            assertEquals(1, restarted.getStatistics().getSummary().winsHareByStalling);
+            assertEquals(1, restarted.getStatistics().getPlayer(hound.playerId).losses);
+
+            // Ids go on after those of the archived game.
+            GameInfo joined = restarted.joinWaitingGame("HOUND");
+            assertEquals(waiting.gameId, joined.gameId);
+            assertTrue("Failed to keep the player ids of archived games", joined.playerId > hare.playerId);
+            assertTrue("Failed to keep the game ids of archived games",
+                    restarted.createNewGame("HOUND").gameId > hound.gameId);
+        } finally {
+            Files.deleteIfExists(snapshot);
+        }
+    }
+
+    @Test
+    public void testSpectate(){
+        GameInfo hound = gson.fromJson(request("POST", "/hareandhounds/api/games", games[0]).content, GameInfo.class);
+        GameInfo hare = gson.fromJson(request("PUT", "/hareandhounds/api/games/" + hound.gameId, null).content, GameInfo.class);
+        String spectate = "/hareandhounds/api/games/" + hound.gameId + "/spectate";
+
+        Response r = request("GET", spectate, null);
+        assertEquals("Failed to spectate a game", 200, r.httpStatus);
+        SpectatorHub.Frame frame = gson.fromJson(r.content, SpectatorHub.Frame.class);
+        assertEquals("TURN_HOUND", frame.state);
+        assertEquals(4, frame.pieces.size());
+
+        // Nothing changed since the frame we have.
+        r = request("GET", spectate + "?since=" + frame.version, null);
+        assertEquals("Failed to answer an unchanged game with 304", 304, r.httpStatus);
+
+        Move move = new Move(hound.gameId, hound.playerId, "1", "0", "1", "1");
+        request("POST", "/hareandhounds/api/games/" + hound.gameId + "/turns", move);
+        r = request("GET", spectate + "?since=" + frame.version, null);
+        assertEquals("Failed to send a new frame", 200, r.httpStatus);
+        SpectatorHub.Frame next = gson.fromJson(r.content, SpectatorHub.Frame.class);
+        assertTrue(next.version > frame.version);
+        assertEquals("TURN_HARE", next.state);
+
+        r = request("GET", "/hareandhounds/api/games/12345/spectate", null);
+        assertEquals("Failed to reject an unknown game", 404, r.httpStatus);
+        assertEquals(1, Bootstrap.gameService.getSpectators().getWatchedGames());
+
+        // A channel lives only as long as its game is live.
+        SpectatorHub hub = new SpectatorHub();
+        Game live = new Game(1, "HOUND", 1);
+        hub.latest(live);
+        assertEquals(1, hub.getWatchedGames());
+        hub.drop(live.getGameId());
+        assertEquals("Failed to drop the channel of a game that left the live games", 0, hub.getWatchedGames());
+        Game expired = new Game(2, "HOUND", 2);
+        assertTrue(expired.timeOut(expired.getVersion()));
+        assertTrue(hub.latest(expired).isFinished());
+        assertTrue(hub.subscribe(expired, sent -> { }).isFinished());
+        assertEquals("Failed to keep finished games out of the channels", 0, hub.getWatchedGames());
+    }
+
+    @Test
+    public void testBoardSince(){
+        GameInfo hound = gson.fromJson(request("POST", "/hareandhounds/api/games", games[0]).content, GameInfo.class);
+        GameInfo hare = gson.fromJson(request("PUT", "/hareandhounds/api/games/" + hound.gameId, null).content, GameInfo.class);
+        String board = "/hareandhounds/api/games/" + hound.gameId + "/board";
+
+        // An unknown version gets the whole board.
+        Response r = request("GET", board + "?since=-1", null);
+        assertEquals("Failed to get a board snapshot", 200, r.httpStatus);
+        BoardDelta delta = gson.fromJson(r.content, BoardDelta.class);
+        assertTrue(delta.snapshot);
+        assertEquals(4, delta.pieces.size());
+        assertEquals("TURN_HOUND", delta.state);
+
+        r = request("GET", board + "?since=" + delta.version, null);
+        assertEquals("Failed to answer an unchanged board with 304", 304, r.httpStatus);
+
+        // Two moves later only the two moved pieces are sent.
+        int since = delta.version;
+        request("POST", "/hareandhounds/api/games/" + hound.gameId + "/turns",
+                new Move(hound.gameId, hound.playerId, "1", "0", "1", "1"));
+        request("POST", "/hareandhounds/api/games/" + hound.gameId + "/turns",
+                new Move(hound.gameId, hare.playerId, "4", "1", "3", "1"));
+        r = request("GET", board + "?since=" + since, null);
+        assertEquals(200, r.httpStatus);
+        delta = gson.fromJson(r.content, BoardDelta.class);
+        assertFalse(delta.snapshot);
+        assertEquals(2, delta.pieces.size());
+        assertEquals("TURN_HOUND", delta.state);
+        for (BoardDelta.IndexedPiece piece : delta.pieces) {
+            if (piece.index == 0) {
+                assertEquals("HARE", piece.pieceType);
+                assertEquals(3, piece.x);
+                assertEquals(1, piece.y);
+            } else {
+                assertEquals("HOUND", piece.pieceType);
+                assertEquals(1, piece.x);
+                assertEquals(1, piece.y);
+            }
+        }
+
+        r = request("GET", board + "?since=abc", null);
+        assertEquals("Failed to reject a bad version", 400, r.httpStatus);
+        r = request("GET", "/hareandhounds/api/games/12345/board?since=0", null);
+        assertEquals("Failed to reject an unknown game", 404, r.httpStatus);
+    }
+
+    @Test
+    public void testNumberedMoves(){
+        GameInfo hound = gson.fromJson(request("POST", "/hareandhounds/api/games", games[0]).content, GameInfo.class);
+        GameInfo hare = gson.fromJson(request("PUT", "/hareandhounds/api/games/" + hound.gameId, null).content, GameInfo.class);
+        String turns = "/hareandhounds/api/games/" + hound.gameId + "/turns";
+
+        // A retried move gets its first result instead of INCORRECT_TURN.
+        Move first = new Move(hound.gameId, hound.playerId, 1, 0, 1, 1, 1);
+        assertEquals(200, request("POST", turns, first).httpStatus);
+        Response r = request("POST", turns, first);
+        assertEquals("Failed to answer a retry with its first result", 200, r.httpStatus);
+        assertEquals("\"MOVE_OK\"", r.content);
+
+        // A move sent during the opponent's turn waits for it.
+        Move premove = new Move(hound.gameId, hound.playerId, 1, 2, 2, 2, 2);
+        assertEquals("Failed to queue a premove", 202, request("POST", turns, premove).httpStatus);
+        assertEquals(202, request("POST", turns, premove).httpStatus);
+        assertEquals("Failed to reject a gap in the sequence", 409,
+                request("POST", turns, new Move(hound.gameId, hound.playerId, 2, 2, 3, 2, 4)).httpStatus);
+
+        assertEquals(200, request("POST", turns, new Move(hound.gameId, hare.playerId, 4, 1, 3, 1, 1)).httpStatus);
+        r = request("GET", "/hareandhounds/api/games/" + hound.gameId + "/state", null);
+        assertEquals("Failed to play the premove", "TURN_HARE", gson.fromJson(r.content, GameInfo.class).state);
+        assertEquals(200, request("POST", turns, premove).httpStatus);
+
+        // A premove that turns out illegal keeps its result for retries.
+        Move backwards = new Move(hound.gameId, hound.playerId, 2, 2, 1, 2, 3);
+        assertEquals(202, request("POST", turns, backwards).httpStatus);
+        assertEquals(200, request("POST", turns, new Move(hound.gameId, hare.playerId, 3, 1, 4, 1, 2)).httpStatus);
+        assertEquals(422, request("POST", turns, backwards).httpStatus);
+        r = request("GET", "/hareandhounds/api/games/" + hound.gameId + "/state", null);
+        assertEquals("TURN_HOUND", gson.fromJson(r.content, GameInfo.class).state);
+    }
+
+    @Test
+    public void testTimeouts() throws Exception {
+        HashedTimerWheel timers = new HashedTimerWheel(10, 64, "test-timers");
+        try {
+            Bootstrap.gameService.enableTimeouts(timers, 300, 300);
+            GameInfo waiting = gson.fromJson(request("POST", "/hareandhounds/api/games", games[0]).content, GameInfo.class);
+            GameInfo hound = gson.fromJson(request("POST", "/hareandhounds/api/games", games[1]).content, GameInfo.class);
+            GameInfo hare = gson.fromJson(request("PUT", "/hareandhounds/api/games/" + hound.gameId, null).content, GameInfo.class);
+
+            // A move in time resets the clock of the game.
+            Thread.sleep(150);
+            Response r = request("POST", "/hareandhounds/api/games/" + hound.gameId + "/turns",
+                    new Move(hound.gameId, hound.playerId, "1", "0", "1", "1"));
+            assertEquals("Failed to move", 200, r.httpStatus);
+            Thread.sleep(200);
+            assertEquals("TURN_HARE", gson.fromJson(request("GET", "/hareandhounds/api/games/" + hound.gameId + "/state",
+                    null).content, GameInfo.class).state);
+
+            // Then the hare runs out of time, and nobody joins the other game.
+            Thread.sleep(500);
+            r = request("GET", "/hareandhounds/api/games/" + hound.gameId + "/state", null);
+            assertEquals("WIN_HOUND_BY_FORFEIT", gson.fromJson(r.content, GameInfo.class).state);
+            r = request("GET", "/hareandhounds/api/games/" + waiting.gameId + "/state", null);
+            assertEquals("EXPIRED", gson.fromJson(r.content, GameInfo.class).state);
+
+            r = request("PUT", "/hareandhounds/api/games/" + waiting.gameId, null);
+            assertEquals("Failed to refuse joining an expired game", 410, r.httpStatus);
+            r = request("POST", "/hareandhounds/api/games/" + hound.gameId + "/turns",
+                    new Move(hound.gameId, hare.playerId, "4", "1", "3", "1"));
+            assertEquals("Failed to refuse a move after a forfeit", 422, r.httpStatus);
+
+            assertEquals(1, Bootstrap.gameService.getStatistics().getSummary().winsHoundByForfeit);
+            assertEquals(0, timers.pendingTimeouts());
+        } finally {
+            timers.close();
+        }
+    }
+
+    @Test
+    public void testMetrics(){
+        GameInfo hound = gson.fromJson(request("POST", "/hareandhounds/api/games", games[0]).content, GameInfo.class);
+        request("GET", "/hareandhounds/api/games/" + hound.gameId + "/state", null);
+        request("GET", "/hareandhounds/api/games/12345/state", null);
+
+        // Metrics are served to any scraper, token or not.
+        assertEquals(200, request("GET", "/metrics", null, ADMIN_AUTHORIZATION).httpStatus);
+        Response r = request("GET", "/metrics", null);
+        assertEquals("Failed to get metrics", 200, r.httpStatus);
+        String text = r.content;
+        assertTrue(text.contains("# TYPE hareandhounds_requests_total counter"));
+        assertTrue(text.contains("hareandhounds_requests_total{route=\"create\",status=\"201\"} 1"));
+        assertTrue(text.contains("hareandhounds_requests_total{route=\"state\",status=\"200\"} 1"));
+        assertTrue(text.contains("hareandhounds_requests_total{route=\"state\",status=\"404\"} 1"));
+        assertTrue(text.contains("hareandhounds_request_duration_seconds{route=\"state\",quantile=\"0.99\"}"));
+        assertTrue(text.contains("hareandhounds_request_duration_seconds_count{route=\"state\"} 2"));
+        assertTrue(text.contains("hareandhounds_live_games{state=\"WAITING_FOR_SECOND_PLAYER\"} 1"));
+        assertTrue(text.contains("hareandhounds_cached_games 1"));
+
+        // Percentiles are within a bucket (about 6%) of the exact value.
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(500000, histogram.percentile(0.5), 500000 * 0.07);
+        assertEquals(990000, histogram.percentile(0.99), 990000 * 0.07);
+        assertEquals(1000, histogram.getCount());
+    }
+
+    @Test
+    public void testPersistenceTimings(){
+        GameInfo hound = gson.fromJson(request("POST", "/hareandhounds/api/games", games[0]).content, GameInfo.class);
+        request("PUT", "/hareandhounds/api/games/" + hound.gameId, null);
+
+        PersistenceTimings timings = Bootstrap.gameService.getTimings();
+        assertEquals(1, timings.getHistogram(PersistenceTimings.Operation.INSERT, PersistenceTimings.Phase.EXECUTE).getCount());
+        assertEquals(1, timings.getHistogram(PersistenceTimings.Operation.UPDATE, PersistenceTimings.Phase.OPEN).getCount());
+        assertEquals(1, timings.getHistogram(PersistenceTimings.Operation.UPDATE, PersistenceTimings.Phase.JSON).getCount());
+        assertEquals(1, timings.getHistogram(PersistenceTimings.Operation.STARTUP, PersistenceTimings.Phase.EXECUTE).getCount());
+        assertEquals(2, timings.getRowsWritten());
+        assertTrue(timings.getBytesWritten() > 0);
+
+        Response r = request("GET", "/metrics", null);
+        assertTrue(r.content.contains("hareandhounds_db_duration_seconds_count{operation=\"update\",phase=\"execute\"} 1"));
+        assertTrue(r.content.contains("hareandhounds_db_rows_written_total 2"));
+
+        // Operations over the threshold are counted and logged.
+        PersistenceTimings slow = new PersistenceTimings(1);
+        slow.record(PersistenceTimings.Operation.UPDATE, 7, "UPDATE game", 0, 500000, 3000000, 1);
+        slow.record(PersistenceTimings.Operation.UPDATE, 8, "UPDATE game", 0, 100000, 200000, 1);
+        assertEquals(1, slow.getSlowOperations());
+    }
+
+    @Test
+    public void testPersistenceExecutor() throws Exception {
+        // Writes of one game run in the order they were submitted, whatever lane it hashes to.
+        PersistenceExecutor executor = new PersistenceExecutor(3, 100, false);
+        Map<Integer, List<Integer>> applied = new ConcurrentHashMap<>();
+        for (int i = 0; i < 50; i++) {
+            for (int gameId = 0; gameId < 10; gameId++) {
+                int sequence = i;
+                List<Integer> writes = applied.computeIfAbsent(gameId, id -> Collections.synchronizedList(new ArrayList<>()));
+                executor.execute(gameId, () -> writes.add(sequence));
+            }
+        }
+        assertTrue(executor.shutdown(5000));
+        List<Integer> expected = IntStream.range(0, 50).boxed().collect(Collectors.toList());
+        for (int gameId = 0; gameId < 10; gameId++) {
+            assertEquals("Failed to keep the writes of a game in order", expected, applied.get(gameId));
+        }
+
+        // A submitter waits while its lane's queue is full.
+        executor = new PersistenceExecutor(1, 1, false);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(0, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        executor.execute(0, () -> { });
+        CountDownLatch submitted = new CountDownLatch(1);
+        PersistenceExecutor full = executor;
+        Thread submitter = new Thread(() -> {
+            full.execute(0, () -> { });
+            submitted.countDown();
+        });
+        submitter.start();
+        assertFalse("Failed to block on a full lane", submitted.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue("Failed to take the write once the lane had room", submitted.await(5, TimeUnit.SECONDS));
+        assertTrue(executor.shutdown(5000));
+
+        // Shutting down runs the pending writes first, and refuses new ones.
+        executor = new PersistenceExecutor(2, 100, false);
+        AtomicInteger done = new AtomicInteger();
+        for (int i = 0; i < 20; i++) {
+            executor.execute(i, () -> {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                done.incrementAndGet();
+            });
+        }
+        assertTrue("Failed to drain the pending writes", executor.shutdown(5000));
+        assertEquals(20, done.get());
+        try {
+            executor.execute(0, () -> { });
+            fail("Failed to refuse a write after shutdown");
+        } catch (RejectedExecutionException expectedRejection) {
+            // Refused as it should be.
+        }
+    }
+
+    @Test
+    public void testAsyncPersistence() throws Exception {
+        // Play the games again with the writes handed to the persistence executor.
+        Bootstrap.stop();
+        clearDB();
+        System.setProperty("hareandhounds.asyncPersistence", "true");
+        Bootstrap.main(null);
+        Spark.awaitInitialization();
+
+        testHareWin();
+        createGameInfo.clear();
+        joinGameInfo.clear();
+        testHoundWin();
+        createGameInfo.clear();
+        joinGameInfo.clear();
+        testWinByStalling();
+
+        List<String> states = new ArrayList<>();
+        for (int gameId = 0; Bootstrap.gameService.findGame(gameId) != null; gameId++) {
+            states.add(Bootstrap.gameService.findGame(gameId).getState());
+        }
+        assertFalse(states.isEmpty());
+
+        // Stopping the server flushes the queued writes, so the database has every game as it ended.
+        Bootstrap.stop();
+        SQLiteDataSource dataSource = new SQLiteDataSource();
+        dataSource.setUrl("jdbc:sqlite:hareandhounds.db");
+        SqliteGameRepository stored = new SqliteGameRepository(dataSource, new PersistenceTimings(0));
+        for (int gameId = 0; gameId < states.size(); gameId++) {
+            assertEquals("Failed to write a game in the background", states.get(gameId),
+                    stored.findGame(gameId).getState());
+        }
+    }
+
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        Set<String> names = new HashSet<>();
+        try (jdk.jfr.Recording recording = new jdk.jfr.Recording()) {
+            for (String event : new String[] {"GameCreated", "PlayerJoined", "MoveApplied", "MoveRejected",
+                                              "GameFinished", "PersistenceFlush"}) {
+                recording.enable("hareandhounds." + event).withThreshold(java.time.Duration.ZERO);
+            }
+            recording.start();
+
+            GameInfo hound = gson.fromJson(request("POST", "/hareandhounds/api/games", games[0]).content, GameInfo.class);
+            request("PUT", "/hareandhounds/api/games/" + hound.gameId, null);
+            String turns = "/hareandhounds/api/games/" + hound.gameId + "/turns";
+            assertEquals(200, request("POST", turns, new Move(hound.gameId, hound.playerId, 1, 0, 1, 1)).httpStatus);
+            assertEquals(422, request("POST", turns, new Move(hound.gameId, hound.playerId, 1, 1, 1, 2)).httpStatus);
+            Game game = new Game(99, "HOUND", 1);
+            game.timeOut(game.getVersion());
+
+            recording.stop();
+            java.nio.file.Path file = java.nio.file.Files.createTempFile("hareandhounds", ".jfr");
+            try {
+                recording.dump(file);
+                for (jdk.jfr.consumer.RecordedEvent event : jdk.jfr.consumer.RecordingFile.readAllEvents(file)) {
+                    names.add(event.getEventType().getName());
+                    if (event.getEventType().getName().equals("hareandhounds.MoveRejected")) {
+                        assertEquals("INCORRECT_TURN", event.getString("reason"));
+                    }
+                }
+            } finally {
+                java.nio.file.Files.delete(file);
+            }
+        }
+        for (String event : new String[] {"GameCreated", "PlayerJoined", "MoveApplied", "MoveRejected",
+                                          "GameFinished", "PersistenceFlush"}) {
+            assertTrue("Failed to record " + event, names.contains("hareandhounds." + event));
+        }
+    }
+
+    @Test
+    public void testDiagnostics(){
+        GameInfo hound = gson.fromJson(request("POST", "/hareandhounds/api/games", games[0]).content, GameInfo.class);
+        request("POST", "/hareandhounds/api/games", games[1]);
+        request("PUT", "/hareandhounds/api/games/" + hound.gameId, null);
+        request("POST", "/hareandhounds/api/games/" + hound.gameId + "/turns",
+                new Move(hound.gameId, hound.playerId, 1, 0, 2, 0));
+
+        // The diagnostics are only for the operator.
+        assertEquals("Failed to refuse diagnostics without the admin token", 401,
+                request("GET", "/hareandhounds/api/admin/diagnostics", null).httpStatus);
+        assertEquals("Failed to refuse diagnostics with a wrong admin token", 401,
+                request("GET", "/hareandhounds/api/admin/diagnostics", null, "Bearer wrong").httpStatus);
+
+        Response r = request("GET", "/hareandhounds/api/admin/diagnostics?top=1", null, ADMIN_AUTHORIZATION);
+        assertEquals(200, r.httpStatus);
+        Diagnostics diagnostics = gson.fromJson(r.content, Diagnostics.class);
+        assertEquals(2, diagnostics.games);
+        assertEquals(Integer.valueOf(1), diagnostics.states.get("TURN_HARE"));
+        assertEquals(Integer.valueOf(1), diagnostics.states.get("WAITING_FOR_SECOND_PLAYER"));
+        assertEquals(Integer.valueOf(0), diagnostics.states.get("EXPIRED"));
+        assertEquals(1, diagnostics.largestStallingMaps.size());
+        assertEquals("Failed to find the largest stalling map", hound.gameId, diagnostics.largestStallingMaps.get(0).gameId);
+        assertEquals(2, diagnostics.largestStallingMaps.get(0).stallingEntries);
+        assertTrue(diagnostics.largestGameBytes >= diagnostics.averageGameBytes);
+        assertTrue(diagnostics.estimatedHeapBytes > 0);
+        assertTrue("Failed to count this request", diagnostics.pools.stream()
+                .anyMatch(pool -> pool.name.equals("read_requests") && pool.active == 1));
+
+        // Seeing a position again does not add to the estimate; new positions do.
+        Game game = new Game(99, "HOUND", 1);
+        game.joinGame(2);
+        assertTrue(game.movePiece(new Move(99, 1, 1, 0, 2, 0)));
+        long before = game.estimateRetainedBytes();
+        game.updateStalling();
+        assertEquals(before, game.estimateRetainedBytes());
+        assertTrue(game.movePiece(new Move(99, 2, 4, 1, 3, 1)));
+        assertTrue(game.estimateRetainedBytes() > before);
+
+        assertEquals(400, request("GET", "/hareandhounds/api/admin/diagnostics?top=x", null, ADMIN_AUTHORIZATION).httpStatus);
+    }
+
+    @Test
+    public void testGameJson(){
+        // A game one move in, as stored before games were packed.
+        String stored = "{\"gameId\":7,\"gameState\":1,\"hareId\":2,\"houndId\":1,\"pieces\":[" +
+                "{\"pieceType\":\"HARE\",\"x\":4,\"y\":1},{\"pieceType\":\"HOUND\",\"x\":1,\"y\":1}," +
+                "{\"pieceType\":\"HOUND\",\"x\":1,\"y\":0},{\"pieceType\":\"HOUND\",\"x\":1,\"y\":2}]," +
+                "\"board\":[[false,false,false],[true,true,true],[false,false,false],[false,false,false]," +
+                "[false,true,false]],\"stalling\":{\"10_11_12_41_\":1,\"1_10_12_41_\":1}," +
+                "\"moveCount\":1,\"version\":2}";
+        Game game = gson.fromJson(stored, Game.class);
+        assertEquals(7, game.getGameId());
+        assertEquals("TURN_HARE", game.getState());
+        assertEquals(1, game.getMoveCount());
+        assertEquals(2, game.getVersion());
+        assertEquals(2, game.getStallingSize());
+        assertEquals(1, game.getBoard().get(1).getX());
+        assertEquals("HOUND", game.getBoard().get(3).getPieceType());
+
+        // It is written back the same way, and played on from where it was.
+        Type type = new TypeToken<Map<String, Object>>() {}.getType();
+        Map<String, Object> expected = gson.fromJson(stored, type);
+        assertEquals(expected, gson.fromJson(gson.toJson(game), type));
+        assertEquals(gson.toJson(new Game(7, "HOUND", 1)), gson.toJson(gson.fromJson(gson.toJson(new Game(7, "HOUND", 1)), Game.class)));
+        assertTrue(game.movePiece(new Move(7, 2, 4, 1, 3, 1)));
+        assertFalse("Failed to keep the board", game.movePiece(new Move(7, 1, 1, 0, 1, 1)));
+    }
+
+    @Test
+    public void testAdmissionControl(){
+        ServerConfig config = new ServerConfig();
+        config.maxInFlightMoves = 2;
+        config.playerMovesPerSecond = 1;
+        config.playerMoveBurst = 3;
+        AdmissionControl admission = new AdmissionControl(config);
+
+        // A full route class sheds further requests until one finishes.
+        assertTrue(admission.tryEnter(AdmissionControl.RouteClass.MOVE));
+        assertTrue(admission.tryEnter(AdmissionControl.RouteClass.MOVE));
+        assertFalse("Failed to shed a request", admission.tryEnter(AdmissionControl.RouteClass.MOVE));
+        assertTrue("Failed to limit classes separately", admission.tryEnter(AdmissionControl.RouteClass.READ));
+        admission.exit(AdmissionControl.RouteClass.MOVE);
+        assertTrue(admission.tryEnter(AdmissionControl.RouteClass.MOVE));
+        assertEquals(1, admission.getShed(AdmissionControl.RouteClass.MOVE));
+        assertEquals(2, admission.getInFlight(AdmissionControl.RouteClass.MOVE));
+
+        // A player may move in a burst, then is rate limited; other players are not.
+        for (int i = 0; i < 3; i++) {
+            assertTrue(admission.tryMove(1));
+        }
+        assertFalse("Failed to rate limit a player", admission.tryMove(1));
+        assertTrue(admission.tryMove(2));
+        assertEquals(1, admission.getRateLimited());
+    }
+
+    @Test
+    public void testDefaultAdmissionLimits(){
+        // The server runs with the default limits, which leave a request
+        // thread for every admitted request.
+        ServerConfig defaults = new ServerConfig();
+        AdmissionControl admission = Bootstrap.controller.getAdmissionControl();
+        assertEquals(defaults.maxInFlightReads, admission.getLimit(AdmissionControl.RouteClass.READ));
+        int reserved = EmbeddedJetty.reservedThreads();
+        assertTrue(reserved >= 0);
+        assertTrue("Failed to fit the default limits in the request threads",
+                admission.fitsThreads(defaults.maxThreads - reserved));
+
+        // With the read class full, reads are shed while other classes are still served.
+        GameInfo game = gson.fromJson(request("POST", "/hareandhounds/api/games", games[0]).content, GameInfo.class);
+        String state = "/hareandhounds/api/games/" + game.gameId + "/state";
+        int taken = 0;
+        try {
+            while (admission.tryEnter(AdmissionControl.RouteClass.READ)) {
+                taken++;
+            }
+            assertEquals(defaults.maxInFlightReads, taken);
+            assertEquals("Failed to shed a read of a saturated class", 503, request("GET", state, null).httpStatus);
+            assertEquals(201, request("POST", "/hareandhounds/api/games", games[0]).httpStatus);
+        } finally {
+            for (int i = 0; i < taken; i++) {
+                admission.exit(AdmissionControl.RouteClass.READ);
+            }
+        }
+        assertEquals(200, request("GET", state, null).httpStatus);
+    }
+
+    @Test
+    public void testBinaryRequests() throws Exception {
+        BinaryServer server = new BinaryServer(Bootstrap.gameService, Bootstrap.IP_ADDRESS, 0, 1, 5000);
+        try (Socket socket = new Socket(Bootstrap.IP_ADDRESS, server.getPort())) {
+            socket.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            // A piece type other than 0 (HOUND) and 1 (HARE) is refused.
+            out.writeShort(2);
+            out.writeByte(BinaryProtocol.CREATE);
+            out.writeByte(7);
+            out.flush();
+            assertEquals(2, in.readUnsignedShort());
+            assertEquals("Failed to refuse an unknown piece type", BinaryProtocol.ERROR, in.readByte());
+            assertEquals(BinaryProtocol.ERROR_MALFORMED, in.readByte());
+
+            out.writeShort(2);
+            out.writeByte(BinaryProtocol.CREATE);
+            out.writeByte(1);
+            out.flush();
+            assertEquals(11, in.readUnsignedShort());
+            assertEquals(BinaryProtocol.GAME_INFO, in.readByte());
+            int gameId = in.readInt();
+            in.readInt();
+            assertEquals("Failed to create a hare", 1, in.readByte());
+            in.readByte();
+
+            // Far more pipelined requests than a connection may queue are
+            // all answered, in order.
+            int pipelined = BinaryServer.MAX_QUEUED_REQUESTS * 10;
+            for (int i = 0; i < pipelined; i++) {
+                out.writeShort(5);
+                out.writeByte(BinaryProtocol.SNAPSHOT);
+                out.writeInt(gameId);
+            }
+            out.flush();
+            for (int i = 0; i < pipelined; i++) {
+                assertEquals(14, in.readUnsignedShort());
+                assertEquals("Failed to answer pipelined request " + i, BinaryProtocol.BOARD, in.readByte());
+                assertEquals(gameId, in.readInt());
+                in.skipBytes(9);
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    // Seed of the stress test; each thread draws from its own Random seeded from it.
+    private static final long STRESS_SEED = 2015;
+    private static final int STRESS_THREADS = 8;
+
+    @Test
+    public void testConcurrentStress() throws Exception {
+        GameService service = Bootstrap.gameService;
+        ExecutorService pool = Executors.newFixedThreadPool(STRESS_THREADS);
+        try {
+            // Concurrent creates, one at a time and in batches.
+            List<GameInfo> created = runTogether(pool, (thread, random) -> {
+                List<GameInfo> infos = new ArrayList<>();
+                while (infos.size() < 12) {
+                    String pieceType = random.nextBoolean() ? "HOUND" : "HARE";
+                    if (random.nextInt(4) == 0) {
+                        infos.addAll(service.createNewGames(Collections.nCopies(3, pieceType)));
+                    } else {
+                        infos.add(service.createNewGame(pieceType));
+                    }
+                }
+                return infos;
+            });
+            Set<Integer> playerIds = new HashSet<>();
+            Map<Integer, GameInfo[]> players = new HashMap<>(); // {hound, hare} of each game
+            for (GameInfo info : created) {
+                assertTrue("Failed to give each player its own id", playerIds.add(info.playerId));
+                GameInfo[] pair = new GameInfo[2];
+                pair[info.pieceType.equals("HOUND") ? 0 : 1] = info;
+                assertNull("Failed to give each game its own id", players.put(info.gameId, pair));
+            }
+
+            // Every thread tries to join every game, by id or from the waiting queues.
+            List<GameInfo> joined = runTogether(pool, (thread, random) -> {
+                List<Integer> order = created.stream().map(info -> info.gameId).collect(Collectors.toList());
+                Collections.shuffle(order, random);
+                List<GameInfo> infos = new ArrayList<>();
+                for (int gameId : order) {
+                    if (random.nextInt(8) == 0) {
+                        GameInfo info = service.joinWaitingGame(random.nextBoolean() ? "HOUND" : "HARE");
+                        if (info != null) {
+                            infos.add(info);
+                        }
+                    } else {
+                        GameInfo info = service.joinGame(gameId);
+                        assertNotEquals("404", info.state);
+                        if (!info.state.equals("410")) {
+                            infos.add(info);
+                        }
+                    }
+                }
+                return infos;
+            });
+            assertEquals("Failed to let exactly one second player join each game", created.size(), joined.size());
+            for (GameInfo info : joined) {
+                assertTrue("Failed to give each player its own id", playerIds.add(info.playerId));
+                GameInfo[] pair = players.get(info.gameId);
+                int side = info.pieceType.equals("HOUND") ? 0 : 1;
+                assertNull("Failed to keep a game to two players", pair[side]);
+                pair[side] = info;
+            }
+
+            // Both players of a few games race moves, whoever's turn it is.
+            List<Integer> raced = created.stream().limit(2 * STRESS_THREADS)
+                    .map(info -> info.gameId).collect(Collectors.toList());
+            Map<Integer, AtomicInteger[]> accepted = new ConcurrentHashMap<>(); // {hound, hare} moves of each game
+            for (int gameId : raced) {
+                accepted.put(gameId, new AtomicInteger[]{new AtomicInteger(), new AtomicInteger()});
+            }
+            runTogether(pool, (thread, random) -> {
+                for (int i = 0; i < 300; i++) {
+                    int gameId = raced.get(random.nextInt(raced.size()));
+                    int side = random.nextInt(2);
+                    List<Piece> board = service.getGameBoard(gameId);
+                    Piece piece = board.get(side == 0 ? 1 + random.nextInt(3) : 0);
+                    Move move = new Move(gameId, players.get(gameId)[side].playerId, piece.getX(), piece.getY(),
+                            piece.getX() + random.nextInt(3) - 1, piece.getY() + random.nextInt(3) - 1);
+                    String result = service.playGame(move);
+                    if (result.equals("MOVE_OK")) {
+                        accepted.get(gameId)[side].incrementAndGet();
+                    } else {
+                        assertTrue("Unexpected result " + result,
+                                result.equals("INCORRECT_TURN") || result.equals("ILLEGAL_MOVE"));
+                    }
+                }
+                return Collections.emptyList();
+            });
+            for (int gameId : raced) {
+                Game game = service.searchGame(gameId);
+                int houndMoves = accepted.get(gameId)[0].get();
+                int hareMoves = accepted.get(gameId)[1].get();
+                assertTrue("Failed to alternate turns in game " + gameId,
+                        houndMoves == hareMoves || houndMoves == hareMoves + 1);
+                assertEquals(houndMoves + hareMoves, game.getMoveCount());
+                if (game.getStateInt() <= 1) {
+                    assertEquals(houndMoves == hareMoves ? "TURN_HOUND" : "TURN_HARE", game.getState());
+                }
+                Set<String> squares = new HashSet<>();
+                for (Piece piece : game.getBoard()) {
+                    assertTrue("Failed to keep pieces apart", squares.add(piece.getX() + "," + piece.getY()));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        // The rows in the database match the games in memory.
+        SQLiteDataSource dataSource = new SQLiteDataSource();
+        dataSource.setUrl("jdbc:sqlite:hareandhounds.db");
+        int rows = 0;
+        try (Connection conn = new Sql2o(dataSource).open()) {
+            String sql = "SELECT game_id, game_state, game_json FROM game";
+            for (org.sql2o.data.Row row : conn.createQuery(sql).executeAndFetchTable().rows()) {
+                Game game = service.searchGame(row.getInteger("game_id"));
+                Game stored = gson.fromJson(row.getString("game_json"), Game.class);
+                assertEquals(game.getStateInt(), (int) row.getInteger("game_state"));
+                assertEquals(game.getVersion(), stored.getVersion());
+                assertEquals(game.getMoveCount(), stored.getMoveCount());
+                assertEquals(game.getHoundId(), stored.getHoundId());
+                assertEquals(game.getHareId(), stored.getHareId());
+                assertEquals(gson.toJson(game.getBoard()), gson.toJson(stored.getBoard()));
+                rows++;
+            }
+        }
+        assertEquals(service.getCachedGameCount(), rows);
+    }
+
 
  
     //------------------------------------------------------------------------//
@@ -383,12 +1389,19 @@ public class TestGameServer {
     //------------------------------------------------------------------------//
     
     private Response request(String method, String path, Object content) {
+        return request(method, path, content, null);
+    }
+
+    private Response request(String method, String path, Object content, String authorization) {
         try {
 			URL url = new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, path);
             System.out.println(url);
 			HttpURLConnection http = (HttpURLConnection) url.openConnection();
             http.setRequestMethod(method);
             http.setDoInput(true);
+            if (authorization != null) {
+                http.setRequestProperty("Authorization", authorization);
+            }
             if (content != null) {
                 String contentAsJson = new Gson().toJson(content);
                 http.setDoOutput(true);
@@ -429,6 +1442,42 @@ public class TestGameServer {
         }
 	}
 
+    /**
+     * One thread's part of a stress test, given its index and its seeded Random.
+     */
+    private interface StressTask {
+        List<GameInfo> run(int thread, Random random) throws Exception;
+    }
+
+    /**
+     * Run a task on every thread of the pool, released at the same moment,
+     * and collect what they return. Fails with the first error of any thread.
+     */
+    private static List<GameInfo> runTogether(ExecutorService pool, StressTask task) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<GameInfo>>> futures = new ArrayList<>();
+        for (int i = 0; i < STRESS_THREADS; i++) {
+            int thread = i;
+            futures.add(pool.submit(() -> {
+                start.await();
+                return task.run(thread, new Random(STRESS_SEED + thread));
+            }));
+        }
+        start.countDown();
+        List<GameInfo> results = new ArrayList<>();
+        for (Future<List<GameInfo>> future : futures) {
+            try {
+                results.addAll(future.get(60, TimeUnit.SECONDS));
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof AssertionError) {
+                    throw (AssertionError) ex.getCause();
+                }
+                throw ex;
+            }
+        }
+        return results;
+    }
+
     //------------------------------------------------------------------------//
     // TodoApp Specific Helper Methods and classes
     //------------------------------------------------------------------------//
@@ -442,6 +1491,12 @@ public class TestGameServer {
         try (Connection conn = db.open()) {
             String sql = "DROP TABLE IF EXISTS game" ;
             conn.createQuery(sql).executeUpdate();
+            sql = "DROP TABLE IF EXISTS game_archive" ;
+            conn.createQuery(sql).executeUpdate();
+            sql = "DROP TABLE IF EXISTS game_stats" ;
+            conn.createQuery(sql).executeUpdate();
+            sql = "DROP TABLE IF EXISTS player_stats" ;
+            conn.createQuery(sql).executeUpdate();
         }
     }
 